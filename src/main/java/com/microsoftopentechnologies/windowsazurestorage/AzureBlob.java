@@ -16,6 +16,9 @@ public class AzureBlob implements Serializable {
     private final long byteSize;
     private final String storageType;
     private final String credentialsId;
+    private final String storedBlobName;
+    private final String checksumAlgorithm;
+    private final String checksum;
 
     @Deprecated
     public AzureBlob(
@@ -34,12 +37,47 @@ public class AzureBlob implements Serializable {
             long byteSize,
             String storageType,
             String credentialsId) {
+        this(blobName, blobURL, md5, byteSize, storageType, credentialsId, null);
+    }
+
+    /**
+     * @param storedBlobName Name of the blob holding the content if it differs from the artifact name, as in the
+     *                       content addressed mode, or null.
+     */
+    public AzureBlob(
+            String blobName,
+            String blobURL,
+            String md5,
+            long byteSize,
+            String storageType,
+            String credentialsId,
+            String storedBlobName) {
+        this(blobName, blobURL, md5, byteSize, storageType, credentialsId, storedBlobName, null, null);
+    }
+
+    /**
+     * @param checksumAlgorithm Algorithm of the checksum computed on upload, or null.
+     * @param checksum          Lower case hex checksum of the content, or null if it is not known.
+     */
+    public AzureBlob(
+            String blobName,
+            String blobURL,
+            String md5,
+            long byteSize,
+            String storageType,
+            String credentialsId,
+            String storedBlobName,
+            String checksumAlgorithm,
+            String checksum) {
         this.blobName = blobName;
         this.blobURL = blobURL;
         this.md5 = md5;
         this.byteSize = byteSize;
         this.storageType = storageType;
         this.credentialsId = credentialsId;
+        this.storedBlobName = storedBlobName;
+        this.checksumAlgorithm = checksumAlgorithm;
+        this.checksum = checksum;
     }
 
     @Exported
@@ -51,6 +89,13 @@ public class AzureBlob implements Serializable {
         return blobName;
     }
 
+    /**
+     * Name of the blob holding the content, which differs from the artifact name in content addressed mode.
+     */
+    public String getStoredBlobName() {
+        return storedBlobName == null ? blobName : storedBlobName;
+    }
+
     @Exported
     public String getBlobURL() {
         return blobURL;
@@ -61,6 +106,16 @@ public class AzureBlob implements Serializable {
         return md5;
     }
 
+    @Exported
+    public String getChecksumAlgorithm() {
+        return checksumAlgorithm;
+    }
+
+    @Exported
+    public String getChecksum() {
+        return checksum;
+    }
+
     @Exported
     public long getSizeInBytes() {
         return byteSize;
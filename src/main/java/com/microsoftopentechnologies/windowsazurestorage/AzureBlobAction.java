@@ -20,6 +20,8 @@ import org.springframework.security.core.Authentication;
 import javax.servlet.ServletException;
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.net.URLDecoder;
 
@@ -32,6 +34,7 @@ public class AzureBlobAction implements RunAction2 {
     private final String storageType;
     private final boolean allowAnonymousAccess;
     private final AzureBlob zipArchiveBlob;
+    private final List<AzureBlob> archiveParts;
     private final List<AzureBlob> individualBlobs;
     private final String storageCredentialId;
 
@@ -43,12 +46,26 @@ public class AzureBlobAction implements RunAction2 {
             AzureBlob zipArchiveBlob,
             boolean allowAnonymousAccess,
             String storageCredentialId) {
+        this(containerName, shareName, storageType, individualBlobs, zipArchiveBlob, null, allowAnonymousAccess,
+                storageCredentialId);
+    }
+
+    public AzureBlobAction(
+            String containerName,
+            String shareName,
+            String storageType,
+            List<AzureBlob> individualBlobs,
+            AzureBlob zipArchiveBlob,
+            List<AzureBlob> archiveParts,
+            boolean allowAnonymousAccess,
+            String storageCredentialId) {
         this.containerName = containerName;
         this.fileShareName = shareName;
         this.storageType = storageType;
         this.individualBlobs = individualBlobs;
         this.allowAnonymousAccess = allowAnonymousAccess;
         this.zipArchiveBlob = zipArchiveBlob;
+        this.archiveParts = archiveParts;
         this.storageCredentialId = storageCredentialId;
     }
 
@@ -76,6 +93,14 @@ public class AzureBlobAction implements RunAction2 {
         return zipArchiveBlob;
     }
 
+    /**
+     * Parts of a multi-part archive, each of them is a zip of its own. Empty if the archive is a single zip.
+     */
+    @Exported
+    public List<AzureBlob> getArchiveParts() {
+        return archiveParts == null ? Collections.emptyList() : archiveParts;
+    }
+
     @Override
     public void onAttached(Run<?, ?> r) {
         build = r;
@@ -99,6 +124,10 @@ public class AzureBlobAction implements RunAction2 {
         return individualBlobs;
     }
 
+    public String getStorageCredentialId() {
+        return storageCredentialId;
+    }
+
     public boolean getAllowAnonymousAccess() {
         return allowAnonymousAccess;
     }
@@ -120,10 +149,15 @@ public class AzureBlobAction implements RunAction2 {
 
         String blobName = queryPath.substring(1);
 
-        // Check the archive blob if it is non-null
-        if (zipArchiveBlob != null
-                && blobName.equals(URLDecoder.decode(zipArchiveBlob.getBlobName(),
-                StandardCharsets.UTF_8.toString()))) {
+        // Check the archive blobs if there are any
+        List<AzureBlob> archiveBlobs = new ArrayList<>(getArchiveParts());
+        if (zipArchiveBlob != null) {
+            archiveBlobs.add(zipArchiveBlob);
+        }
+        for (AzureBlob archiveBlob : archiveBlobs) {
+            if (!blobName.equals(URLDecoder.decode(archiveBlob.getBlobName(), StandardCharsets.UTF_8.toString()))) {
+                continue;
+            }
             StorageAccountInfo accountInfo = getStorageAccountInfo(storageCredentialId);
 
             if (accountInfo == null) {
@@ -133,8 +167,8 @@ public class AzureBlobAction implements RunAction2 {
             }
 
             try {
-                response.sendRedirect2(zipArchiveBlob.getBlobURL() + "?"
-                        + generateReadSASURL(accountInfo, zipArchiveBlob.getBlobName()));
+                response.sendRedirect2(archiveBlob.getBlobURL() + "?"
+                        + generateReadSASURL(accountInfo, archiveBlob.getBlobName()));
             } catch (Exception e) {
                 response.sendError(Constants.HTTP_INTERNAL_SERVER_ERROR,
                         "Error occurred while downloading artifact " + e.getMessage());
@@ -154,7 +188,7 @@ public class AzureBlobAction implements RunAction2 {
 
                 try {
                     response.sendRedirect2(blob.getBlobURL() + "?"
-                            + generateReadSASURL(accountInfo, blob.getBlobName()));
+                            + generateReadSASURL(accountInfo, blob.getStoredBlobName()));
                 } catch (Exception e) {
                     response.sendError(Constants.HTTP_INTERNAL_SERVER_ERROR,
                             "Error occurred while downloading artifact " + e.getMessage());
@@ -27,8 +27,11 @@ import org.apache.tika.Tika;
 import org.kohsuke.stapler.DataBoundConstructor;
 import org.kohsuke.stapler.DataBoundSetter;
 
+import java.io.BufferedInputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.file.Files;
 
 public class AzureBlobProperties implements Describable<AzureBlobProperties> {
 
@@ -102,30 +105,50 @@ public class AzureBlobProperties implements Describable<AzureBlobProperties> {
     }
 
     public PartialBlobProperties configure(FilePath src, EnvVars env) throws InterruptedException, IOException {
-        String resolvedContentType = Util.replaceMacro(contentType, env);
-        if (StringUtils.isBlank(resolvedContentType) && detectContentType) {
-            resolvedContentType = detectContentType(src);
+        PartialBlobProperties properties = configure(env);
+        if (isContentTypeDetected(properties)) {
+            try (InputStream stream = src.read()) {
+                properties.setContentType(detectContentType(stream, src.getName()));
+            }
         }
+        return properties;
+    }
 
+    /**
+     * Resolves the properties against the build environment, without detecting the content type.
+     */
+    public PartialBlobProperties configure(EnvVars env) {
         return new PartialBlobProperties(
                 Util.replaceMacro(contentEncoding, env),
                 Util.replaceMacro(contentLanguage, env),
                 Util.replaceMacro(cacheControl, env),
-                resolvedContentType
+                Util.replaceMacro(contentType, env)
         );
     }
 
-    private String detectContentType(FilePath file) throws InterruptedException, IOException {
-        Tika tika = new Tika();
-        try (InputStream stream = file.read()) {
-            if (file.getName().toLowerCase().endsWith(".js")) {
-                // Tika has a shortcoming not able to properly identify JavaScript files, determine type by extension
-                // rather than Tika for those.
-                return "application/javascript";
-            } else {
-                return tika.detect(stream, file.getName());
-            }
+    /**
+     * Whether the content type of every file has to be detected, given the resolved properties.
+     */
+    public boolean isContentTypeDetected(PartialBlobProperties resolved) {
+        return StringUtils.isBlank(resolved.getContentType()) && detectContentType;
+    }
+
+    /**
+     * Detects the content type of a local file. This runs where the file lives, usually on the agent.
+     */
+    public static String detectContentType(File file) throws IOException {
+        try (InputStream stream = new BufferedInputStream(Files.newInputStream(file.toPath()))) {
+            return detectContentType(stream, file.getName());
+        }
+    }
+
+    private static String detectContentType(InputStream stream, String fileName) throws IOException {
+        if (fileName.toLowerCase().endsWith(".js")) {
+            // Tika has a shortcoming not able to properly identify JavaScript files, determine type by extension
+            // rather than Tika for those.
+            return "application/javascript";
         }
+        return new Tika().detect(stream, fileName);
     }
 
     @SuppressWarnings("unchecked")
@@ -0,0 +1,127 @@
+package com.microsoftopentechnologies.windowsazurestorage;
+
+import com.microsoftopentechnologies.windowsazurestorage.helper.RequestStats;
+import hudson.model.Run;
+import jenkins.model.RunAction2;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * Shows in the build summary how many storage requests each upload and download step of the build made, by
+ * operation, since every request is billed.
+ */
+public class AzureRequestsAction implements RunAction2 {
+
+    private transient Run<?, ?> build;
+    private final List<Step> steps = new ArrayList<>();
+
+    /**
+     * Records the requests of a step on the build.
+     *
+     * @param run      The build.
+     * @param name     The name of the step.
+     * @param requests The requests made by the step.
+     */
+    public static void record(Run<?, ?> run, String name, RequestStats requests) {
+        synchronized (run) {
+            AzureRequestsAction action = run.getAction(AzureRequestsAction.class);
+            if (action == null) {
+                action = new AzureRequestsAction();
+                run.addAction(action);
+            }
+            action.add(new Step(name, requests.getCounts()));
+        }
+    }
+
+    private synchronized void add(Step step) {
+        steps.add(step);
+    }
+
+    public Run<?, ?> getBuild() {
+        return build;
+    }
+
+    public synchronized List<Step> getSteps() {
+        return Collections.unmodifiableList(new ArrayList<>(steps));
+    }
+
+    /**
+     * Gets the requests of every step by operation.
+     */
+    public synchronized SortedMap<String, Long> getCounts() {
+        SortedMap<String, Long> counts = new TreeMap<>();
+        for (Step step : steps) {
+            for (Map.Entry<String, Long> entry : step.getCounts().entrySet()) {
+                counts.merge(entry.getKey(), entry.getValue(), Long::sum);
+            }
+        }
+        return counts;
+    }
+
+    public synchronized long getTotal() {
+        long total = 0;
+        for (Step step : steps) {
+            total += step.getTotal();
+        }
+        return total;
+    }
+
+    @Override
+    public String getDisplayName() {
+        return "Azure Storage Requests";
+    }
+
+    @Override
+    public String getIconFileName() {
+        return null;
+    }
+
+    @Override
+    public String getUrlName() {
+        return null;
+    }
+
+    @Override
+    public void onAttached(Run<?, ?> r) {
+        build = r;
+    }
+
+    @Override
+    public void onLoad(Run<?, ?> r) {
+        build = r;
+    }
+
+    /**
+     * The requests of one upload or download step.
+     */
+    public static final class Step {
+        private final String name;
+        private final SortedMap<String, Long> counts;
+
+        Step(String name, SortedMap<String, Long> counts) {
+            this.name = name;
+            this.counts = counts;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public SortedMap<String, Long> getCounts() {
+            return Collections.unmodifiableSortedMap(counts);
+        }
+
+        public long getTotal() {
+            long total = 0;
+            for (long count : counts.values()) {
+                total += count;
+            }
+            return total;
+        }
+    }
+}
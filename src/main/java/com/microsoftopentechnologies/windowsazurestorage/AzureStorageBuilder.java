@@ -81,6 +81,7 @@ public class AzureStorageBuilder extends Builder implements SimpleBuildStep {
     private String downloadDirLoc = "";
     private boolean flattenDirectories;
     private boolean includeArchiveZips;
+    private boolean extractArchives;
     private BuildSelector buildSelector;
     private String projectName = "";
     private boolean verbose;
@@ -120,6 +121,11 @@ public class AzureStorageBuilder extends Builder implements SimpleBuildStep {
         this.includeArchiveZips = includeArchiveZips;
     }
 
+    @DataBoundSetter
+    public void setExtractArchives(boolean extractArchives) {
+        this.extractArchives = extractArchives;
+    }
+
     @DataBoundSetter
     public void setContainerName(String containerName) {
         if (getDownloadType().equals(DOWNLOAD_TYPE_CONTAINER)) {
@@ -215,6 +221,10 @@ public class AzureStorageBuilder extends Builder implements SimpleBuildStep {
         return includeArchiveZips;
     }
 
+    public boolean isExtractArchives() {
+        return extractArchives;
+    }
+
     public boolean isFlattenDirectories() {
         return flattenDirectories;
     }
@@ -279,12 +289,13 @@ public class AzureStorageBuilder extends Builder implements SimpleBuildStep {
 
             // Resolve exclude patterns
             String expExcludePattern = Utils.replaceMacro(excludeFilesPattern, envVars);
-            // Exclude archive.zip by default.
+            // Exclude archive.zip and archive.tar.gz by default, and the parts of a multi-part archive.
             if (!includeArchiveZips) {
+                String archives = "archive.zip,archive.tar.gz,archive-*.zip,archive-*.tar.gz";
                 if (expExcludePattern != null) {
-                    expExcludePattern += ",archive.zip";
+                    expExcludePattern += "," + archives;
                 } else {
-                    expExcludePattern = "archive.zip";
+                    expExcludePattern = archives;
                 }
             }
 
@@ -300,13 +311,15 @@ public class AzureStorageBuilder extends Builder implements SimpleBuildStep {
             builderServiceData.setFileShare(expShareName);
             builderServiceData.setFlattenDirectories(flattenDirectories);
             builderServiceData.setDeleteFromAzureAfterDownload(deleteFromAzureAfterDownload);
+            builderServiceData.setIncludeArchiveZips(includeArchiveZips);
+            builderServiceData.setExtractArchives(extractArchives);
             builderServiceData.setDownloadType(getDownloadType());
             builderServiceData.setProjectName(Util.replaceMacro(projectName, envVars));
             builderServiceData.setBuildSelector(buildSelector);
             builderServiceData.setVerbose(isVerbose());
 
             final StoragePluginService<DownloadServiceData> downloadService = getDownloadService(builderServiceData);
-            int filesDownloaded = downloadService.execute();
+            int filesDownloaded = downloadService.executeCountingRequests();
 
             if (filesDownloaded == 0) {
                 listener.getLogger().println(Messages.AzureStorageBuilder_nofiles_downloaded());
@@ -349,7 +362,7 @@ public class AzureStorageBuilder extends Builder implements SimpleBuildStep {
 
         // Check if storage account credentials are valid
         try {
-            AzureUtils.validateStorageAccount(storageAccountInfo);
+            AzureUtils.validateStorageAccount(storageAccountInfo, true);
         } catch (Exception e) {
             listener.getLogger().println(Messages.Client_SA_val_fail());
             listener.getLogger().println(storageAccountInfo.getStorageAccName());
@@ -28,6 +28,10 @@ import com.microsoftopentechnologies.windowsazurestorage.helper.Utils;
 import com.microsoftopentechnologies.windowsazurestorage.service.UploadService;
 import com.microsoftopentechnologies.windowsazurestorage.service.UploadToBlobService;
 import com.microsoftopentechnologies.windowsazurestorage.service.UploadToFileService;
+import com.microsoftopentechnologies.windowsazurestorage.service.model.ArchiveFormat;
+import com.microsoftopentechnologies.windowsazurestorage.service.model.ChecksumAlgorithm;
+import com.microsoftopentechnologies.windowsazurestorage.service.model.TransferTuning;
+import com.microsoftopentechnologies.windowsazurestorage.service.model.UploadCompression;
 import com.microsoftopentechnologies.windowsazurestorage.service.model.UploadServiceData;
 import com.microsoftopentechnologies.windowsazurestorage.service.model.UploadType;
 import edu.umd.cs.findbugs.annotations.NonNull;
@@ -77,6 +81,8 @@ import java.util.logging.Logger;
 
 public class WAStoragePublisher extends Recorder implements SimpleBuildStep {
     private static final Logger LOGGER = Logger.getLogger(WAStoragePublisher.class.getName());
+    private static final int MAX_ARCHIVE_PARTS = 64;
+    private static final int MAX_COMPRESSION_LEVEL = 9;
 
     private final String storageType;
     private String containerName;
@@ -89,6 +95,7 @@ public class WAStoragePublisher extends Recorder implements SimpleBuildStep {
     private boolean pubAccessible;
     private boolean cleanUpContainerOrShare;
     private boolean cleanUpVirtualPath;
+    private boolean replaceVirtualPath;
     private boolean allowAnonymousAccess;
     private boolean uploadArtifactsOnlyIfSuccessful;
     private boolean doNotFailIfArchivingReturnsNothing;
@@ -102,6 +109,19 @@ public class WAStoragePublisher extends Recorder implements SimpleBuildStep {
     private final String storageCredentialId;
     private boolean onlyUploadModifiedArtifacts;
     private boolean verbose;
+    private boolean skipUnchangedArtifacts;
+    private boolean incrementalUpload;
+    private boolean contentAddressed;
+    private String checksumAlgorithm;
+    private boolean compressArtifacts;
+    private String compressIncludes;
+    private int singleShotThresholdMB;
+    private int blockSizeMB;
+    private int blockConcurrency;
+    private int archiveParts;
+    private String archiveFormat;
+    private int archiveCompressionLevel;
+    private boolean reproducibleArchive;
 
     private transient AzureStorageAccount.StorageAccountCredential storageCreds;
 
@@ -143,6 +163,11 @@ public class WAStoragePublisher extends Recorder implements SimpleBuildStep {
         this.cleanUpVirtualPath = cleanUpVirtualPath;
     }
 
+    @DataBoundSetter
+    public void setReplaceVirtualPath(boolean replaceVirtualPath) {
+        this.replaceVirtualPath = replaceVirtualPath;
+    }
+
     @DataBoundSetter
     public void setAllowAnonymousAccess(boolean allowAnonymousAccess) {
         this.allowAnonymousAccess = allowAnonymousAccess;
@@ -211,6 +236,166 @@ public class WAStoragePublisher extends Recorder implements SimpleBuildStep {
         this.verbose = verbose;
     }
 
+    /**
+     * If true, files whose content is identical to the blob already stored under their name are not uploaded.
+     */
+    public boolean isSkipUnchangedArtifacts() {
+        return skipUnchangedArtifacts;
+    }
+
+    @DataBoundSetter
+    public void setSkipUnchangedArtifacts(boolean skipUnchangedArtifacts) {
+        this.skipUnchangedArtifacts = skipUnchangedArtifacts;
+    }
+
+    /**
+     * If true, the files uploaded by the previous build are compared with the workspace, and only the changed
+     * files are uploaded.
+     */
+    public boolean isIncrementalUpload() {
+        return incrementalUpload;
+    }
+
+    @DataBoundSetter
+    public void setIncrementalUpload(boolean incrementalUpload) {
+        this.incrementalUpload = incrementalUpload;
+    }
+
+    /**
+     * If true, each distinct content is stored once under a name derived from its SHA-256, and the artifacts of
+     * the build only refer to it.
+     */
+    public boolean isContentAddressed() {
+        return contentAddressed;
+    }
+
+    @DataBoundSetter
+    public void setContentAddressed(boolean contentAddressed) {
+        this.contentAddressed = contentAddressed;
+    }
+
+    /**
+     * Checksum computed on the agent while every file is uploaded: MD5, SHA256 or CRC64.
+     */
+    public String getChecksumAlgorithm() {
+        return ChecksumAlgorithm.fromString(checksumAlgorithm).name();
+    }
+
+    @DataBoundSetter
+    public void setChecksumAlgorithm(String checksumAlgorithm) {
+        this.checksumAlgorithm = checksumAlgorithm;
+    }
+
+    /**
+     * If true, the compressible artifacts are gzipped while they are uploaded and stored with a gzip content
+     * encoding.
+     */
+    public boolean isCompressArtifacts() {
+        return compressArtifacts;
+    }
+
+    @DataBoundSetter
+    public void setCompressArtifacts(boolean compressArtifacts) {
+        this.compressArtifacts = compressArtifacts;
+    }
+
+    /**
+     * Ant globs of the artifacts to compress, in addition to the ones whose content type compresses well.
+     */
+    public String getCompressIncludes() {
+        return compressIncludes;
+    }
+
+    @DataBoundSetter
+    public void setCompressIncludes(String compressIncludes) {
+        this.compressIncludes = compressIncludes;
+    }
+
+    /**
+     * Largest file size in MiB which is uploaded with a single request, 0 for the default.
+     */
+    public int getSingleShotThresholdMB() {
+        return singleShotThresholdMB;
+    }
+
+    @DataBoundSetter
+    public void setSingleShotThresholdMB(int singleShotThresholdMB) {
+        this.singleShotThresholdMB = Math.max(0, singleShotThresholdMB);
+    }
+
+    /**
+     * Block size in MiB of files above the single-shot threshold, 0 for the default.
+     */
+    public int getBlockSizeMB() {
+        return blockSizeMB;
+    }
+
+    @DataBoundSetter
+    public void setBlockSizeMB(int blockSizeMB) {
+        this.blockSizeMB = Math.max(0, blockSizeMB);
+    }
+
+    /**
+     * Number of blocks of a single file uploaded at the same time, 0 for the default.
+     */
+    public int getBlockConcurrency() {
+        return blockConcurrency;
+    }
+
+    @DataBoundSetter
+    public void setBlockConcurrency(int blockConcurrency) {
+        this.blockConcurrency = Math.max(0, blockConcurrency);
+    }
+
+    /**
+     * Number of independently readable parts the archive is split into, 0 or 1 for a single archive.zip.
+     */
+    public int getArchiveParts() {
+        return archiveParts;
+    }
+
+    @DataBoundSetter
+    public void setArchiveParts(int archiveParts) {
+        this.archiveParts = Math.max(0, Math.min(archiveParts, MAX_ARCHIVE_PARTS));
+    }
+
+    /**
+     * Format of the archive: ZIP or TAR_GZ.
+     */
+    public String getArchiveFormat() {
+        return ArchiveFormat.fromString(archiveFormat).name();
+    }
+
+    @DataBoundSetter
+    public void setArchiveFormat(String archiveFormat) {
+        this.archiveFormat = archiveFormat;
+    }
+
+    /**
+     * Compression level of the archive from 1 (fastest) to 9 (smallest), 0 for the default of the format.
+     */
+    public int getArchiveCompressionLevel() {
+        return archiveCompressionLevel;
+    }
+
+    @DataBoundSetter
+    public void setArchiveCompressionLevel(int archiveCompressionLevel) {
+        this.archiveCompressionLevel = Math.max(0, Math.min(archiveCompressionLevel, MAX_COMPRESSION_LEVEL));
+    }
+
+    /**
+     * Whether the archive only depends on the paths and content of the files, and is not uploaded again when
+     * the blob already holds it.
+     */
+    public boolean isReproducibleArchive() {
+        return reproducibleArchive;
+    }
+
+    @DataBoundSetter
+    public void setReproducibleArchive(boolean reproducibleArchive) {
+        this.reproducibleArchive = reproducibleArchive;
+    }
+
     /**
      * Files path. Ant glob syntax.
      */
@@ -279,6 +464,13 @@ public class WAStoragePublisher extends Recorder implements SimpleBuildStep {
         return cleanUpVirtualPath;
     }
 
+    /**
+     * Azure storage virtual path replace option, the stale blobs are deleted after the upload.
+     */
+    public boolean isReplaceVirtualPath() {
+        return replaceVirtualPath;
+    }
+
     /**
      * Allowing anonymous access for links generated by jenkins.
      */
@@ -339,6 +531,35 @@ public class WAStoragePublisher extends Recorder implements SimpleBuildStep {
         }
     }
 
+    /**
+     * Finds the files uploaded by the last build which published artifacts, by every upload step of that build
+     * which used the same container and credentials.
+     */
+    private List<AzureBlob> getPreviousBlobs(Run<?, ?> run, String containerName) {
+        for (Run<?, ?> previous = run.getPreviousBuild(); previous != null; previous = previous.getPreviousBuild()) {
+            List<AzureBlobAction> actions = previous.getActions(AzureBlobAction.class);
+            if (actions.isEmpty()) {
+                continue;
+            }
+            List<AzureBlob> blobs = null;
+            for (AzureBlobAction action : actions) {
+                if (action.getIndividualBlobs() != null
+                        && Constants.BLOB_STORAGE.equals(action.getStorageType())
+                        && containerName.equals(action.getContainerName())
+                        && StringUtils.equals(getStorageCredentialId(), action.getStorageCredentialId())) {
+                    if (blobs == null) {
+                        blobs = new ArrayList<>();
+                    }
+                    synchronized (action.getIndividualBlobs()) {
+                        blobs.addAll(action.getIndividualBlobs());
+                    }
+                }
+            }
+            return blobs;
+        }
+        return null;
+    }
+
     public UploadType getArtifactUploadType() {
         return computeArtifactUploadType(this.uploadZips, this.doNotUploadIndividualFiles);
     }
@@ -447,11 +668,28 @@ public class WAStoragePublisher extends Recorder implements SimpleBuildStep {
         serviceData.setPubAccessible(pubAccessible);
         serviceData.setCleanUpContainerOrShare(cleanUpContainerOrShare);
         serviceData.setCleanUpVirtualPath(cleanUpVirtualPath);
+        serviceData.setReplaceVirtualPath(replaceVirtualPath);
         serviceData.setUploadType(getArtifactUploadType());
         serviceData.setAzureBlobMetadata(metadata);
         serviceData.setOnlyUploadModifiedArtifacts(onlyUploadModifiedArtifacts);
         serviceData.setCredentialsId(getStorageCredentialId());
         serviceData.setVerbose(isVerbose());
+        serviceData.setSkipUnchangedArtifacts(skipUnchangedArtifacts);
+        serviceData.setChecksumAlgorithm(ChecksumAlgorithm.fromString(checksumAlgorithm));
+        serviceData.setContentAddressed(contentAddressed
+                && Constants.BLOB_STORAGE.equalsIgnoreCase(getStorageType()));
+        if (compressArtifacts && Constants.BLOB_STORAGE.equalsIgnoreCase(getStorageType())) {
+            serviceData.setCompression(new UploadCompression(
+                    Utils.replaceMacro(Util.fixNull(compressIncludes), envVars)));
+        }
+        if (incrementalUpload && Constants.BLOB_STORAGE.equalsIgnoreCase(getStorageType())) {
+            serviceData.setPreviousBlobs(getPreviousBlobs(run, expContainerName));
+        }
+        serviceData.setTransferTuning(new TransferTuning(singleShotThresholdMB, blockSizeMB, blockConcurrency));
+        serviceData.setArchiveParts(archiveParts);
+        serviceData.setArchiveFormat(ArchiveFormat.fromString(archiveFormat));
+        serviceData.setArchiveCompressionLevel(archiveCompressionLevel);
+        serviceData.setReproducibleArchive(reproducibleArchive);
         // Resolve virtual path
         String expVP = Utils.replaceMacro(Util.fixNull(virtualPath), envVars);
 
@@ -469,7 +707,7 @@ public class WAStoragePublisher extends Recorder implements SimpleBuildStep {
 
         final UploadService service = getUploadService(serviceData);
         try {
-            int filesCount = service.execute();
+            int filesCount = service.executeCountingRequests();
 
             // Mark build unstable if no files are uploaded and the user
             // doesn't want the build not to fail in that case.
@@ -480,8 +718,13 @@ public class WAStoragePublisher extends Recorder implements SimpleBuildStep {
                 }
             } else {
                 AzureBlob zipArchiveBlob = null;
+                List<AzureBlob> archiveParts = null;
                 if (getArtifactUploadType() != UploadType.INDIVIDUAL) {
-                    zipArchiveBlob = serviceData.getArchiveBlobs().get(0);
+                    if (serviceData.getArchiveParts() > 1) {
+                        archiveParts = new ArrayList<>(serviceData.getArchiveBlobs());
+                    } else {
+                        zipArchiveBlob = serviceData.getArchiveBlobs().get(0);
+                    }
                 }
 
                 List<AzureBlob> individualBlobs = serviceData.getIndividualBlobs();
@@ -491,7 +734,7 @@ public class WAStoragePublisher extends Recorder implements SimpleBuildStep {
                     existActionIndividualBlobs.addAll(individualBlobs);
                 } else {
                     run.addAction(new AzureBlobAction(expContainerName, expShareName, getStorageType(),
-                            individualBlobs, zipArchiveBlob, allowAnonymousAccess,
+                            individualBlobs, zipArchiveBlob, archiveParts, allowAnonymousAccess,
                             getStorageCredentialId()));
                 }
             }
@@ -564,7 +807,7 @@ public class WAStoragePublisher extends Recorder implements SimpleBuildStep {
 
         // Check if storage account credentials are valid
         try {
-            AzureUtils.validateStorageAccount(storageAccount);
+            AzureUtils.validateStorageAccount(storageAccount, true);
         } catch (Exception e) {
             LOGGER.log(Level.SEVERE, e.getMessage(), e);
             listener.getLogger().println(Messages.Client_SA_val_fail());
@@ -774,6 +1017,22 @@ public class WAStoragePublisher extends Recorder implements SimpleBuildStep {
             return Utils.getDefaultBlobURL();
         }
 
+        public ListBoxModel doFillChecksumAlgorithmItems() {
+            ListBoxModel m = new ListBoxModel();
+            for (ChecksumAlgorithm algorithm : ChecksumAlgorithm.values()) {
+                m.add(algorithm.name());
+            }
+            return m;
+        }
+
+        public ListBoxModel doFillArchiveFormatItems() {
+            ListBoxModel m = new ListBoxModel();
+            for (ArchiveFormat format : ArchiveFormat.values()) {
+                m.add(format.getExtension(), format.name());
+            }
+            return m;
+        }
+
         public ListBoxModel doFillStorageAccNameItems() {
             ListBoxModel m = new ListBoxModel();
             StorageAccountInfo[] storageAccounts = getStorageAccounts();
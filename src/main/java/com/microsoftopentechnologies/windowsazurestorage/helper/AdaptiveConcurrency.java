@@ -0,0 +1,171 @@
+/*
+ Copyright 2016 Microsoft, Inc.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package com.microsoftopentechnologies.windowsazurestorage.helper;
+
+import com.azure.core.util.Context;
+import com.microsoftopentechnologies.windowsazurestorage.Messages;
+import org.apache.http.HttpStatus;
+
+import java.net.SocketTimeoutException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Consumer;
+
+/**
+ * Adapts the concurrency of a {@link TransferScheduler.Lane} to what the storage account can take, by additive
+ * increase and multiplicative decrease.
+ * <p>
+ * Every request made with {@link #context()} reports back through {@link ConcurrencyFeedbackPolicy}. The limit
+ * grows by one after a full window of successful requests whose latency stays close to the best window seen so
+ * far, and is halved when the service throttles (503, 500 or 429) or a request times out.
+ */
+public final class AdaptiveConcurrency {
+    /**
+     * Key of the {@link Context} entry which carries the controller of a request.
+     */
+    public static final String CONTEXT_KEY = AdaptiveConcurrency.class.getName();
+
+    private static final int MIN_LIMIT = 1;
+    private static final int LATENCY_TOLERANCE = 2;
+    private static final long DECREASE_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+    private static final int HTTP_TOO_MANY_REQUESTS = 429;
+
+    private final TransferScheduler.Lane lane;
+    private final int maxLimit;
+    private final Consumer<String> log;
+    private final Context context;
+
+    private int limit;
+    private int windowCount;
+    private long windowLatency;
+    private long bestLatency = Long.MAX_VALUE;
+    private long lastDecrease;
+    private boolean decreased;
+
+    /**
+     * @param lane     The lane whose concurrency is adapted. Its current limit is the starting point.
+     * @param maxLimit The highest limit to grow to.
+     * @param log      Receives a message every time the limit changes.
+     */
+    public AdaptiveConcurrency(TransferScheduler.Lane lane, int maxLimit, Consumer<String> log) {
+        this.lane = lane;
+        this.limit = lane.getMaxConcurrency();
+        this.maxLimit = Math.max(limit, maxLimit);
+        this.log = log;
+        // the requests are also counted into the stats of the step which creates the lane
+        RequestStats stats = RequestStats.current();
+        Context feedback = new Context(CONTEXT_KEY, this);
+        this.context = stats == null ? feedback : stats.addTo(feedback);
+    }
+
+    /**
+     * Creates a new lane of the {@link TransferScheduler} of this JVM, whose concurrency is adapted between 1
+     * and the global cap of the scheduler.
+     *
+     * @param initialLimit The concurrency to start with.
+     * @param log          Receives the initial limit and every change of it.
+     * @return the controller of the new lane
+     */
+    public static AdaptiveConcurrency newLane(int initialLimit, Consumer<String> log) {
+        TransferScheduler scheduler = TransferScheduler.get();
+        int limit = Math.min(initialLimit, scheduler.getMaxConcurrency());
+        AdaptiveConcurrency concurrency = new AdaptiveConcurrency(scheduler.newLane(limit),
+                scheduler.getMaxConcurrency(), log);
+        log.accept(Messages.AdaptiveConcurrency_initial(limit, concurrency.maxLimit));
+        return concurrency;
+    }
+
+    public TransferScheduler.Lane getLane() {
+        return lane;
+    }
+
+    /**
+     * Gets the context to pass to the storage SDK calls whose requests should drive the limit.
+     */
+    public Context context() {
+        return context;
+    }
+
+    public synchronized int getLimit() {
+        return limit;
+    }
+
+    /**
+     * Records the response of a single request.
+     *
+     * @param statusCode   HTTP status of the response.
+     * @param latencyNanos Time from sending the request to receiving the response.
+     */
+    public void onResponse(int statusCode, long latencyNanos) {
+        if (statusCode == HttpStatus.SC_SERVICE_UNAVAILABLE
+                || statusCode == HttpStatus.SC_INTERNAL_SERVER_ERROR
+                || statusCode == HTTP_TOO_MANY_REQUESTS) {
+            onThrottled("HTTP " + statusCode);
+        } else if (statusCode < HttpStatus.SC_BAD_REQUEST) {
+            onSuccess(latencyNanos);
+        }
+    }
+
+    /**
+     * Records a request which failed without a response.
+     */
+    public void onError(Throwable error) {
+        for (Throwable cause = error; cause != null; cause = cause.getCause()) {
+            if (cause instanceof TimeoutException || cause instanceof SocketTimeoutException) {
+                onThrottled("timeout");
+                return;
+            }
+        }
+    }
+
+    private synchronized void onSuccess(long latencyNanos) {
+        windowCount++;
+        windowLatency += latencyNanos;
+        if (windowCount < limit) {
+            return;
+        }
+
+        long averageLatency = windowLatency / windowCount;
+        windowCount = 0;
+        windowLatency = 0;
+        bestLatency = Math.min(bestLatency, averageLatency);
+        if (limit < maxLimit && averageLatency <= bestLatency * LATENCY_TOLERANCE) {
+            setLimit(limit + 1, "healthy");
+        }
+    }
+
+    private synchronized void onThrottled(String reason) {
+        // requests sent before the last decrease report their throttling late, don't count them twice.
+        long now = System.nanoTime();
+        if (decreased && now - lastDecrease < DECREASE_INTERVAL_NANOS) {
+            return;
+        }
+        decreased = true;
+        lastDecrease = now;
+        windowCount = 0;
+        windowLatency = 0;
+        if (limit > MIN_LIMIT) {
+            setLimit(Math.max(MIN_LIMIT, limit / 2), reason);
+        }
+    }
+
+    private void setLimit(int newLimit, String reason) {
+        int oldLimit = limit;
+        limit = newLimit;
+        lane.setMaxConcurrency(newLimit);
+        log.accept(Messages.AdaptiveConcurrency_changed(oldLimit, newLimit, reason));
+    }
+}
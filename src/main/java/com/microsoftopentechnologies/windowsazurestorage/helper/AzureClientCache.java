@@ -0,0 +1,161 @@
+/*
+ Copyright 2016 Microsoft, Inc.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package com.microsoftopentechnologies.windowsazurestorage.helper;
+
+import com.azure.core.credential.AzureSasCredential;
+import com.azure.core.http.HttpClient;
+import com.azure.storage.blob.BlobContainerClient;
+import com.azure.storage.blob.BlobServiceClient;
+import com.azure.storage.blob.BlobServiceClientBuilder;
+import com.azure.storage.blob.BlobUrlParts;
+import com.azure.storage.file.share.ShareClient;
+import com.azure.storage.file.share.ShareServiceClient;
+import com.azure.storage.file.share.ShareServiceClientBuilder;
+import hudson.ProxyConfiguration;
+import io.jenkins.plugins.azuresdk.HttpClientRetriever;
+
+import java.net.URI;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Caches Azure clients per JVM, so that the HTTP pipeline and its connection pool are built once and shared by
+ * every file of a transfer, and by later transfers to the same storage account with the same SAS.
+ * <p>
+ * The cache is used on agents, where the SAS and the proxy configuration are sent by the controller.
+ */
+public final class AzureClientCache {
+    private static final int MAX_ENTRIES = 64;
+    private static final long EXPIRY_MILLIS = TimeUnit.MINUTES.toMillis(30);
+    private static final float LOAD_FACTOR = 0.75f;
+
+    private static final Cache<HttpClient> HTTP_CLIENTS = new Cache<>();
+    private static final Cache<BlobServiceClient> BLOB_SERVICE_CLIENTS = new Cache<>();
+    private static final Cache<ShareServiceClient> SHARE_SERVICE_CLIENTS = new Cache<>();
+
+    private AzureClientCache() {
+    }
+
+    /**
+     * Gets a HTTP client which is shared by every client going through the same proxy.
+     *
+     * @param proxy Proxy configuration of the Jenkins controller, may be <code>null</code>.
+     * @return the HTTP client
+     */
+    public static HttpClient getHttpClient(ProxyConfiguration proxy) {
+        return HTTP_CLIENTS.get(proxyKey(proxy), () -> HttpClientRetriever.get(proxy));
+    }
+
+    /**
+     * Gets a client for the container of a blob, authenticated by a container SAS.
+     *
+     * @param proxy   Proxy configuration of the Jenkins controller, may be <code>null</code>.
+     * @param blobUrl The url of any blob in the container.
+     * @param sas     A SAS which is valid for the container.
+     * @return the container client
+     */
+    public static BlobContainerClient getBlobContainerClient(ProxyConfiguration proxy, String blobUrl, String sas) {
+        BlobUrlParts blobUrlParts = BlobUrlParts.parse(blobUrl);
+        List<Object> key = Arrays.asList(blobUrlParts.getScheme(), blobUrlParts.getHost(),
+                blobUrlParts.getAccountName(), sas, proxyKey(proxy));
+
+        BlobServiceClient blobServiceClient = BLOB_SERVICE_CLIENTS.get(key, () -> new BlobServiceClientBuilder()
+                .credential(new AzureSasCredential(sas))
+                .httpClient(getHttpClient(proxy))
+                .addPolicy(ConcurrencyFeedbackPolicy.INSTANCE)
+                .addPolicy(RequestCountingPolicy.BIND)
+                .addPolicy(RequestCountingPolicy.COUNT)
+                .endpoint(blobUrl)
+                .buildClient());
+        return blobServiceClient.getBlobContainerClient(blobUrlParts.getBlobContainerName());
+    }
+
+    /**
+     * Gets a client for the share of a file, authenticated by a share SAS.
+     *
+     * @param proxy   Proxy configuration of the Jenkins controller, may be <code>null</code>.
+     * @param fileUrl The url of any file in the share.
+     * @param sas     A SAS which is valid for the share.
+     * @return the share client
+     */
+    public static ShareClient getShareClient(ProxyConfiguration proxy, String fileUrl, String sas) {
+        URI uri = URI.create(fileUrl);
+        String endpoint = uri.getScheme() + "://" + uri.getRawAuthority();
+        String shareName = uri.getPath().substring(1).split("/", 2)[0];
+        List<Object> key = Arrays.asList(endpoint, sas, proxyKey(proxy));
+
+        ShareServiceClient shareServiceClient = SHARE_SERVICE_CLIENTS.get(key, () -> new ShareServiceClientBuilder()
+                .credential(new AzureSasCredential(sas))
+                .httpClient(getHttpClient(proxy))
+                .addPolicy(ConcurrencyFeedbackPolicy.INSTANCE)
+                .addPolicy(RequestCountingPolicy.BIND)
+                .addPolicy(RequestCountingPolicy.COUNT)
+                .endpoint(endpoint)
+                .buildClient());
+        return shareServiceClient.getShareClient(shareName);
+    }
+
+    private static List<Object> proxyKey(ProxyConfiguration proxy) {
+        if (proxy == null) {
+            return null;
+        }
+        return Arrays.asList(proxy.name, proxy.port, proxy.getUserName(), proxy.getSecretPassword(),
+                proxy.getNoProxyHost());
+    }
+
+    /**
+     * A small LRU cache whose entries expire a fixed time after they were created.
+     */
+    private static final class Cache<T> {
+        private final Map<Object, Entry<T>> entries = new LinkedHashMap<>(MAX_ENTRIES, LOAD_FACTOR, true);
+
+        synchronized T get(Object key, Supplier<T> factory) {
+            long now = System.currentTimeMillis();
+            Entry<T> entry = entries.get(key);
+            if (entry == null || now - entry.created > EXPIRY_MILLIS) {
+                entry = new Entry<>(factory.get(), now);
+                entries.put(key, entry);
+                evict(now);
+            }
+            return entry.value;
+        }
+
+        private void evict(long now) {
+            Iterator<Entry<T>> iterator = entries.values().iterator();
+            while (iterator.hasNext()) {
+                Entry<T> entry = iterator.next();
+                if (entries.size() > MAX_ENTRIES || now - entry.created > EXPIRY_MILLIS) {
+                    iterator.remove();
+                }
+            }
+        }
+    }
+
+    private static final class Entry<T> {
+        private final T value;
+        private final long created;
+
+        Entry(T value, long created) {
+            this.value = value;
+            this.created = created;
+        }
+    }
+}
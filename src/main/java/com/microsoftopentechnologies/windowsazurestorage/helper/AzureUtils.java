@@ -23,6 +23,7 @@ import com.azure.storage.blob.BlobServiceClientBuilder;
 import com.azure.storage.blob.models.BlobAccessPolicy;
 import com.azure.storage.blob.models.BlobSignedIdentifier;
 import com.azure.storage.blob.models.PublicAccessType;
+import com.azure.storage.blob.sas.BlobContainerSasPermission;
 import com.azure.storage.blob.sas.BlobSasPermission;
 import com.azure.storage.blob.sas.BlobServiceSasSignatureValues;
 import com.azure.storage.common.StorageSharedKeyCredential;
@@ -33,18 +34,25 @@ import com.azure.storage.file.share.ShareFileClient;
 import com.azure.storage.file.share.ShareServiceClient;
 import com.azure.storage.file.share.ShareServiceClientBuilder;
 import com.azure.storage.file.share.sas.ShareFileSasPermission;
+import com.azure.storage.file.share.sas.ShareSasPermission;
 import com.azure.storage.file.share.sas.ShareServiceSasSignatureValues;
 import com.microsoftopentechnologies.windowsazurestorage.Messages;
 import com.microsoftopentechnologies.windowsazurestorage.beans.StorageAccountInfo;
 import com.microsoftopentechnologies.windowsazurestorage.exceptions.WAStorageException;
 import io.jenkins.plugins.azuresdk.HttpClientRetriever;
+import org.apache.commons.codec.digest.DigestUtils;
 
 import java.io.IOException;
 import java.net.MalformedURLException;
 import java.net.URISyntaxException;
 import java.time.Duration;
 import java.time.OffsetDateTime;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 
 public final class AzureUtils {
     private static final String TEST_CNT_NAME = "testcheckfromjenkins";
@@ -53,6 +61,12 @@ public final class AzureUtils {
     private static final String TABLE = "table";
 
     private static final int ONE_WEEK = 7;
+    private static final long VALIDATION_EXPIRY_MILLIS = TimeUnit.HOURS.toMillis(1);
+
+    /**
+     * Time of the last successful validation by storage account, endpoint and hash of the key.
+     */
+    private static final Map<List<String>, Long> VALIDATED_ACCOUNTS = new ConcurrentHashMap<>();
 
     /**
      * This method validates Storage Account credentials by checking for a dummy
@@ -76,6 +90,33 @@ public final class AzureUtils {
         return true;
     }
 
+    /**
+     * Validates Storage Account credentials like {@link #validateStorageAccount(StorageAccountInfo)}, unless the
+     * same credentials were validated successfully within the last hour. Builds use it so that they don't probe
+     * the storage account on every run.
+     *
+     * @param storageAccount
+     * @param allowCached    Whether a recent successful validation is enough.
+     * @return true if valid
+     * @throws WAStorageException
+     */
+    public static boolean validateStorageAccount(
+            final StorageAccountInfo storageAccount, boolean allowCached) throws WAStorageException {
+        if (storageAccount == null) {
+            return validateStorageAccount(null);
+        }
+        List<String> key = Arrays.asList(storageAccount.getStorageAccName(), storageAccount.getBlobEndPointURL(),
+                DigestUtils.sha256Hex(String.valueOf(storageAccount.getStorageAccountKey())));
+        long now = System.currentTimeMillis();
+        Long validated = VALIDATED_ACCOUNTS.get(key);
+        if (allowCached && validated != null && now - validated < VALIDATION_EXPIRY_MILLIS) {
+            return true;
+        }
+        validateStorageAccount(storageAccount);
+        VALIDATED_ACCOUNTS.put(key, now);
+        return true;
+    }
+
     public static BlobServiceClient getCloudStorageAccount(final StorageAccountInfo storageAccount)
             throws MalformedURLException, URISyntaxException {
         return getCloudStorageAccount(storageAccount, new RequestRetryOptions());
@@ -87,6 +128,9 @@ public final class AzureUtils {
                 .credential(new StorageSharedKeyCredential(storageAccount.getStorageAccName(),
                         storageAccount.getStorageAccountKey()))
                 .httpClient(HttpClientRetriever.get())
+                .addPolicy(ConcurrencyFeedbackPolicy.INSTANCE)
+                .addPolicy(RequestCountingPolicy.BIND)
+                .addPolicy(RequestCountingPolicy.COUNT)
                 .endpoint(storageAccount.getBlobEndPointURL()
                         .replace("blob", "file")) // TODO add file endpoint
                 .buildClient();
@@ -98,6 +142,9 @@ public final class AzureUtils {
                 .credential(new StorageSharedKeyCredential(storageAccount.getStorageAccName(),
                         storageAccount.getStorageAccountKey()))
                 .httpClient(HttpClientRetriever.get())
+                .addPolicy(ConcurrencyFeedbackPolicy.INSTANCE)
+                .addPolicy(RequestCountingPolicy.BIND)
+                .addPolicy(RequestCountingPolicy.COUNT)
                 .endpoint(storageAccount.getBlobEndPointURL())
                 .retryOptions(retryOptions)
                 .buildClient();
@@ -160,6 +207,49 @@ public final class AzureUtils {
         return blob.generateSas(sasSignatureValues);
     }
 
+    /**
+     * Generates a SAS token which is valid for every blob in a container. The token is signed locally with the
+     * shared key, no request is sent to the storage service.
+     *
+     * @param storageAccount
+     * @param containerName
+     * @param permissions
+     * @return SAS token
+     */
+    public static String generateContainerSASURL(
+            StorageAccountInfo storageAccount,
+            String containerName,
+            BlobContainerSasPermission permissions) throws MalformedURLException, URISyntaxException {
+        BlobContainerClient container = getCloudStorageAccount(storageAccount).getBlobContainerClient(containerName);
+
+        BlobServiceSasSignatureValues sasSignatureValues =
+                new BlobServiceSasSignatureValues(generateExpiryDate(), permissions);
+        return container.generateSas(sasSignatureValues);
+    }
+
+    /**
+     * Generates a SAS token which is only valid for one blob. Like {@link #generateContainerSASURL}, the token is
+     * signed locally.
+     *
+     * @param storageAccount
+     * @param containerName
+     * @param blobName
+     * @param permissions
+     * @return SAS token
+     */
+    public static String generateLocalBlobSASURL(
+            StorageAccountInfo storageAccount,
+            String containerName,
+            String blobName,
+            BlobSasPermission permissions) throws MalformedURLException, URISyntaxException {
+        BlobClient blob = getCloudStorageAccount(storageAccount).getBlobContainerClient(containerName)
+                .getBlobClient(blobName);
+
+        BlobServiceSasSignatureValues sasSignatureValues =
+                new BlobServiceSasSignatureValues(generateExpiryDate(), permissions);
+        return blob.generateSas(sasSignatureValues);
+    }
+
     /**
      * Generates SAS URL for file item in Azure storage File Share.
      *
@@ -188,6 +278,26 @@ public final class AzureUtils {
         return cloudFile.generateSas(sasSignatureValues);
     }
 
+    /**
+     * Generates a SAS token which is valid for every file in a share. The token is signed locally with the
+     * shared key, no request is sent to the storage service.
+     *
+     * @param storageAccount
+     * @param shareName
+     * @param permissions
+     * @return SAS token
+     */
+    public static String generateShareSASURL(
+            StorageAccountInfo storageAccount,
+            String shareName,
+            ShareSasPermission permissions) throws MalformedURLException, URISyntaxException {
+        ShareClient fileShare = getShareClient(storageAccount).getShareClient(shareName);
+
+        ShareServiceSasSignatureValues sasSignatureValues =
+                new ShareServiceSasSignatureValues(generateExpiryDate(), permissions);
+        return fileShare.generateSas(sasSignatureValues);
+    }
+
     private static OffsetDateTime generateExpiryDate() {
         return OffsetDateTime.now().plusHours(1);
     }
@@ -0,0 +1,57 @@
+/*
+ Copyright 2016 Microsoft, Inc.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package com.microsoftopentechnologies.windowsazurestorage.helper;
+
+import com.azure.core.http.HttpPipelineCallContext;
+import com.azure.core.http.HttpPipelineNextPolicy;
+import com.azure.core.http.HttpPipelinePosition;
+import com.azure.core.http.HttpResponse;
+import com.azure.core.http.policy.HttpPipelinePolicy;
+import reactor.core.publisher.Mono;
+
+import java.util.Optional;
+
+/**
+ * Reports the outcome of every attempt of a request to the {@link AdaptiveConcurrency} found in its context.
+ * Requests without one pass through untouched.
+ */
+public final class ConcurrencyFeedbackPolicy implements HttpPipelinePolicy {
+    public static final ConcurrencyFeedbackPolicy INSTANCE = new ConcurrencyFeedbackPolicy();
+
+    private ConcurrencyFeedbackPolicy() {
+    }
+
+    @Override
+    public Mono<HttpResponse> process(HttpPipelineCallContext context, HttpPipelineNextPolicy next) {
+        Optional<Object> data = context.getData(AdaptiveConcurrency.CONTEXT_KEY);
+        if (!data.isPresent()) {
+            return next.process();
+        }
+
+        AdaptiveConcurrency concurrency = (AdaptiveConcurrency) data.get();
+        long start = System.nanoTime();
+        return next.process()
+                .doOnSuccess(response -> concurrency.onResponse(response.getStatusCode(),
+                        System.nanoTime() - start))
+                .doOnError(concurrency::onError);
+    }
+
+    @Override
+    public HttpPipelinePosition getPipelinePosition() {
+        // after the retry policy, so that every throttled attempt is seen.
+        return HttpPipelinePosition.PER_RETRY;
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ Copyright 2016 Microsoft, Inc.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.microsoftopentechnologies.windowsazurestorage.helper;
+
+import java.security.MessageDigest;
+
+/**
+ * CRC-64/XZ (ECMA-182 polynomial, reflected) as a {@link MessageDigest}, so that it can be computed by the same
+ * streams as the cryptographic digests. The digest is the CRC in big-endian byte order.
+ */
+public final class Crc64Digest extends MessageDigest {
+    private static final long POLYNOMIAL = 0xC96C5795D7870F42L;
+    private static final int BYTE_MASK = 0xFF;
+    private static final int BITS_PER_BYTE = 8;
+    private static final int LENGTH = 8;
+    private static final long[] TABLE = new long[BYTE_MASK + 1];
+
+    static {
+        for (int n = 0; n <= BYTE_MASK; n++) {
+            long crc = n;
+            for (int k = 0; k < BITS_PER_BYTE; k++) {
+                crc = (crc & 1) == 0 ? crc >>> 1 : (crc >>> 1) ^ POLYNOMIAL;
+            }
+            TABLE[n] = crc;
+        }
+    }
+
+    private long crc = -1L;
+
+    public Crc64Digest() {
+        super("CRC-64");
+    }
+
+    @Override
+    protected void engineUpdate(byte input) {
+        crc = TABLE[(int) (crc ^ input) & BYTE_MASK] ^ (crc >>> BITS_PER_BYTE);
+    }
+
+    @Override
+    protected void engineUpdate(byte[] input, int offset, int len) {
+        long value = crc;
+        for (int i = offset; i < offset + len; i++) {
+            value = TABLE[(int) (value ^ input[i]) & BYTE_MASK] ^ (value >>> BITS_PER_BYTE);
+        }
+        crc = value;
+    }
+
+    @Override
+    protected int engineGetDigestLength() {
+        return LENGTH;
+    }
+
+    @Override
+    protected byte[] engineDigest() {
+        long value = ~crc;
+        engineReset();
+        byte[] digest = new byte[LENGTH];
+        for (int i = LENGTH - 1; i >= 0; i--) {
+            digest[i] = (byte) value;
+            value >>>= BITS_PER_BYTE;
+        }
+        return digest;
+    }
+
+    @Override
+    protected void engineReset() {
+        crc = -1L;
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ Copyright 2016 Microsoft, Inc.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package com.microsoftopentechnologies.windowsazurestorage.helper;
+
+import com.azure.core.http.HttpMethod;
+import com.azure.core.http.HttpPipelineCallContext;
+import com.azure.core.http.HttpPipelineNextPolicy;
+import com.azure.core.http.HttpPipelinePosition;
+import com.azure.core.http.HttpRequest;
+import com.azure.core.http.HttpResponse;
+import com.azure.core.http.policy.HttpPipelinePolicy;
+import reactor.core.publisher.Mono;
+
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * Counts every attempt of a request into the {@link RequestStats} of its call.
+ * <p>
+ * Both instances go into the pipeline. {@link #BIND} runs once per call, on the thread which makes it, and binds
+ * the stats opened on that thread to the call unless its context already carries some. {@link #COUNT} runs after
+ * the retry policy, so every retried attempt, which is billed like any other request, is counted too.
+ */
+public final class RequestCountingPolicy implements HttpPipelinePolicy {
+    public static final RequestCountingPolicy BIND = new RequestCountingPolicy(HttpPipelinePosition.PER_CALL);
+    public static final RequestCountingPolicy COUNT = new RequestCountingPolicy(HttpPipelinePosition.PER_RETRY);
+
+    /**
+     * Operations of the blob and file services by HTTP method and <code>comp</code> query parameter.
+     */
+    private static final Map<String, String> OPERATIONS = new HashMap<>();
+
+    static {
+        OPERATIONS.put("PUT block", "PutBlock");
+        OPERATIONS.put("PUT blocklist", "PutBlockList");
+        OPERATIONS.put("PUT range", "PutRange");
+        OPERATIONS.put("PUT metadata", "SetMetadata");
+        OPERATIONS.put("PUT properties", "SetProperties");
+        OPERATIONS.put("PUT acl", "SetAcl");
+        OPERATIONS.put("PUT tier", "SetTier");
+        OPERATIONS.put("PUT lease", "Lease");
+        OPERATIONS.put("PUT snapshot", "Snapshot");
+        OPERATIONS.put("GET list", "List");
+        OPERATIONS.put("GET blocklist", "GetBlockList");
+        OPERATIONS.put("GET rangelist", "ListRanges");
+        OPERATIONS.put("GET metadata", "GetMetadata");
+        OPERATIONS.put("GET properties", "GetProperties");
+        OPERATIONS.put("GET acl", "GetAcl");
+        OPERATIONS.put("POST batch", "Batch");
+    }
+
+    private final HttpPipelinePosition position;
+
+    private RequestCountingPolicy(HttpPipelinePosition position) {
+        this.position = position;
+    }
+
+    @Override
+    public Mono<HttpResponse> process(HttpPipelineCallContext context, HttpPipelineNextPolicy next) {
+        Optional<Object> data = context.getData(RequestStats.CONTEXT_KEY);
+        if (position == HttpPipelinePosition.PER_CALL) {
+            RequestStats stats = RequestStats.current();
+            if (!data.isPresent() && stats != null) {
+                // later attempts may run on other threads, they find the stats in the context
+                context.setData(RequestStats.CONTEXT_KEY, stats);
+            }
+        } else if (data.isPresent()) {
+            ((RequestStats) data.get()).record(getOperation(context.getHttpRequest()));
+        }
+        return next.process();
+    }
+
+    @Override
+    public HttpPipelinePosition getPipelinePosition() {
+        return position;
+    }
+
+    /**
+     * Names the storage operation of a request, after the REST API of the blob and file services.
+     */
+    static String getOperation(HttpRequest request) {
+        String comp = null;
+        String restype = null;
+        String query = request.getUrl().getQuery();
+        if (query != null) {
+            for (String parameter : query.split("&")) {
+                String[] pair = parameter.split("=", 2);
+                if (pair.length != 2) {
+                    continue;
+                }
+                if ("comp".equalsIgnoreCase(pair[0])) {
+                    comp = pair[1].toLowerCase(Locale.ENGLISH);
+                } else if ("restype".equalsIgnoreCase(pair[0])) {
+                    restype = pair[1].toLowerCase(Locale.ENGLISH);
+                }
+            }
+        }
+
+        HttpMethod method = request.getHttpMethod();
+        if (comp != null) {
+            String key = method + " " + comp;
+            return OPERATIONS.getOrDefault(key, key);
+        }
+        switch (method) {
+            case PUT:
+                if (restype != null) {
+                    return "Create" + Character.toUpperCase(restype.charAt(0)) + restype.substring(1);
+                }
+                if (request.getHeaders().getValue("x-ms-copy-source") != null) {
+                    return "CopyBlob";
+                }
+                if ("file".equalsIgnoreCase(request.getHeaders().getValue("x-ms-type"))) {
+                    return "CreateFile";
+                }
+                return "PutBlob";
+            case GET:
+                return restype == null ? "Get" : "GetProperties";
+            case HEAD:
+                return "GetProperties";
+            case DELETE:
+                return "Delete";
+            default:
+                return method.toString();
+        }
+    }
+}
@@ -0,0 +1,180 @@
+/*
+ Copyright 2016 Microsoft, Inc.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package com.microsoftopentechnologies.windowsazurestorage.helper;
+
+import com.azure.core.util.Context;
+
+import java.io.Serializable;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts the storage requests of an upload or download by operation, such as PutBlob or PutRange.
+ * <p>
+ * Requests are counted by {@link RequestCountingPolicy} into the stats found in the {@link Context} of the call,
+ * or else into the stats {@link #open() opened} on the thread which makes the call. The stats are serializable,
+ * so the requests made on an agent can be sent back to the controller.
+ */
+public final class RequestStats implements Serializable {
+    private static final long serialVersionUID = 2781746128713457912L;
+
+    /**
+     * Key of the {@link Context} entry which carries the stats of a request.
+     */
+    public static final String CONTEXT_KEY = RequestStats.class.getName();
+
+    private static final ThreadLocal<RequestStats> CURRENT = new ThreadLocal<>();
+
+    private final ConcurrentHashMap<String, AtomicLong> counts = new ConcurrentHashMap<>();
+
+    /**
+     * Gets the stats opened on this thread.
+     *
+     * @return the stats, or <code>null</code> if requests of this thread are not counted
+     */
+    public static RequestStats current() {
+        return CURRENT.get();
+    }
+
+    /**
+     * Gets a context which carries the stats opened on this thread, for calls whose requests may be sent from
+     * other threads.
+     */
+    public static Context currentContext() {
+        RequestStats stats = CURRENT.get();
+        return stats == null ? Context.NONE : stats.addTo(Context.NONE);
+    }
+
+    /**
+     * Wraps a task so that it counts its requests into the stats opened on this thread, whichever thread runs it.
+     */
+    public static Runnable propagate(Runnable task) {
+        RequestStats stats = CURRENT.get();
+        if (stats == null) {
+            return task;
+        }
+        return () -> {
+            try (Scope ignored = stats.open()) {
+                task.run();
+            }
+        };
+    }
+
+    /**
+     * Wraps a task so that it counts its requests into these stats, whichever thread runs it.
+     */
+    public <V> Callable<V> wrap(Callable<V> task) {
+        return () -> {
+            try (Scope ignored = open()) {
+                return task.call();
+            }
+        };
+    }
+
+    /**
+     * Counts the requests of this thread into these stats until the scope is closed.
+     */
+    public Scope open() {
+        Scope scope = new Scope(CURRENT.get());
+        CURRENT.set(this);
+        return scope;
+    }
+
+    /**
+     * Adds these stats to a context, the requests of the calls made with the new context are counted here.
+     */
+    public Context addTo(Context context) {
+        return context.addData(CONTEXT_KEY, this);
+    }
+
+    public void record(String operation) {
+        counts.computeIfAbsent(operation, key -> new AtomicLong()).incrementAndGet();
+    }
+
+    /**
+     * Adds the counts of other stats, such as the ones sent back by an agent.
+     *
+     * @param other The stats to add, may be <code>null</code>.
+     */
+    public void add(RequestStats other) {
+        if (other == null) {
+            return;
+        }
+        for (Map.Entry<String, Long> entry : other.getCounts().entrySet()) {
+            counts.computeIfAbsent(entry.getKey(), key -> new AtomicLong()).addAndGet(entry.getValue());
+        }
+    }
+
+    public long get(String operation) {
+        AtomicLong count = counts.get(operation);
+        return count == null ? 0 : count.get();
+    }
+
+    public long getTotal() {
+        long total = 0;
+        for (AtomicLong count : counts.values()) {
+            total += count.get();
+        }
+        return total;
+    }
+
+    /**
+     * Gets the counts by operation, sorted by operation name.
+     */
+    public SortedMap<String, Long> getCounts() {
+        SortedMap<String, Long> snapshot = new TreeMap<>();
+        for (Map.Entry<String, AtomicLong> entry : counts.entrySet()) {
+            snapshot.put(entry.getKey(), entry.getValue().get());
+        }
+        return snapshot;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        for (Map.Entry<String, Long> entry : getCounts().entrySet()) {
+            if (builder.length() > 0) {
+                builder.append(", ");
+            }
+            builder.append(entry.getKey()).append(' ').append(entry.getValue());
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Restores the stats which were opened on the thread before, when closed.
+     */
+    public static final class Scope implements AutoCloseable {
+        private final RequestStats previous;
+
+        private Scope(RequestStats previous) {
+            this.previous = previous;
+        }
+
+        @Override
+        public void close() {
+            if (previous == null) {
+                CURRENT.remove();
+            } else {
+                CURRENT.set(previous);
+            }
+        }
+    }
+}
@@ -0,0 +1,316 @@
+/*
+ Copyright 2016 Microsoft, Inc.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package com.microsoftopentechnologies.windowsazurestorage.helper;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs the transfers of every upload and download in a JVM, on the controller as well as on agents.
+ * <p>
+ * The number of concurrent transfers in the JVM is capped by the system property
+ * <code>com.microsoftopentechnologies.windowsazurestorage.helper.TransferScheduler.maxConcurrency</code>.
+ * Every build step gets its own {@link Lane}, and free transfer slots are handed to the lanes in turn, so one
+ * large publish cannot starve the others. Threads are only started when there is work and stop when idle.
+ */
+public final class TransferScheduler {
+    private static final Logger LOGGER = Logger.getLogger(TransferScheduler.class.getName());
+    private static final int DEFAULT_MAX_CONCURRENCY = 64;
+    private static final long KEEP_ALIVE_SECONDS = 60;
+
+    private static TransferScheduler instance;
+
+    private final int maxConcurrency;
+    private final ReentrantLock lock = new ReentrantLock();
+    /**
+     * Lanes with queued tasks, in the order they get their next slot.
+     */
+    private final Deque<Lane> queuedLanes = new ArrayDeque<>();
+    private ExecutorService threads;
+    private int workers;
+    private int running;
+
+    TransferScheduler(int maxConcurrency) {
+        this.maxConcurrency = Math.max(1, maxConcurrency);
+    }
+
+    /**
+     * Gets the scheduler of this JVM.
+     */
+    public static synchronized TransferScheduler get() {
+        if (instance == null) {
+            instance = new TransferScheduler(Integer.getInteger(
+                    TransferScheduler.class.getName() + ".maxConcurrency", DEFAULT_MAX_CONCURRENCY));
+        }
+        return instance;
+    }
+
+    public int getMaxConcurrency() {
+        return maxConcurrency;
+    }
+
+    /**
+     * Creates a lane for the transfers of one build step. The lane must be shut down when the step is done.
+     *
+     * @param laneConcurrency The maximum number of concurrent transfers of the lane.
+     * @return the lane
+     */
+    public Lane newLane(int laneConcurrency) {
+        return new Lane(laneConcurrency);
+    }
+
+    /**
+     * Starts as many workers as there are runnable tasks without a worker, within the global cap.
+     * Must be called with the lock held.
+     */
+    private void startWorkers() {
+        int runnable = 0;
+        for (Lane lane : queuedLanes) {
+            runnable += Math.max(0, Math.min(lane.queue.size(), lane.maxConcurrency - lane.running));
+        }
+        int idle = workers - running;
+        int toStart = Math.min(maxConcurrency - workers, runnable - idle);
+        if (toStart <= 0) {
+            return;
+        }
+        if (threads == null) {
+            threads = new ThreadPoolExecutor(0, Integer.MAX_VALUE, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                    new SynchronousQueue<>(), new DaemonThreadFactory());
+        }
+        for (int i = 0; i < toStart; i++) {
+            workers++;
+            threads.execute(this::work);
+        }
+    }
+
+    /**
+     * Takes the next task from the lanes in turn, skipping lanes which already run as many tasks as allowed.
+     * Must be called with the lock held.
+     */
+    private Runnable nextTask(Lane[] owner) {
+        for (int i = queuedLanes.size(); i > 0; i--) {
+            Lane lane = queuedLanes.pollFirst();
+            if (lane.queue.isEmpty()) {
+                lane.queued = false;
+                continue;
+            }
+            if (lane.running >= lane.maxConcurrency) {
+                queuedLanes.addLast(lane);
+                continue;
+            }
+
+            Runnable task = lane.queue.pollFirst();
+            if (lane.queue.isEmpty()) {
+                lane.queued = false;
+            } else {
+                queuedLanes.addLast(lane);
+            }
+            lane.running++;
+            running++;
+            owner[0] = lane;
+            return task;
+        }
+        return null;
+    }
+
+    private void work() {
+        Lane[] owner = new Lane[1];
+        while (true) {
+            Runnable task;
+            lock.lock();
+            try {
+                task = nextTask(owner);
+                if (task == null) {
+                    workers--;
+                    return;
+                }
+            } finally {
+                lock.unlock();
+            }
+
+            try {
+                task.run();
+            } catch (RuntimeException | Error e) {
+                LOGGER.log(Level.WARNING, "Transfer task failed", e);
+            } finally {
+                lock.lock();
+                try {
+                    owner[0].running--;
+                    running--;
+                    owner[0].signalIfTerminated();
+                } finally {
+                    lock.unlock();
+                }
+            }
+        }
+    }
+
+    /**
+     * The share of the scheduler given to one build step. Tasks of a lane run in submission order, with at most
+     * {@link #getMaxConcurrency()} of them at the same time.
+     */
+    public final class Lane extends AbstractExecutorService {
+        private final Deque<Runnable> queue = new ArrayDeque<>();
+        private final Condition terminated = lock.newCondition();
+        private int maxConcurrency;
+        private int running;
+        private boolean queued;
+        private boolean shutdown;
+
+        private Lane(int maxConcurrency) {
+            this.maxConcurrency = Math.max(1, maxConcurrency);
+        }
+
+        public int getMaxConcurrency() {
+            lock.lock();
+            try {
+                return maxConcurrency;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Changes the maximum number of concurrent transfers of this lane. Running transfers are not interrupted
+         * when the limit is lowered.
+         */
+        public void setMaxConcurrency(int maxConcurrency) {
+            lock.lock();
+            try {
+                this.maxConcurrency = Math.max(1, maxConcurrency);
+                startWorkers();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public void execute(Runnable command) {
+            lock.lock();
+            try {
+                if (shutdown) {
+                    throw new RejectedExecutionException("Transfer lane is shut down");
+                }
+                // the task counts its requests into the stats of the step which submits it
+                queue.addLast(RequestStats.propagate(command));
+                if (!queued) {
+                    queued = true;
+                    queuedLanes.addLast(this);
+                }
+                startWorkers();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public void shutdown() {
+            lock.lock();
+            try {
+                shutdown = true;
+                signalIfTerminated();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public List<Runnable> shutdownNow() {
+            lock.lock();
+            try {
+                shutdown = true;
+                List<Runnable> pending = new ArrayList<>(queue);
+                queue.clear();
+                signalIfTerminated();
+                return pending;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public boolean isShutdown() {
+            lock.lock();
+            try {
+                return shutdown;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public boolean isTerminated() {
+            lock.lock();
+            try {
+                return isTerminatedLocked();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+            long nanos = unit.toNanos(timeout);
+            lock.lock();
+            try {
+                while (!isTerminatedLocked()) {
+                    if (nanos <= 0) {
+                        return false;
+                    }
+                    nanos = terminated.awaitNanos(nanos);
+                }
+                return true;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private boolean isTerminatedLocked() {
+            return shutdown && queue.isEmpty() && running == 0;
+        }
+
+        private void signalIfTerminated() {
+            if (isTerminatedLocked()) {
+                terminated.signalAll();
+            }
+        }
+    }
+
+    private static final class DaemonThreadFactory implements ThreadFactory {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "Azure storage transfer " + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -15,8 +15,8 @@
 
 package com.microsoftopentechnologies.windowsazurestorage.service;
 
+import com.azure.storage.blob.BlobClient;
 import com.azure.storage.blob.BlobContainerClient;
-import com.azure.storage.blob.specialized.BlockBlobClient;
 import com.azure.storage.file.share.ShareClient;
 import com.azure.storage.file.share.ShareFileClient;
 import com.azure.storage.file.share.ShareServiceClient;
@@ -37,7 +37,7 @@ import jenkins.model.Jenkins;
 import java.io.IOException;
 import java.net.URISyntaxException;
 import java.net.URL;
-import java.util.Arrays;
+import java.util.ArrayList;
 import java.util.List;
 
 public class DownloadFromBuildService extends DownloadService {
@@ -89,13 +89,22 @@ public class DownloadFromBuildService extends DownloadService {
             if (action == null) {
                 return getFilesDownloaded();
             }
-            List<AzureBlob> azureBlobs = action.getIndividualBlobs();
+            // the blobs recorded by the action are left as they are
+            List<AzureBlob> azureBlobs = new ArrayList<>(action.getIndividualBlobs());
+            List<AzureBlob> archives = new ArrayList<>();
             if (action.getZipArchiveBlob() != null && serviceData.isIncludeArchiveZips()) {
-                synchronized (azureBlobs) {
-                    azureBlobs.addAll(Arrays.asList(action.getZipArchiveBlob()));
+                if (serviceData.isExtractArchives()) {
+                    archives.add(action.getZipArchiveBlob());
+                } else {
+                    azureBlobs.add(action.getZipArchiveBlob());
                 }
             }
-            filesNeedDownload = scanBlobs(azureBlobs);
+            if (serviceData.isIncludeArchiveZips()) {
+                // a part is of no use on its own, so the parts are always extracted
+                archives.addAll(action.getArchiveParts());
+            }
+            filesNeedDownload = scanBlobs(azureBlobs, false);
+            filesNeedDownload += scanBlobs(archives, true);
             println(Messages.AzureStorageBuilder_files_need_download_count(filesNeedDownload));
             waitForDownloadEnd();
         } catch (WAStorageException e) {
@@ -104,7 +113,10 @@ public class DownloadFromBuildService extends DownloadService {
         return getFilesDownloaded();
     }
 
-    private int scanBlobs(List<AzureBlob> azureBlobs) throws WAStorageException {
+    /**
+     * @param archives Whether the blobs are archives, which are extracted while they are downloaded.
+     */
+    private int scanBlobs(List<AzureBlob> azureBlobs, boolean archives) throws WAStorageException {
         final DownloadServiceData serviceData = getServiceData();
         int filesNeedDownload = 0;
         if (serviceData.isVerbose()) {
@@ -130,9 +142,10 @@ public class DownloadFromBuildService extends DownloadService {
                                     true,
                                     null);
                         }
-                        final BlockBlobClient cbb = cloudBlobContainer.getBlobClient(blob.getBlobName())
-                                .getBlockBlobClient();
-                        getExecutorService().submit(new DownloadThread(cbb));
+                        // Content addressed artifacts are stored under another name than the artifact's.
+                        final BlobClient cbb = cloudBlobContainer.getBlobClient(blob.getStoredBlobName());
+                        DownloadThread thread = new DownloadThread(cbb, blob.getBlobName());
+                        getExecutorService().submit(archives ? thread.extractArchive() : thread);
                         filesNeedDownload++;
                     } else if (Constants.FILE_STORAGE.equalsIgnoreCase(blob.getStorageType())) {
                         if (cloudFileShare == null) {
@@ -145,7 +158,8 @@ public class DownloadFromBuildService extends DownloadService {
                                         + cloudFileShare.getShareName().length() + 1);
                         final ShareFileClient cloudFile =
                                 cloudFileShare.getRootDirectoryClient().getFileClient(cloudFileName);
-                        getExecutorService().submit(new DownloadThread(cloudFile));
+                        DownloadThread thread = new DownloadThread(cloudFile);
+                        getExecutorService().submit(archives ? thread.extractArchive() : thread);
                         filesNeedDownload++;
                     }
                 }
@@ -16,18 +16,21 @@
 package com.microsoftopentechnologies.windowsazurestorage.service;
 
 import com.azure.storage.blob.BlobClient;
+import com.azure.storage.blob.models.BlobDownloadResponse;
 import com.azure.storage.file.share.ShareFileClient;
 import com.microsoftopentechnologies.windowsazurestorage.Messages;
 import com.microsoftopentechnologies.windowsazurestorage.exceptions.WAStorageException;
+import com.microsoftopentechnologies.windowsazurestorage.helper.AdaptiveConcurrency;
+import com.microsoftopentechnologies.windowsazurestorage.service.model.ArchiveFormat;
 import com.microsoftopentechnologies.windowsazurestorage.service.model.DownloadServiceData;
+import com.microsoftopentechnologies.windowsazurestorage.service.model.UploadCompression;
 import hudson.FilePath;
 import org.springframework.util.AntPathMatcher;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.LinkedBlockingDeque;
-import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
@@ -35,13 +38,11 @@ public abstract class DownloadService extends StoragePluginService<DownloadServi
     protected static final String DOWNLOAD = "Download";
     protected static final String DOWNLOAD_FAILED = "DownloadFailed";
     private static final int DOWNLOAD_THREAD_COUNT = 16;
-    private static final int KEEP_ALIVE_TIME = 1;
     private static final int TIME_OUT = 1;
     private static final TimeUnit TIME_OUT_UNIT = TimeUnit.DAYS;
 
     private AtomicInteger filesDownloaded = new AtomicInteger(0);
-    private ExecutorService executorService = new ThreadPoolExecutor(DOWNLOAD_THREAD_COUNT, DOWNLOAD_THREAD_COUNT,
-            KEEP_ALIVE_TIME, TimeUnit.SECONDS, new LinkedBlockingDeque<Runnable>());
+    private AdaptiveConcurrency concurrency;
 
     public DownloadService(DownloadServiceData data) {
         super(data);
@@ -49,18 +50,45 @@ public abstract class DownloadService extends StoragePluginService<DownloadServi
 
     class DownloadThread implements Runnable {
         private Object downloadItem;
+        private String name;
+        private boolean archive;
 
         DownloadThread(Object downloadItem) {
             this.downloadItem = downloadItem;
         }
 
+        /**
+         * @param blob The blob to download.
+         * @param name The name of the downloaded file, if it differs from the name of the blob.
+         */
+        DownloadThread(BlobClient blob, String name) {
+            this.downloadItem = blob;
+            this.name = name;
+        }
+
+        /**
+         * Extracts the archive into the directory it would be downloaded to, instead of downloading it.
+         */
+        DownloadThread extractArchive() {
+            this.archive = true;
+            return this;
+        }
+
         @Override
         public void run() {
             try {
                 if (downloadItem instanceof BlobClient) {
-                    downloadBlob((BlobClient) downloadItem);
+                    BlobClient blob = (BlobClient) downloadItem;
+                    if (archive) {
+                        extractBlob(blob);
+                    } else {
+                        downloadBlob(blob, name == null ? blob.getBlobName() : name);
+                    }
                 } else {
-                    downloadSingleFile((ShareFileClient) downloadItem);
+                    FilePath downloaded = downloadSingleFile((ShareFileClient) downloadItem);
+                    if (archive) {
+                        extractFile(downloaded);
+                    }
                 }
                 filesDownloaded.addAndGet(1);
             } catch (Exception e) {
@@ -74,9 +102,17 @@ public abstract class DownloadService extends StoragePluginService<DownloadServi
     }
 
     protected void waitForDownloadEnd() throws WAStorageException {
-        executorService.shutdown();
+        ExecutorService lane;
+        synchronized (this) {
+            if (concurrency == null) {
+                // nothing was downloaded
+                return;
+            }
+            lane = concurrency.getLane();
+        }
+        lane.shutdown();
         try {
-            boolean executionFinished = executorService.awaitTermination(TIME_OUT, TIME_OUT_UNIT);
+            boolean executionFinished = lane.awaitTermination(TIME_OUT, TIME_OUT_UNIT);
             if (!executionFinished) {
                 throw new WAStorageException(Messages.AzureStorageBuilder_download_timeout(TIME_OUT, TIME_OUT_UNIT));
             }
@@ -85,7 +121,10 @@ public abstract class DownloadService extends StoragePluginService<DownloadServi
         }
     }
 
-    protected void downloadSingleFile(ShareFileClient cloudFile) throws WAStorageException {
+    /**
+     * @return The downloaded file.
+     */
+    protected FilePath downloadSingleFile(ShareFileClient cloudFile) throws WAStorageException {
         final DownloadServiceData serviceData = getServiceData();
         try {
             if (serviceData.isVerbose()) {
@@ -95,7 +134,7 @@ public abstract class DownloadService extends StoragePluginService<DownloadServi
 
             final long startTime = System.currentTimeMillis();
             try (OutputStream fos = destFile.write()) {
-                cloudFile.download(fos);
+                cloudFile.downloadWithResponse(fos, null, null, null, getConcurrency().context());
             }
             final long endTime = System.currentTimeMillis();
             println(String.format(
@@ -108,25 +147,70 @@ public abstract class DownloadService extends StoragePluginService<DownloadServi
                 }
                 println("cloud file " + cloudFile.getFilePath() + " is deleted from Azure.");
             }
+            return destFile;
         } catch (IOException | InterruptedException e) {
             throw new WAStorageException(e.getMessage(), e);
         }
     }
 
-    protected void downloadBlob(BlobClient blob) throws WAStorageException {
+    /**
+     * @return The downloaded file.
+     */
+    protected FilePath downloadBlob(BlobClient blob, String name) throws WAStorageException {
         try {
             if (getServiceData().isVerbose()) {
                 println("Downloading file:" + blob.getBlobUrl());
             }
 
-            final FilePath destFile = destinationFilePath(blob.getBlobName());
+            final FilePath destFile = destinationFilePath(name);
             final long startTime = System.currentTimeMillis();
+            BlobDownloadResponse response;
             try (OutputStream fos = destFile.write()) {
-                blob.download(fos);
+                response = blob.downloadWithResponse(fos, null, null, null, false, null,
+                        getConcurrency().context());
+            }
+            if (UploadCompression.GZIP.equalsIgnoreCase(response.getDeserializedHeaders().getContentEncoding())) {
+                // the compressed bytes are sent to the agent, which decodes them in place
+                destFile.act(new GunzipOnSlave());
             }
             final long endTime = System.currentTimeMillis();
             println(String.format("blob %s is downloaded to %s in %s",
-                    blob.getBlobName(), destFile.getParent(), getTime(endTime - startTime)));
+                    name, destFile.getParent(), getTime(endTime - startTime)));
+
+            if (!name.equals(blob.getBlobName())) {
+                // content addressed blobs are shared by other artifacts and builds
+                return destFile;
+            }
+            if (getServiceData().isDeleteFromAzureAfterDownload()) {
+                if (blob.exists()) {
+                    blob.delete();
+                }
+                println("blob " + blob.getBlobName() + " is deleted from Azure.");
+            }
+            return destFile;
+        } catch (IOException | InterruptedException e) {
+            throw new WAStorageException(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Extracts an archive blob into the directory it would be downloaded to, while it is downloaded. The archive
+     * is streamed to the agent and never stored there as a whole.
+     */
+    protected void extractBlob(BlobClient blob) throws WAStorageException {
+        try {
+            final FilePath destDir = destinationFilePath(blob.getBlobName()).getParent();
+            final long startTime = System.currentTimeMillis();
+            try (InputStream archive = blob.openInputStream()) {
+                if (ArchiveFormat.fromFileName(blob.getBlobName()) == ArchiveFormat.TAR_GZ) {
+                    destDir.untarFrom(archive, FilePath.TarCompression.GZIP);
+                } else {
+                    destDir.unzipFrom(archive);
+                }
+            }
+            final long endTime = System.currentTimeMillis();
+            println(String.format("archive %s is extracted to %s in %s",
+                    blob.getBlobName(), destDir, getTime(endTime - startTime)));
 
             if (getServiceData().isDeleteFromAzureAfterDownload()) {
                 if (blob.exists()) {
@@ -139,6 +223,23 @@ public abstract class DownloadService extends StoragePluginService<DownloadServi
         }
     }
 
+    /**
+     * Extracts a downloaded archive into its directory, then deletes it.
+     */
+    protected void extractFile(FilePath archive) throws WAStorageException {
+        try {
+            if (ArchiveFormat.fromFileName(archive.getName()) == ArchiveFormat.TAR_GZ) {
+                archive.untar(archive.getParent(), FilePath.TarCompression.GZIP);
+            } else {
+                archive.unzip(archive.getParent());
+            }
+            archive.delete();
+            println(String.format("archive %s is extracted to %s", archive.getName(), archive.getParent()));
+        } catch (IOException | InterruptedException e) {
+            throw new WAStorageException(e.getMessage(), e);
+        }
+    }
+
     protected boolean shouldDownload(
             String includePattern,
             String excludePattern,
@@ -225,7 +326,20 @@ public abstract class DownloadService extends StoragePluginService<DownloadServi
         return filesDownloaded.get();
     }
 
-    public ExecutorService getExecutorService() {
-        return executorService;
+    /**
+     * Gets this download's lane of the transfer scheduler, which is only created when first needed.
+     */
+    public synchronized ExecutorService getExecutorService() {
+        return getConcurrency().getLane();
+    }
+
+    /**
+     * Gets the controller of this download's lane, which adapts the number of concurrent downloads to throttling.
+     */
+    protected synchronized AdaptiveConcurrency getConcurrency() {
+        if (concurrency == null) {
+            concurrency = AdaptiveConcurrency.newLane(DOWNLOAD_THREAD_COUNT, this::println);
+        }
+        return concurrency;
     }
 }
@@ -0,0 +1,53 @@
+/*
+ Copyright 2016 Microsoft, Inc.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.microsoftopentechnologies.windowsazurestorage.service;
+
+import hudson.remoting.VirtualChannel;
+import jenkins.MasterToSlaveFileCallable;
+import org.apache.commons.io.IOUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * A task which will be executed on Jenkins agents. It decodes a downloaded file which was stored gzipped, in
+ * place, so the compressed bytes never travel back through the Jenkins controller.
+ */
+final class GunzipOnSlave extends MasterToSlaveFileCallable<Void> {
+    private static final long serialVersionUID = 4102858726616371513L;
+
+    @Override
+    public Void invoke(File file, VirtualChannel channel) throws IOException, InterruptedException {
+        Path decoded = Files.createTempFile(file.getParentFile().toPath(), file.getName(), ".tmp");
+        try {
+            try (InputStream input = new GZIPInputStream(Files.newInputStream(file.toPath()));
+                 OutputStream output = Files.newOutputStream(decoded)) {
+                IOUtils.copy(input, output);
+            }
+            Files.move(decoded, file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(decoded);
+        }
+        return null;
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ Copyright 2016 Microsoft, Inc.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.microsoftopentechnologies.windowsazurestorage.service;
+
+import com.microsoftopentechnologies.windowsazurestorage.service.model.ArchiveFormat;
+import hudson.util.FileVisitor;
+import hudson.util.IOUtils;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.time.LocalDateTime;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/**
+ * Writes the visited files into an archive, compressing on several threads while the output is written in the
+ * order the files were visited. The archive is complete once {@link #finish()} returns.
+ * <p>
+ * A reproducible archive records the same time and permissions for every entry, so that files of the same
+ * content visited in the same order always give the same bytes.
+ */
+abstract class ParallelArchiver extends FileVisitor implements Closeable {
+    /**
+     * Time of the entries of a reproducible archive, the earliest a zip can hold with some margin.
+     */
+    static final LocalDateTime REPRODUCIBLE_TIME = LocalDateTime.of(1980, 2, 1, 0, 0);
+    static final int REGULAR_MODE = 0644;
+    static final int EXECUTABLE_MODE = 0755;
+    private static final int OWNER_EXECUTE = 0100;
+
+    /**
+     * Most memory buffered per compressing thread: the archivers queue two entries or chunks per thread, which
+     * are kept in memory up to 4 MiB each.
+     */
+    static final long MAX_BUFFER_PER_THREAD = 2 * 4 * 1024 * 1024;
+
+    /**
+     * @param format       Format of the archive.
+     * @param level        Compression level from 1 to 9, 0 for the default of the format.
+     * @param out          Target of the archive, closed along with the archiver.
+     * @param parallelism  Number of threads compressing at the same time.
+     * @param reproducible Whether the time and permissions of the files are left out of the archive.
+     */
+    static ParallelArchiver create(ArchiveFormat format, int level, OutputStream out, int parallelism,
+                                   boolean reproducible) {
+        if (format == ArchiveFormat.TAR_GZ) {
+            return new TarGzArchiver(out, level, parallelism, reproducible);
+        }
+        return new ParallelZipArchiver(out, level, parallelism, reproducible);
+    }
+
+    /**
+     * Permissions of an entry of a reproducible archive, only the executable bit of the owner is kept.
+     */
+    static int reproducibleMode(File f) {
+        int mode = IOUtils.mode(f);
+        return f.isDirectory() || (mode != -1 && (mode & OWNER_EXECUTE) != 0) ? EXECUTABLE_MODE : REGULAR_MODE;
+    }
+
+    /**
+     * Writes the rest of the archive, the target stream is left open.
+     */
+    abstract void finish() throws IOException;
+
+    /**
+     * Waits for the oldest compression task of the queue.
+     */
+    static <T> T takeFirst(Deque<Future<T>> pending) throws IOException {
+        try {
+            return pending.removeFirst().get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException(e.getMessage());
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Failed to compress the archive", e.getCause());
+        }
+    }
+
+    static <T> Deque<Future<T>> newQueue() {
+        return new ArrayDeque<>();
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ Copyright 2016 Microsoft, Inc.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.microsoftopentechnologies.windowsazurestorage.service;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Deque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Gzips a stream on several threads. The stream is cut into chunks which are compressed as independent gzip
+ * members and written in order. A series of members is a valid gzip file, which every gzip reader decodes as
+ * the concatenation of the chunks.
+ */
+final class ParallelGzipOutputStream extends OutputStream {
+    static final int CHUNK_SIZE = 1024 * 1024;
+
+    private final OutputStream out;
+    private final int level;
+    private final ExecutorService pool;
+    private final int maxPending;
+    private final Deque<Future<byte[]>> pending = ParallelArchiver.newQueue();
+    private byte[] buffer = new byte[CHUNK_SIZE];
+    private int count;
+    private boolean empty = true;
+    private boolean finished;
+
+    /**
+     * @param out         Target of the compressed stream, closed along with this stream.
+     * @param level       Compression level from 1 to 9, 0 for the default.
+     * @param parallelism Number of chunks compressed at the same time.
+     */
+    ParallelGzipOutputStream(OutputStream out, int level, int parallelism) {
+        this.out = out;
+        this.level = level == 0 ? Deflater.DEFAULT_COMPRESSION : level;
+        this.pool = new ForkJoinPool(parallelism);
+        // bounds the compressed chunks waiting to be written
+        this.maxPending = parallelism * 2;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        buffer[count++] = (byte) b;
+        if (count == buffer.length) {
+            submitBuffer();
+        }
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        int position = off;
+        int remaining = len;
+        while (remaining > 0) {
+            int n = Math.min(remaining, buffer.length - count);
+            System.arraycopy(b, position, buffer, count, n);
+            count += n;
+            position += n;
+            remaining -= n;
+            if (count == buffer.length) {
+                submitBuffer();
+            }
+        }
+    }
+
+    private void submitBuffer() throws IOException {
+        byte[] chunk = buffer;
+        int length = count;
+        pending.add(pool.submit(() -> compress(chunk, length)));
+        buffer = new byte[CHUNK_SIZE];
+        count = 0;
+        empty = false;
+        while (pending.size() > maxPending) {
+            out.write(ParallelArchiver.takeFirst(pending));
+        }
+    }
+
+    private byte[] compress(byte[] chunk, int length) throws IOException {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(length / 2 + 1);
+        try (GZIPOutputStream gzip = new LevelGzipOutputStream(compressed, level)) {
+            gzip.write(chunk, 0, length);
+        }
+        return compressed.toByteArray();
+    }
+
+    /**
+     * Writes the pending chunks, the target stream is left open.
+     */
+    void finish() throws IOException {
+        if (finished) {
+            return;
+        }
+        finished = true;
+        if (count > 0 || empty) {
+            // an empty stream still needs one member
+            pending.add(CompletableFuture.completedFuture(compress(buffer, count)));
+            count = 0;
+        }
+        while (!pending.isEmpty()) {
+            out.write(ParallelArchiver.takeFirst(pending));
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            finish();
+        } finally {
+            pool.shutdownNow();
+            out.close();
+        }
+    }
+
+    private static final class LevelGzipOutputStream extends GZIPOutputStream {
+        LevelGzipOutputStream(OutputStream out, int level) throws IOException {
+            super(out);
+            def.setLevel(level);
+        }
+    }
+}
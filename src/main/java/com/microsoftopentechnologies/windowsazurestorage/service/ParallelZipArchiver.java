@@ -0,0 +1,189 @@
+/*
+ Copyright 2016 Microsoft, Inc.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.microsoftopentechnologies.windowsazurestorage.service;
+
+import hudson.util.IOUtils;
+import org.apache.commons.compress.archivers.zip.UnixStat;
+import org.apache.commons.compress.archivers.zip.Zip64Mode;
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipArchiveOutputStream;
+import org.apache.commons.io.output.DeferredFileOutputStream;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.time.ZoneId;
+import java.util.Deque;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.ZipEntry;
+
+/**
+ * Zips the visited files with one deflater per entry, spread across a fork-join pool. The deflated entries are
+ * added raw to the archive in the order the files were visited, so the result is a standard zip, laid out like
+ * the one of {@link hudson.util.io.ArchiverFactory#ZIP}.
+ */
+final class ParallelZipArchiver extends ParallelArchiver {
+    /**
+     * Deflated entries up to this size are kept in memory, larger ones in a temporary file.
+     */
+    private static final int MEMORY_THRESHOLD = 4 * 1024 * 1024;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final ZipArchiveOutputStream zip;
+    private final ExecutorService pool;
+    private final int level;
+    private final int maxPending;
+    private final boolean reproducible;
+    private final Deque<Future<DeflatedEntry>> pending = newQueue();
+    private final Set<DeferredFileOutputStream> unwritten = ConcurrentHashMap.newKeySet();
+
+    /**
+     * @param out         Target of the archive, closed along with the archiver.
+     * @param level       Compression level from 1 to 9, 0 for the default.
+     * @param parallelism Number of entries deflated at the same time.
+     * @param reproducible Whether the time and permissions of the files are left out of the archive.
+     */
+    ParallelZipArchiver(OutputStream out, int level, int parallelism, boolean reproducible) {
+        zip = new ZipArchiveOutputStream(out);
+        zip.setEncoding("UTF-8");
+        zip.setUseZip64(Zip64Mode.AsNeeded);
+        pool = new ForkJoinPool(parallelism);
+        this.level = level == 0 ? Deflater.DEFAULT_COMPRESSION : level;
+        // bounds the deflated entries waiting to be written
+        maxPending = parallelism * 2;
+        this.reproducible = reproducible;
+    }
+
+    @Override
+    public void visit(File f, String relativePath) throws IOException {
+        String name = relativePath.replace('\\', '/');
+        ZipArchiveEntry entry = new ZipArchiveEntry(f.isDirectory() ? name + '/' : name);
+        if (reproducible) {
+            // zip times are local, the same local time gives the same bytes in every time zone
+            entry.setUnixMode((f.isDirectory() ? UnixStat.DIR_FLAG : UnixStat.FILE_FLAG) | reproducibleMode(f));
+            entry.setTime(REPRODUCIBLE_TIME.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli());
+        } else {
+            int mode = IOUtils.mode(f);
+            if (mode != -1) {
+                entry.setUnixMode(mode);
+            }
+            entry.setTime(f.lastModified());
+        }
+
+        if (f.isDirectory()) {
+            entry.setMethod(ZipEntry.STORED);
+            entry.setSize(0);
+            entry.setCompressedSize(0);
+            entry.setCrc(0);
+            pending.add(CompletableFuture.completedFuture(new DeflatedEntry(entry, null)));
+        } else {
+            pending.add(pool.submit(() -> deflate(entry, f)));
+        }
+        while (pending.size() > maxPending) {
+            write(takeFirst(pending));
+        }
+    }
+
+    private DeflatedEntry deflate(ZipArchiveEntry entry, File f) throws IOException {
+        CRC32 crc = new CRC32();
+        Deflater deflater = new Deflater(level, true);
+        DeferredFileOutputStream deflated = new DeferredFileOutputStream(MEMORY_THRESHOLD, "archive", ".deflate",
+                null);
+        long size = 0;
+        try (InputStream input = Files.newInputStream(f.toPath());
+             OutputStream output = new DeflaterOutputStream(deflated, deflater, BUFFER_SIZE)) {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int n;
+            while ((n = input.read(buffer)) != -1) {
+                crc.update(buffer, 0, n);
+                output.write(buffer, 0, n);
+                size += n;
+            }
+        } catch (IOException e) {
+            delete(deflated);
+            throw e;
+        } finally {
+            deflater.end();
+        }
+        entry.setMethod(ZipEntry.DEFLATED);
+        entry.setCrc(crc.getValue());
+        entry.setSize(size);
+        entry.setCompressedSize(deflated.getByteCount());
+        unwritten.add(deflated);
+        return new DeflatedEntry(entry, deflated);
+    }
+
+    private void write(DeflatedEntry entry) throws IOException {
+        if (entry.deflated == null) {
+            zip.addRawArchiveEntry(entry.entry, new ByteArrayInputStream(new byte[0]));
+            return;
+        }
+        try (InputStream raw = entry.deflated.isInMemory()
+                ? new ByteArrayInputStream(entry.deflated.getData())
+                : Files.newInputStream(entry.deflated.getFile().toPath())) {
+            zip.addRawArchiveEntry(entry.entry, raw);
+        } finally {
+            delete(entry.deflated);
+            unwritten.remove(entry.deflated);
+        }
+    }
+
+    private static void delete(DeferredFileOutputStream deflated) throws IOException {
+        if (!deflated.isInMemory()) {
+            Files.deleteIfExists(deflated.getFile().toPath());
+        }
+    }
+
+    @Override
+    void finish() throws IOException {
+        while (!pending.isEmpty()) {
+            write(takeFirst(pending));
+        }
+        zip.finish();
+    }
+
+    @Override
+    public void close() throws IOException {
+        pool.shutdownNow();
+        // entries left by a failed archive
+        for (DeferredFileOutputStream deflated : unwritten) {
+            delete(deflated);
+        }
+        zip.close();
+    }
+
+    private static final class DeflatedEntry {
+        private final ZipArchiveEntry entry;
+        private final DeferredFileOutputStream deflated;
+
+        DeflatedEntry(ZipArchiveEntry entry, DeferredFileOutputStream deflated) {
+            this.entry = entry;
+            this.deflated = deflated;
+        }
+    }
+}
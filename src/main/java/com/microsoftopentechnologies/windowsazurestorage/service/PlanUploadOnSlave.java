@@ -0,0 +1,183 @@
+/*
+ Copyright 2016 Microsoft, Inc.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package com.microsoftopentechnologies.windowsazurestorage.service;
+
+import com.microsoftopentechnologies.windowsazurestorage.AzureBlobProperties;
+import com.microsoftopentechnologies.windowsazurestorage.helper.Constants;
+import com.microsoftopentechnologies.windowsazurestorage.service.model.UploadItem;
+import com.microsoftopentechnologies.windowsazurestorage.service.model.UploadPlan;
+import hudson.Util;
+import hudson.remoting.VirtualChannel;
+import jenkins.MasterToSlaveFileCallable;
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.lang.StringUtils;
+import org.apache.tools.ant.types.FileSet;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.StringTokenizer;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**
+ * A task which will be executed on Jenkins agents. It scans the workspace, applies the modified-since filter,
+ * computes the blob names, detects the content types and hashes the files which may already exist remotely,
+ * so that planning an upload costs a single remoting call regardless of the number of files.
+ */
+final class PlanUploadOnSlave extends MasterToSlaveFileCallable<UploadPlan> {
+    private static final long serialVersionUID = -1690466253358046123L;
+    private static final String EMBEDDED_VP_SEPARATOR = "::";
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final String filePath;
+    private final String excludes;
+    private final String virtualPath;
+    private final String removePrefixPath;
+    private final long modifiedSince;
+    private final boolean detectContentType;
+    private final Map<String, Long> hashCandidates;
+    private final boolean hashAll;
+
+    /**
+     * @param filePath          The configured include patterns, optionally with embedded virtual paths.
+     * @param excludes          Ant glob of the files to leave out.
+     * @param virtualPath       The virtual path all files are uploaded to.
+     * @param removePrefixPath  The prefix which is removed from the relative path of the files.
+     * @param modifiedSince     Only files modified at or after this time are uploaded individually.
+     * @param detectContentType Whether to detect the content type of the files.
+     * @param hashCandidates    Sizes of the remote files by name. Local files of the same name and size are hashed.
+     * @param hashAll           Whether every file is hashed, regardless of the hash candidates.
+     */
+    PlanUploadOnSlave(String filePath, String excludes, String virtualPath, String removePrefixPath,
+                      long modifiedSince, boolean detectContentType, Map<String, Long> hashCandidates,
+                      boolean hashAll) {
+        this.filePath = filePath;
+        this.excludes = excludes;
+        this.virtualPath = virtualPath;
+        this.removePrefixPath = removePrefixPath;
+        this.modifiedSince = modifiedSince;
+        this.detectContentType = detectContentType;
+        this.hashCandidates = hashCandidates;
+        this.hashAll = hashAll;
+    }
+
+    @Override
+    public UploadPlan invoke(File workspace, VirtualChannel channel) throws IOException, InterruptedException {
+        List<UploadItem> scanned = new ArrayList<>();
+        List<File> files = new ArrayList<>();
+        int matchedCount = 0;
+        List<String> unmodifiedNames = new ArrayList<>();
+        StringBuilder archiveIncludes = new StringBuilder();
+        URI workspaceURI = workspace.toURI();
+
+        StringTokenizer strTokens = new StringTokenizer(filePath, StoragePluginService.FP_SEPARATOR);
+        while (strTokens.hasMoreElements()) {
+            String fileName = strTokens.nextToken();
+            String embeddedVP = null;
+
+            if (fileName.contains(EMBEDDED_VP_SEPARATOR)) {
+                int embVPSepIndex = fileName.indexOf(EMBEDDED_VP_SEPARATOR);
+
+                // Separate fileName and Virtual directory name.
+                if (fileName.length() > embVPSepIndex + 1) {
+                    embeddedVP = fileName.substring(embVPSepIndex + 2);
+
+                    if (StringUtils.isBlank(embeddedVP)) {
+                        embeddedVP = null;
+                    } else if (!embeddedVP.endsWith(Constants.FWD_SLASH)) {
+                        embeddedVP = embeddedVP + Constants.FWD_SLASH;
+                    }
+                }
+                fileName = fileName.substring(0, embVPSepIndex);
+            }
+            archiveIncludes.append(",").append(fileName);
+
+            for (String match : scan(workspace, fileName)) {
+                matchedCount++;
+                File file = new File(workspace, match);
+                long lastModified = file.lastModified();
+                String relativePath = workspaceURI.relativize(file.toURI()).getPath();
+                String name = UploadService.getItemPath(relativePath, embeddedVP, virtualPath, removePrefixPath);
+                if (lastModified < modifiedSince) {
+                    unmodifiedNames.add(name);
+                    continue;
+                }
+
+                scanned.add(new UploadItem(relativePath, name, file.length(), lastModified, null));
+                files.add(file);
+            }
+        }
+
+        // Reading the files is the expensive part, do it in parallel.
+        List<UploadItem> items;
+        try {
+            items = IntStream.range(0, scanned.size()).parallel()
+                    .mapToObj(i -> describe(scanned.get(i), files.get(i)))
+                    .collect(Collectors.toList());
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        return new UploadPlan(items, matchedCount, unmodifiedNames, archiveIncludes.toString());
+    }
+
+    private UploadItem describe(UploadItem item, File file) {
+        if (!detectContentType && !hashAll && !hashCandidates.containsKey(item.getName())) {
+            return item;
+        }
+        try {
+            String contentType = detectContentType ? AzureBlobProperties.detectContentType(file) : null;
+            String md5 = null;
+            String sha256 = null;
+            Long remoteSize = hashCandidates.get(item.getName());
+            if (hashAll || (remoteSize != null && remoteSize == item.getSize())) {
+                // Both digests are computed in a single read of the file.
+                MessageDigest md5Digest = DigestUtils.getMd5Digest();
+                MessageDigest sha256Digest = DigestUtils.getSha256Digest();
+                try (InputStream stream = Files.newInputStream(file.toPath())) {
+                    byte[] buffer = new byte[BUFFER_SIZE];
+                    int read;
+                    while ((read = stream.read(buffer)) != -1) {
+                        md5Digest.update(buffer, 0, read);
+                        sha256Digest.update(buffer, 0, read);
+                    }
+                }
+                md5 = Hex.encodeHexString(md5Digest.digest());
+                sha256 = Hex.encodeHexString(sha256Digest.digest());
+            }
+            return new UploadItem(item.getRelativePath(), item.getName(), item.getSize(), item.getLastModified(),
+                    contentType, md5, sha256);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private String[] scan(File workspace, String includes) {
+        if (StringUtils.isBlank(includes) || !workspace.isDirectory()) {
+            return new String[0];
+        }
+        FileSet fileSet = Util.createFileSet(workspace, includes, excludes);
+        return fileSet.getDirectoryScanner().getIncludedFiles();
+    }
+}
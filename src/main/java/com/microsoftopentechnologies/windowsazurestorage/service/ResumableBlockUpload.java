@@ -0,0 +1,299 @@
+/*
+ Copyright 2016 Microsoft, Inc.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.microsoftopentechnologies.windowsazurestorage.service;
+
+import com.azure.core.http.rest.Response;
+import com.azure.core.util.Context;
+import com.azure.storage.blob.models.BlobHttpHeaders;
+import com.azure.storage.blob.models.Block;
+import com.azure.storage.blob.models.BlockBlobItem;
+import com.azure.storage.blob.models.BlockListType;
+import com.azure.storage.blob.specialized.BlockBlobClient;
+import com.microsoftopentechnologies.windowsazurestorage.service.model.TransferTuning;
+import org.apache.commons.codec.digest.DigestUtils;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Uploads a large file block by block, so that an interrupted upload can be resumed by a later attempt.
+ * <p>
+ * The block IDs only depend on the target blob, the size and modification time of the file and the block size,
+ * so a retry computes the same IDs. Every staged block is recorded in a journal next to the file. A retry keeps
+ * the recorded blocks which the service still holds as uncommitted, sends only the missing ones and commits the
+ * block list. The journal is removed once the blob is committed.
+ * <p>
+ * Listing the uncommitted blocks needs the read permission on the blob, so the SAS of a resumable upload allows
+ * reading and writing its blob.
+ * <p>
+ * Smaller files which are uploaded in blocks go through the same path without the journal. Their blocks are read
+ * straight from the file, and the Content-MD5 goes with the commit of the block list.
+ */
+final class ResumableBlockUpload {
+    /**
+     * Suffix of the journal file, which is excluded from the uploaded files.
+     */
+    static final String JOURNAL_SUFFIX = ".azure-upload";
+
+    private static final int FINGERPRINT_LENGTH = 16;
+    private static final int SKIP_BUFFER_SIZE = 64 * 1024;
+    private static final String MD5 = "MD5";
+
+    /**
+     * Largest block size, every block in flight is buffered in memory.
+     */
+    static final long MAX_BLOCK_SIZE = TransferTuning.MAX_BLOCK_SIZE_MB * TransferTuning.MB;
+
+    private final BlockBlobClient blob;
+    private final File file;
+    private final long blockSize;
+    private final int concurrency;
+    private final ExecutorService executor;
+    private final Context context;
+    private final File journal;
+    private final String fingerprint;
+    private final MessageDigest digest;
+    private byte[] checksum;
+
+    /**
+     * @param blob        The target blob.
+     * @param file        The local file.
+     * @param blockSize   Size of the blocks, every block but the last one has this size.
+     * @param concurrency Number of blocks in flight.
+     * @param executor    Lane of the upload step, which stages the blocks.
+     * @param context     Context of the requests, which carries the throttling feedback.
+     * @param digest      Checksum computed while the file is read.
+     * @param resumable   Whether the staged blocks are journaled for a later attempt.
+     */
+    ResumableBlockUpload(BlockBlobClient blob, File file, long blockSize, int concurrency, ExecutorService executor,
+                         Context context, MessageDigest digest, boolean resumable) {
+        if (blockSize > MAX_BLOCK_SIZE) {
+            throw new IllegalArgumentException("Block size " + blockSize + " exceeds " + MAX_BLOCK_SIZE);
+        }
+        this.blob = blob;
+        this.file = file;
+        this.blockSize = blockSize;
+        this.concurrency = concurrency;
+        this.executor = executor;
+        this.context = context;
+        this.digest = digest;
+        this.journal = resumable ? new File(file.getParentFile(), file.getName() + JOURNAL_SUFFIX) : null;
+        this.fingerprint = getFingerprint(blob.getBlobUrl(), file.length(), file.lastModified(), blockSize);
+    }
+
+    static String getFingerprint(String blobUrl, long size, long lastModified, long blockSize) {
+        return DigestUtils.sha256Hex(blobUrl + "\n" + size + "\n" + lastModified + "\n" + blockSize)
+                .substring(0, FINGERPRINT_LENGTH);
+    }
+
+    /**
+     * Gets the ID of a block. All IDs of a blob have the same length, as required by the service.
+     */
+    static String getBlockId(String fingerprint, int index) {
+        return Base64.getEncoder().encodeToString(
+                String.format("%s-%08d", fingerprint, index).getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Uploads the missing blocks and commits the blob.
+     *
+     * @return the response of the commit.
+     */
+    Response<BlockBlobItem> upload(BlobHttpHeaders headers, Map<String, String> metadata)
+            throws IOException, InterruptedException {
+        long size = file.length();
+        int blockCount = (int) Math.max(1, (size + blockSize - 1) / blockSize);
+        List<String> blockIds = new ArrayList<>(blockCount);
+        for (int i = 0; i < blockCount; i++) {
+            blockIds.add(getBlockId(fingerprint, i));
+        }
+
+        Set<String> staged = readJournal();
+        if (!staged.isEmpty()) {
+            // only the blocks which the service still holds can be skipped
+            Set<String> uncommitted = new HashSet<>();
+            for (Block block : blob.listBlocks(BlockListType.UNCOMMITTED).getUncommittedBlocks()) {
+                uncommitted.add(block.getName());
+            }
+            staged.retainAll(uncommitted);
+        } else if (journal != null) {
+            startJournal();
+        }
+
+        // The file is read once and in order, so the checksum is computed along the way. Staged blocks are
+        // read as well, but not sent. At most concurrency blocks are buffered in memory.
+        int maxPending = Math.max(1, Math.min(concurrency, blockCount));
+        Deque<FutureTask<Void>> pending = new ArrayDeque<>();
+        AtomicBoolean stopped = new AtomicBoolean();
+        try (DataInputStream input = new DataInputStream(Files.newInputStream(file.toPath()));
+             Writer journalWriter = journal == null ? null : Files.newBufferedWriter(journal.toPath(),
+                     StandardCharsets.UTF_8, StandardOpenOption.APPEND)) {
+            try {
+                byte[] skipBuffer = new byte[SKIP_BUFFER_SIZE];
+                for (int i = 0; i < blockCount; i++) {
+                    // a failed block stops the upload before the rest of the file is read
+                    checkCompleted(pending);
+                    String blockId = blockIds.get(i);
+                    int length = (int) Math.min(blockSize, size - i * blockSize);
+                    if (staged.contains(blockId)) {
+                        for (int remaining = length; remaining > 0; remaining -= skipBuffer.length) {
+                            int n = Math.min(remaining, skipBuffer.length);
+                            input.readFully(skipBuffer, 0, n);
+                            digest.update(skipBuffer, 0, n);
+                        }
+                        continue;
+                    }
+
+                    while (pending.size() >= maxPending) {
+                        await(pending.removeFirst());
+                    }
+                    byte[] data = new byte[length];
+                    input.readFully(data);
+                    digest.update(data);
+                    FutureTask<Void> task = new FutureTask<>(() -> {
+                        if (stopped.get()) {
+                            return null;
+                        }
+                        blob.stageBlockWithResponse(blockId, new ByteArrayInputStream(data), length, null, null,
+                                null, context);
+                        if (journalWriter != null) {
+                            synchronized (journalWriter) {
+                                journalWriter.write(blockId);
+                                journalWriter.write('\n');
+                                journalWriter.flush();
+                            }
+                        }
+                        return null;
+                    });
+                    pending.addLast(task);
+                    executor.execute(task);
+                }
+                while (!pending.isEmpty()) {
+                    await(pending.removeFirst());
+                }
+            } finally {
+                // after a failure, the blocks which did not start are dropped and the others are journaled
+                stopped.set(true);
+                for (FutureTask<Void> task : pending) {
+                    task.run();
+                    try {
+                        task.get();
+                    } catch (ExecutionException e) {
+                        // the upload already failed
+                    }
+                }
+            }
+        }
+
+        checksum = digest.digest();
+        if (MD5.equals(digest.getAlgorithm())) {
+            // the service does not compute the Content-MD5 of a blob made of blocks
+            headers.setContentMd5(checksum);
+        }
+        Response<BlockBlobItem> response = blob.commitBlockListWithResponse(blockIds, headers, metadata, null, null,
+                null, context);
+        if (journal != null) {
+            Files.deleteIfExists(journal.toPath());
+        }
+        return response;
+    }
+
+    /**
+     * Waits for a block to be staged. A block which the lane did not start yet is staged by the calling thread,
+     * so the upload never waits for a slot of the lane which the file upload itself holds.
+     */
+    private static void await(FutureTask<Void> task) throws IOException, InterruptedException {
+        task.run();
+        try {
+            task.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+    }
+
+    /**
+     * Removes the blocks which are already staged, and fails if one of them failed.
+     */
+    private static void checkCompleted(Deque<FutureTask<Void>> pending) throws IOException, InterruptedException {
+        Iterator<FutureTask<Void>> it = pending.iterator();
+        while (it.hasNext()) {
+            FutureTask<Void> task = it.next();
+            if (task.isDone()) {
+                it.remove();
+                await(task);
+            }
+        }
+    }
+
+    /**
+     * Gets the checksum of the file, computed while it was uploaded.
+     */
+    byte[] getChecksum() {
+        return checksum;
+    }
+
+    /**
+     * Reads the blocks recorded by a former attempt, if it uploaded the same file to the same blob. An upload
+     * without journal finds none.
+     */
+    private Set<String> readJournal() throws IOException {
+        Set<String> staged = new HashSet<>();
+        if (journal == null || !journal.isFile()) {
+            return staged;
+        }
+        try (BufferedReader reader = Files.newBufferedReader(journal.toPath(), StandardCharsets.UTF_8)) {
+            if (!fingerprint.equals(reader.readLine())) {
+                return staged;
+            }
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (!line.isEmpty()) {
+                    staged.add(line);
+                }
+            }
+        }
+        return staged;
+    }
+
+    private void startJournal() throws IOException {
+        Files.write(journal.toPath(), (fingerprint + "\n").getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ Copyright 2017 Microsoft Open Technologies, Inc.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.microsoftopentechnologies.windowsazurestorage.service;
+
+import com.azure.core.util.Context;
+import com.azure.storage.file.share.ShareFileClient;
+import com.microsoftopentechnologies.windowsazurestorage.helper.RequestStats;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Writes a stream of unknown length into an Azure Share File, one range at a time.
+ * <p>
+ * Azure Files needs the size of a file before data can be written to it, so the file is grown in doubling
+ * steps while data arrives and truncated to the number of written bytes when the stream is closed.
+ */
+final class ShareFileRangeOutputStream extends OutputStream {
+    /**
+     * The largest range a single Put Range request accepts.
+     */
+    static final int MAX_RANGE_SIZE = 4 * 1024 * 1024;
+
+    private final ShareFileClient fileClient;
+    /**
+     * Carries the request stats of the thread which creates the stream, the archive may be written from others.
+     */
+    private final Context context = RequestStats.currentContext();
+    private final byte[] buffer = new byte[MAX_RANGE_SIZE];
+    private int count;
+    private long offset;
+    private long capacity;
+    private boolean closed;
+
+    /**
+     * @param fileClient A file which has already been created with a size of 0.
+     */
+    ShareFileRangeOutputStream(ShareFileClient fileClient) {
+        this.fileClient = fileClient;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (count == buffer.length) {
+            flushBuffer();
+        }
+        buffer[count++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        int position = off;
+        int remaining = len;
+        while (remaining > 0) {
+            int n = Math.min(remaining, buffer.length - count);
+            System.arraycopy(b, position, buffer, count, n);
+            count += n;
+            position += n;
+            remaining -= n;
+            if (count == buffer.length) {
+                flushBuffer();
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        flushBuffer();
+        if (capacity != offset) {
+            fileClient.setPropertiesWithResponse(offset, null, null, null, null, context);
+        }
+    }
+
+    private void flushBuffer() {
+        if (count == 0) {
+            return;
+        }
+        long required = offset + count;
+        if (required > capacity) {
+            capacity = Math.max(required, capacity * 2);
+            fileClient.setPropertiesWithResponse(capacity, null, null, null, null, context);
+        }
+        fileClient.uploadWithResponse(new ByteArrayInputStream(buffer, 0, count), count, offset,
+                null, context);
+        offset = required;
+        count = 0;
+    }
+}
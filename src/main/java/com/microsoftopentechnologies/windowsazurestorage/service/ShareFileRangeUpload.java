@@ -0,0 +1,205 @@
+/*
+ Copyright 2016 Microsoft, Inc.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.microsoftopentechnologies.windowsazurestorage.service;
+
+import com.azure.core.util.Context;
+import com.azure.storage.file.share.ShareFileClient;
+import com.azure.storage.file.share.models.ShareFileHttpHeaders;
+import org.apache.commons.codec.digest.DigestUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Uploads a file to an Azure Share File in ranges, several of them in flight at the same time.
+ * <p>
+ * The file is created with its final size first, as Azure Files requires. The ranges are read in order with
+ * positional reads, so the MD5 and the checksum are computed along the way, and each range is then written by
+ * its own Put Range request on the lane of the upload step. A few range buffers are reused, which bounds the
+ * memory of a large file. A failed range stops the upload before the rest of the file is read.
+ */
+final class ShareFileRangeUpload {
+    /**
+     * Size of the ranges, the largest a single Put Range request accepts.
+     */
+    static final int RANGE_SIZE = ShareFileRangeOutputStream.MAX_RANGE_SIZE;
+
+    private final ShareFileClient fileClient;
+    private final File file;
+    private final int concurrency;
+    private final ExecutorService executor;
+    private final Context context;
+    private final MessageDigest md5 = DigestUtils.getMd5Digest();
+    private final MessageDigest digest;
+    private byte[] contentMd5;
+
+    /**
+     * @param fileClient  The target file, which is created or replaced.
+     * @param file        The local file.
+     * @param concurrency Number of ranges in flight.
+     * @param executor    Lane of the upload step, which writes the ranges.
+     * @param context     Context of the requests, which carries the throttling feedback.
+     * @param digest      Checksum computed while the file is read besides the MD5, may be <code>null</code>.
+     */
+    ShareFileRangeUpload(ShareFileClient fileClient, File file, int concurrency, ExecutorService executor,
+                         Context context, MessageDigest digest) {
+        this.fileClient = fileClient;
+        this.file = file;
+        this.concurrency = concurrency;
+        this.executor = executor;
+        this.context = context;
+        this.digest = digest;
+    }
+
+    /**
+     * Uploads the file.
+     *
+     * @return the size of the file.
+     */
+    long upload() throws IOException, InterruptedException {
+        long size = Files.size(file.toPath());
+        fileClient.create(size);
+
+        long rangeCount = (size + RANGE_SIZE - 1) / RANGE_SIZE;
+        int maxPending = (int) Math.max(1, Math.min(concurrency, rangeCount));
+        BlockingQueue<byte[]> buffers = new ArrayBlockingQueue<>(maxPending);
+        for (int i = 0; i < maxPending; i++) {
+            buffers.add(new byte[(int) Math.min(RANGE_SIZE, size)]);
+        }
+
+        Deque<FutureTask<Void>> pending = new ArrayDeque<>();
+        AtomicBoolean stopped = new AtomicBoolean();
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            try {
+                for (long offset = 0; offset < size; offset += RANGE_SIZE) {
+                    // a failed range stops the upload before the rest of the file is read
+                    checkCompleted(pending);
+                    while (pending.size() >= maxPending) {
+                        await(pending.removeFirst());
+                    }
+                    // the buffer of a completed range is back
+                    byte[] buffer = buffers.take();
+                    int length = (int) Math.min(RANGE_SIZE, size - offset);
+                    read(channel, buffer, length, offset);
+                    md5.update(buffer, 0, length);
+                    if (digest != null) {
+                        digest.update(buffer, 0, length);
+                    }
+
+                    long rangeOffset = offset;
+                    FutureTask<Void> task = new FutureTask<>(() -> {
+                        try {
+                            if (!stopped.get()) {
+                                fileClient.uploadWithResponse(new ByteArrayInputStream(buffer, 0, length), length,
+                                        rangeOffset, null, context);
+                            }
+                        } finally {
+                            buffers.add(buffer);
+                        }
+                        return null;
+                    });
+                    pending.addLast(task);
+                    executor.execute(task);
+                }
+                while (!pending.isEmpty()) {
+                    await(pending.removeFirst());
+                }
+            } finally {
+                // after a failure, the ranges which did not start are dropped
+                stopped.set(true);
+                for (FutureTask<Void> task : pending) {
+                    task.run();
+                    try {
+                        task.get();
+                    } catch (ExecutionException e) {
+                        // the upload already failed
+                    }
+                }
+            }
+        }
+
+        // the service does not compute the Content-MD5 of a file written in ranges
+        contentMd5 = md5.digest();
+        fileClient.setProperties(size, new ShareFileHttpHeaders().setContentMd5(contentMd5), null, null);
+        return size;
+    }
+
+    /**
+     * Waits for a range to be written. A range which the lane did not start yet is written by the calling
+     * thread, so the upload never waits for a slot of the lane which the file upload itself holds.
+     */
+    private void await(FutureTask<Void> task) throws IOException, InterruptedException {
+        task.run();
+        try {
+            task.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Failed to upload a range of " + file, e.getCause());
+        }
+    }
+
+    /**
+     * Removes the ranges which are already written, and fails if one of them failed.
+     */
+    private void checkCompleted(Deque<FutureTask<Void>> pending) throws IOException, InterruptedException {
+        Iterator<FutureTask<Void>> it = pending.iterator();
+        while (it.hasNext()) {
+            FutureTask<Void> task = it.next();
+            if (task.isDone()) {
+                it.remove();
+                await(task);
+            }
+        }
+    }
+
+    /**
+     * Gets the MD5 of the file, computed while it was uploaded.
+     */
+    byte[] getContentMd5() {
+        return contentMd5;
+    }
+
+    /**
+     * Reads a range of the file at its position, whatever the position of the channel.
+     */
+    private static void read(FileChannel channel, byte[] buffer, int length, long offset) throws IOException {
+        ByteBuffer target = ByteBuffer.wrap(buffer, 0, length);
+        while (target.hasRemaining()) {
+            if (channel.read(target, offset + target.position()) < 0) {
+                throw new EOFException("The file is shorter than when the upload started");
+            }
+        }
+    }
+}
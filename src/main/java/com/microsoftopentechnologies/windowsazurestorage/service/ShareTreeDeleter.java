@@ -0,0 +1,216 @@
+/*
+ Copyright 2016 Microsoft, Inc.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.microsoftopentechnologies.windowsazurestorage.service;
+
+import com.azure.storage.file.share.ShareDirectoryClient;
+import com.azure.storage.file.share.ShareFileClient;
+import com.azure.storage.file.share.models.ShareFileItem;
+import com.azure.storage.file.share.models.ShareStorageException;
+import com.microsoftopentechnologies.windowsazurestorage.helper.RequestStats;
+import org.apache.http.HttpStatus;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Deletes the content of a share directory. The tree is walked by a work-stealing pool, so sibling directories
+ * are listed at the same time, while the files are deleted on a bounded executor. A directory is deleted once
+ * its files and sub-directories are gone, from the leaves up to the directory being cleaned, which is kept.
+ * <p>
+ * A directory waits for its deletes as a managed blocker, so the pool keeps listing the other directories
+ * meanwhile.
+ */
+final class ShareTreeDeleter {
+    /**
+     * Deletes of a directory in flight before its listing waits for them.
+     */
+    private static final int MAX_PENDING_DELETES = 5000;
+
+    private final ExecutorService deletes;
+    private final int parallelism;
+    private final AtomicLong deletedFiles = new AtomicLong();
+    private final AtomicLong deletedDirectories = new AtomicLong();
+    /**
+     * Stats of the thread which cleans up, the directories are listed on the threads of the traversal.
+     */
+    private final RequestStats requests = RequestStats.current();
+
+    /**
+     * @param deletes     Executor of the file deletes.
+     * @param parallelism Number of directories listed at the same time.
+     */
+    ShareTreeDeleter(ExecutorService deletes, int parallelism) {
+        this.deletes = deletes;
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * Deletes every file and sub-directory of the directory.
+     */
+    void deleteContent(ShareDirectoryClient directory) throws IOException {
+        ForkJoinPool traversal = new ForkJoinPool(parallelism);
+        try {
+            traversal.submit(new DirectoryTask(directory, false)).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException(e.getMessage());
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof UncheckedIOException) {
+                throw ((UncheckedIOException) e.getCause()).getCause();
+            }
+            throw new IOException("Failed to clean up " + directory.getDirectoryPath(), e.getCause());
+        } finally {
+            traversal.shutdownNow();
+        }
+    }
+
+    long getDeletedFiles() {
+        return deletedFiles.get();
+    }
+
+    long getDeletedDirectories() {
+        return deletedDirectories.get();
+    }
+
+    private void deleteFile(ShareFileClient file) {
+        try {
+            file.delete();
+            deletedFiles.incrementAndGet();
+        } catch (ShareStorageException e) {
+            // deleted in the meantime
+            if (e.getStatusCode() != HttpStatus.SC_NOT_FOUND) {
+                throw e;
+            }
+        }
+    }
+
+    private final class DirectoryTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final transient ShareDirectoryClient directory;
+        private final boolean deleted;
+
+        DirectoryTask(ShareDirectoryClient directory, boolean deleted) {
+            this.directory = directory;
+            this.deleted = deleted;
+        }
+
+        @Override
+        protected void compute() {
+            if (requests == null) {
+                deleteContent();
+                return;
+            }
+            try (RequestStats.Scope ignored = requests.open()) {
+                deleteContent();
+            }
+        }
+
+        private void deleteContent() {
+            List<DirectoryTask> subdirectories = new ArrayList<>();
+            Deque<Future<?>> pending = new ArrayDeque<>();
+            try {
+                // items are resolved against this directory, their names are relative to it
+                for (ShareFileItem item : directory.listFilesAndDirectories()) {
+                    if (item.isDirectory()) {
+                        DirectoryTask subdirectory = new DirectoryTask(
+                                directory.getSubdirectoryClient(item.getName()), true);
+                        subdirectory.fork();
+                        subdirectories.add(subdirectory);
+                    } else {
+                        ShareFileClient file = directory.getFileClient(item.getName());
+                        pending.add(deletes.submit(() -> deleteFile(file)));
+                        if (pending.size() > MAX_PENDING_DELETES) {
+                            await(pending.removeFirst());
+                        }
+                    }
+                }
+                while (!pending.isEmpty()) {
+                    await(pending.removeFirst());
+                }
+            } finally {
+                for (Future<?> future : pending) {
+                    future.cancel(false);
+                }
+            }
+            for (DirectoryTask subdirectory : subdirectories) {
+                subdirectory.join();
+            }
+
+            if (deleted) {
+                try {
+                    directory.delete();
+                    deletedDirectories.incrementAndGet();
+                } catch (ShareStorageException e) {
+                    if (e.getStatusCode() != HttpStatus.SC_NOT_FOUND) {
+                        throw e;
+                    }
+                }
+            }
+        }
+
+        private void await(Future<?> delete) {
+            try {
+                ForkJoinPool.managedBlock(new DeleteBlocker(delete));
+                delete.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new UncheckedIOException(new InterruptedIOException(e.getMessage()));
+            } catch (ExecutionException e) {
+                throw new UncheckedIOException(new IOException("Failed to delete a file of "
+                        + directory.getDirectoryPath(), e.getCause()));
+            }
+        }
+    }
+
+    /**
+     * Waits for a file delete without taking a thread of the traversal away.
+     */
+    private static final class DeleteBlocker implements ForkJoinPool.ManagedBlocker {
+        private final Future<?> delete;
+
+        DeleteBlocker(Future<?> delete) {
+            this.delete = delete;
+        }
+
+        @Override
+        public boolean block() throws InterruptedException {
+            try {
+                delete.get();
+            } catch (ExecutionException e) {
+                // reported by the caller
+            }
+            return true;
+        }
+
+        @Override
+        public boolean isReleasable() {
+            return delete.isDone();
+        }
+    }
+}
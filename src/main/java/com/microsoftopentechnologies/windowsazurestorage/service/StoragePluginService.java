@@ -15,7 +15,10 @@
 
 package com.microsoftopentechnologies.windowsazurestorage.service;
 
+import com.microsoftopentechnologies.windowsazurestorage.AzureRequestsAction;
+import com.microsoftopentechnologies.windowsazurestorage.Messages;
 import com.microsoftopentechnologies.windowsazurestorage.exceptions.WAStorageException;
+import com.microsoftopentechnologies.windowsazurestorage.helper.RequestStats;
 import com.microsoftopentechnologies.windowsazurestorage.service.model.ServiceData;
 import hudson.model.Result;
 import org.apache.commons.lang.time.DurationFormatUtils;
@@ -31,6 +34,7 @@ public abstract class StoragePluginService<T extends ServiceData> {
     protected static final String FP_SEPARATOR = ",";
 
     private T serviceData;
+    private final RequestStats requestStats = new RequestStats();
 
     protected StoragePluginService(T serviceData) {
         this.serviceData = serviceData;
@@ -38,6 +42,26 @@ public abstract class StoragePluginService<T extends ServiceData> {
 
     public abstract int execute() throws WAStorageException;
 
+    /**
+     * Runs {@link #execute()} with the storage requests it makes, from this thread, the transfer lanes and the
+     * agents, counted into {@link #getRequestStats()}. The counts are then printed and added to the build summary.
+     */
+    public final int executeCountingRequests() throws WAStorageException {
+        try (RequestStats.Scope ignored = requestStats.open()) {
+            return execute();
+        } finally {
+            println(Messages.StoragePluginService_requests(requestStats.getTotal(), requestStats));
+            AzureRequestsAction.record(serviceData.getRun(), getClass().getSimpleName(), requestStats);
+        }
+    }
+
+    /**
+     * Gets the storage requests made by this service so far, by operation.
+     */
+    public RequestStats getRequestStats() {
+        return requestStats;
+    }
+
     protected void setRunUnstable() {
         serviceData.getRun().setResult(Result.UNSTABLE);
     }
@@ -0,0 +1,85 @@
+/*
+ Copyright 2016 Microsoft, Inc.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.microsoftopentechnologies.windowsazurestorage.service;
+
+import hudson.util.IOUtils;
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.time.ZoneOffset;
+
+/**
+ * Tars the visited files into a gzip stream compressed on several threads, see {@link ParallelGzipOutputStream}.
+ */
+final class TarGzArchiver extends ParallelArchiver {
+    private final ParallelGzipOutputStream gzip;
+    private final TarArchiveOutputStream tar;
+    private final boolean reproducible;
+
+    /**
+     * @param out         Target of the archive, closed along with the archiver.
+     * @param level       Compression level from 1 to 9, 0 for the default.
+     * @param parallelism Number of chunks compressed at the same time.
+     * @param reproducible Whether the time, permissions and owner of the files are left out of the archive.
+     */
+    TarGzArchiver(OutputStream out, int level, int parallelism, boolean reproducible) {
+        gzip = new ParallelGzipOutputStream(out, level, parallelism);
+        tar = new TarArchiveOutputStream(gzip, "UTF-8");
+        tar.setLongFileMode(TarArchiveOutputStream.LONGFILE_POSIX);
+        tar.setBigNumberMode(TarArchiveOutputStream.BIGNUMBER_POSIX);
+        this.reproducible = reproducible;
+    }
+
+    @Override
+    public void visit(File f, String relativePath) throws IOException {
+        String name = relativePath.replace('\\', '/');
+        TarArchiveEntry entry = new TarArchiveEntry(f, f.isDirectory() ? name + '/' : name);
+        if (reproducible) {
+            entry.setMode(reproducibleMode(f));
+            entry.setModTime(REPRODUCIBLE_TIME.toInstant(ZoneOffset.UTC).toEpochMilli());
+            entry.setUserId(0);
+            entry.setGroupId(0);
+            entry.setUserName("");
+            entry.setGroupName("");
+        } else {
+            int mode = IOUtils.mode(f);
+            if (mode != -1) {
+                entry.setMode(mode);
+            }
+        }
+        tar.putArchiveEntry(entry);
+        if (!f.isDirectory()) {
+            Files.copy(f.toPath(), tar);
+        }
+        tar.closeArchiveEntry();
+    }
+
+    @Override
+    void finish() throws IOException {
+        tar.finish();
+        gzip.finish();
+    }
+
+    @Override
+    public void close() throws IOException {
+        tar.close();
+    }
+}
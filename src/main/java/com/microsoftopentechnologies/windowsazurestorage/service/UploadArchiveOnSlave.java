@@ -0,0 +1,407 @@
+/*
+ Copyright 2017 Microsoft Open Technologies, Inc.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.microsoftopentechnologies.windowsazurestorage.service;
+
+import com.azure.storage.blob.BlobClient;
+import com.azure.storage.blob.models.BlobHttpHeaders;
+import com.azure.storage.blob.options.BlobParallelUploadOptions;
+import com.azure.storage.blob.sas.BlobSasPermission;
+import com.azure.storage.blob.specialized.BlobOutputStream;
+import com.azure.storage.blob.specialized.BlockBlobClient;
+import com.azure.storage.file.share.ShareFileClient;
+import com.microsoftopentechnologies.windowsazurestorage.helper.AzureClientCache;
+import com.microsoftopentechnologies.windowsazurestorage.helper.Constants;
+import com.microsoftopentechnologies.windowsazurestorage.helper.RequestStats;
+import com.microsoftopentechnologies.windowsazurestorage.helper.TransferScheduler;
+import com.microsoftopentechnologies.windowsazurestorage.service.model.ArchiveFormat;
+import com.microsoftopentechnologies.windowsazurestorage.service.model.ChecksumAlgorithm;
+import com.microsoftopentechnologies.windowsazurestorage.service.model.TransferTuning;
+import hudson.ProxyConfiguration;
+import hudson.remoting.VirtualChannel;
+import hudson.util.DirScanner;
+import hudson.util.FileVisitor;
+import jenkins.MasterToSlaveFileCallable;
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.io.output.CloseShieldOutputStream;
+import org.apache.commons.io.output.CountingOutputStream;
+import org.apache.http.HttpStatus;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * A task which will be executed on Jenkins agents. It archives the files matched by the archive patterns,
+ * compressing on every core of the agent, and streams the archive straight into the target blob or share file,
+ * so the archive bytes never go through the Jenkins controller.
+ * <p>
+ * With more than one target, the files are spread over independently readable parts of about the same size,
+ * which are written at the same time on a lane of the {@link TransferScheduler}. The number of parts in flight
+ * is bounded, so that their buffers fit in a quarter of the agent heap.
+ * <p>
+ * A reproducible archive holds its files sorted by path, without their time or owner. It is written to a
+ * temporary file first and not uploaded when the target blob already holds the same bytes. Its targets need a
+ * SAS with the {@link #getReproduciblePermission() permissions} to read the blob.
+ */
+final class UploadArchiveOnSlave extends MasterToSlaveFileCallable<List<UploadService.UploadResult>> {
+    private static final long serialVersionUID = 3410625375264930125L;
+
+    /**
+     * The parts written at the same time buffer at most one part in this many of the agent heap.
+     */
+    private static final int HEAP_SHARE = 4;
+
+    private final ProxyConfiguration proxy;
+    private final String includes;
+    private final String excludes;
+    private final List<UploadService.UploadObject> parts;
+    private final TransferTuning transferTuning;
+    private final ChecksumAlgorithm checksumAlgorithm;
+    private final ArchiveFormat format;
+    private final int compressionLevel;
+    private final boolean reproducible;
+
+    /**
+     * @param proxy          Proxy configuration of the Jenkins controller.
+     * @param includes       Ant glob of the files to archive, relative to the workspace.
+     * @param excludes       Ant glob of the files to leave out of the archive.
+     * @param parts          The targets of the archive, one per part. Their sources are ignored.
+     * @param transferTuning Block settings of the upload, the archive is treated as a large file.
+     * @param checksumAlgorithm Checksum computed while the archive is written, along with its MD5.
+     * @param format         Format of the archive.
+     * @param compressionLevel Compression level from 1 to 9, 0 for the default of the format.
+     * @param reproducible   Whether the archive only depends on the paths and content of the files.
+     */
+    UploadArchiveOnSlave(ProxyConfiguration proxy, String includes, String excludes,
+                         List<UploadService.UploadObject> parts, TransferTuning transferTuning,
+                         ChecksumAlgorithm checksumAlgorithm, ArchiveFormat format, int compressionLevel,
+                         boolean reproducible) {
+        this.proxy = proxy;
+        this.includes = includes;
+        this.excludes = excludes;
+        this.parts = parts;
+        this.transferTuning = transferTuning;
+        this.checksumAlgorithm = checksumAlgorithm;
+        this.format = format;
+        this.compressionLevel = compressionLevel;
+        this.reproducible = reproducible;
+    }
+
+    /**
+     * @return The results of the parts which were written, parts left without files are not created. An
+     * unchanged reproducible part has the status {@link HttpStatus#SC_NOT_MODIFIED}.
+     */
+    @Override
+    public List<UploadService.UploadResult> invoke(File workspace, VirtualChannel channel)
+            throws IOException, InterruptedException {
+        int processors = Runtime.getRuntime().availableProcessors();
+        if (parts.size() == 1 && !reproducible) {
+            // the files are archived while the workspace is scanned
+            return Collections.singletonList(uploadPart(parts.get(0),
+                    visitor -> new DirScanner.Glob(includes, excludes).scan(workspace, visitor), processors));
+        }
+
+        List<Entry> scanned = new ArrayList<>();
+        new DirScanner.Glob(includes, excludes).scan(workspace, new FileVisitor() {
+            @Override
+            public void visit(File f, String relativePath) {
+                scanned.add(new Entry(f, relativePath, scanned.size()));
+            }
+        });
+        List<Entry> entries = reproducible ? sortByPath(scanned) : scanned;
+        if (parts.size() == 1) {
+            return Collections.singletonList(uploadPart(parts.get(0), visitor -> {
+                for (Entry entry : entries) {
+                    visitor.visit(entry.file, entry.relativePath);
+                }
+            }, processors));
+        }
+        List<List<Entry>> partEntries = partition(entries, parts.size());
+
+        // Each part buffers its blocks in flight and the entries being compressed, sized here for the case where
+        // a single part compresses on every core.
+        long partBuffer = transferTuning.getBlockSize() * transferTuning.getBlockConcurrency()
+                + processors * ParallelArchiver.MAX_BUFFER_PER_THREAD;
+        int partsInFlight = getPartsInFlight(parts.size(), partBuffer, Runtime.getRuntime().maxMemory());
+        ExecutorService executor = TransferScheduler.get().newLane(partsInFlight);
+        try {
+            List<Future<UploadService.UploadResult>> futures = new ArrayList<>();
+            int parallelism = Math.max(1, processors / partsInFlight);
+            for (int i = 0; i < parts.size(); i++) {
+                List<Entry> part = partEntries.get(i);
+                if (part.isEmpty()) {
+                    continue;
+                }
+                UploadService.UploadObject target = parts.get(i);
+                futures.add(executor.submit(() -> uploadPart(target, visitor -> {
+                    for (Entry entry : part) {
+                        visitor.visit(entry.file, entry.relativePath);
+                    }
+                }, parallelism)));
+            }
+
+            List<UploadService.UploadResult> results = new ArrayList<>();
+            for (Future<UploadService.UploadResult> future : futures) {
+                results.add(future.get());
+            }
+            return results;
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Failed to upload an archive part", e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Gets the number of parts written at the same time, so that their buffers fit in the share of the heap.
+     *
+     * @param partCount  Number of parts of the archive.
+     * @param partBuffer Most memory buffered by a part.
+     * @param maxMemory  The maximum heap size of the agent.
+     */
+    static int getPartsInFlight(int partCount, long partBuffer, long maxMemory) {
+        return (int) Math.max(1, Math.min(partCount, maxMemory / HEAP_SHARE / partBuffer));
+    }
+
+    /**
+     * Orders the files by path, whatever the order of the file system. The separators are unified first, so the
+     * order is the same on every platform.
+     */
+    static List<Entry> sortByPath(List<Entry> entries) {
+        List<Entry> sorted = new ArrayList<>(entries);
+        sorted.sort(Comparator.comparing((Entry entry) -> entry.relativePath.replace('\\', '/')));
+        List<Entry> result = new ArrayList<>();
+        for (Entry entry : sorted) {
+            result.add(new Entry(entry.file, entry.relativePath, result.size()));
+        }
+        return result;
+    }
+
+    /**
+     * Spreads the files over the parts, the largest first into the smallest part. The part of a file depends on
+     * the sizes of all the files, so a file may move to another part when a size changes. Within a part, the
+     * files keep the scan order.
+     */
+    static List<List<Entry>> partition(List<Entry> entries, int count) {
+        List<Entry> bySize = new ArrayList<>(entries);
+        bySize.sort(Comparator.comparingLong((Entry entry) -> entry.size).reversed());
+
+        List<List<Entry>> partEntries = new ArrayList<>();
+        long[] partSizes = new long[count];
+        for (int i = 0; i < count; i++) {
+            partEntries.add(new ArrayList<>());
+        }
+        for (Entry entry : bySize) {
+            int smallest = 0;
+            for (int i = 1; i < count; i++) {
+                if (partSizes[i] < partSizes[smallest]) {
+                    smallest = i;
+                }
+            }
+            partEntries.get(smallest).add(entry);
+            partSizes[smallest] += entry.size;
+        }
+        for (List<Entry> part : partEntries) {
+            part.sort(Comparator.comparingInt(entry -> entry.index));
+        }
+        return partEntries;
+    }
+
+    /**
+     * Writes a part, the storage requests made for it are sent back with its result.
+     */
+    private UploadService.UploadResult uploadPart(UploadService.UploadObject target, EntrySource source,
+                                                 int parallelism) throws IOException, InterruptedException {
+        RequestStats requests = new RequestStats();
+        UploadService.UploadResult result;
+        try (RequestStats.Scope ignored = requests.open()) {
+            result = writePart(target, source, parallelism);
+        }
+        result.setRequests(requests);
+        return result;
+    }
+
+    private UploadService.UploadResult writePart(UploadService.UploadObject target, EntrySource source,
+                                                 int parallelism) throws IOException, InterruptedException {
+        MessageDigest md5 = DigestUtils.getMd5Digest();
+        MessageDigest digest = checksumAlgorithm == ChecksumAlgorithm.MD5 ? null : checksumAlgorithm.newDigest();
+        long startTime = System.currentTimeMillis();
+
+        int statusCode = HttpStatus.SC_CREATED;
+        long length;
+        byte[] md5Bytes;
+        if (Constants.FILE_STORAGE.equalsIgnoreCase(target.getStorageType())) {
+            length = archiveToShareFile(target, source, parallelism, md5, digest);
+            md5Bytes = md5.digest();
+        } else if (reproducible) {
+            BlobClient blob = AzureClientCache
+                    .getBlobContainerClient(proxy, target.getUrl(), target.getSas())
+                    .getBlobClient(target.getName());
+            BlobHttpHeaders headers = UploadService.UploadThread.getBlobHttpHeaders(target.getBlobProperties());
+            Path spool = Files.createTempFile("archive", "." + format.getExtension());
+            try {
+                try (OutputStream output = Files.newOutputStream(spool)) {
+                    length = writeArchive(source, parallelism, output, md5, digest);
+                }
+                md5Bytes = md5.digest();
+                if (isStored(blob, md5Bytes)) {
+                    statusCode = HttpStatus.SC_NOT_MODIFIED;
+                } else {
+                    uploadSpooled(blob, headers.setContentMd5(md5Bytes), target, spool, length);
+                }
+            } finally {
+                Files.deleteIfExists(spool);
+            }
+        } else {
+            BlockBlobClient blob = AzureClientCache
+                    .getBlobContainerClient(proxy, target.getUrl(), target.getSas())
+                    .getBlobClient(target.getName())
+                    .getBlockBlobClient();
+            BlobHttpHeaders headers = UploadService.UploadThread.getBlobHttpHeaders(target.getBlobProperties());
+            length = archiveToBlob(blob, headers, target, source, parallelism, md5, digest);
+            md5Bytes = md5.digest();
+            // the service does not compute the Content-MD5 of a blob made of blocks
+            blob.setHttpHeaders(headers.setContentMd5(md5Bytes));
+        }
+
+        long endTime = System.currentTimeMillis();
+        UploadService.UploadResult result = new UploadService.UploadResult(statusCode, null,
+                Hex.encodeHexString(md5Bytes),
+                target.getName(),
+                target.getUrl(), length, target.getStorageType(),
+                startTime, endTime);
+        result.setChecksum(checksumAlgorithm, Hex.encodeHexString(digest == null ? md5Bytes : digest.digest()));
+        return result;
+    }
+
+    private long archiveToBlob(BlockBlobClient blob, BlobHttpHeaders headers, UploadService.UploadObject target,
+                               EntrySource source, int parallelism, MessageDigest md5, MessageDigest digest)
+            throws IOException, InterruptedException {
+        // Blocks are staged while the archive is written and only committed when the stream is closed.
+        BlobOutputStream blobStream = blob.getBlobOutputStream(transferTuning.getParallelTransferOptions(-1),
+                headers, target.getMetadata(), null, null);
+        long length = writeArchive(source, parallelism, blobStream, md5, digest);
+        blobStream.close();
+        return length;
+    }
+
+    /**
+     * Gets the permissions of the blob SAS of a reproducible part, which is read to compare it with the archive
+     * before it is written.
+     */
+    static BlobSasPermission getReproduciblePermission() {
+        return new BlobSasPermission().setReadPermission(true).setWritePermission(true);
+    }
+
+    /**
+     * Whether the blob exists and holds the archive, by its Content-MD5.
+     */
+    static boolean isStored(BlobClient blob, byte[] md5Bytes) {
+        if (!blob.exists()) {
+            return false;
+        }
+        return Arrays.equals(md5Bytes, blob.getProperties().getContentMd5());
+    }
+
+    private void uploadSpooled(BlobClient blob, BlobHttpHeaders headers, UploadService.UploadObject target,
+                               Path spool, long length) throws IOException {
+        try (InputStream stream = new BufferedInputStream(Files.newInputStream(spool))) {
+            BlobParallelUploadOptions options = new BlobParallelUploadOptions(stream, length)
+                    .setParallelTransferOptions(transferTuning.getParallelTransferOptions(length))
+                    .setHeaders(headers)
+                    .setMetadata(target.getMetadata());
+            blob.uploadWithResponse(options, null, RequestStats.currentContext());
+        }
+    }
+
+    private long archiveToShareFile(UploadService.UploadObject target, EntrySource source, int parallelism,
+                                    MessageDigest md5, MessageDigest digest)
+            throws IOException, InterruptedException {
+        ShareFileClient fileClient = AzureClientCache.getShareClient(proxy, target.getUrl(), target.getSas())
+                .getFileClient(target.getName());
+        fileClient.create(0);
+
+        ShareFileRangeOutputStream fileStream = new ShareFileRangeOutputStream(fileClient);
+        long length = writeArchive(source, parallelism, fileStream, md5, digest);
+        fileStream.close();
+        return length;
+    }
+
+    /**
+     * Writes the archive into the target stream without closing it, so that a failed archive is never
+     * committed to the storage.
+     */
+    private long writeArchive(EntrySource source, int parallelism, OutputStream target, MessageDigest md5,
+                              MessageDigest digest) throws IOException, InterruptedException {
+        CountingOutputStream counter = new CountingOutputStream(new CloseShieldOutputStream(target));
+        OutputStream output = new DigestOutputStream(counter, md5);
+        if (digest != null) {
+            output = new DigestOutputStream(output, digest);
+        }
+        try (ParallelArchiver archiver = ParallelArchiver.create(format, compressionLevel, output, parallelism,
+                reproducible)) {
+            source.scan(archiver);
+            archiver.finish();
+        }
+        return counter.getByteCount();
+    }
+
+    /**
+     * Feeds the files of an archive to the archiver.
+     */
+    private interface EntrySource {
+        void scan(FileVisitor visitor) throws IOException;
+    }
+
+    /**
+     * A file of a multi-part archive.
+     */
+    static final class Entry {
+        private final File file;
+        private final String relativePath;
+        private final long size;
+        private final int index;
+
+        Entry(File file, String relativePath, int index) {
+            this.file = file;
+            this.relativePath = relativePath;
+            this.size = file.length();
+            this.index = index;
+        }
+
+        String getRelativePath() {
+            return relativePath;
+        }
+    }
+}
@@ -15,129 +15,92 @@
 
 package com.microsoftopentechnologies.windowsazurestorage.service;
 
-import com.azure.core.credential.AzureSasCredential;
 import com.azure.core.http.rest.Response;
 import com.azure.core.util.Context;
 import com.azure.storage.blob.BlobClient;
 import com.azure.storage.blob.BlobContainerClient;
-import com.azure.storage.blob.BlobServiceClient;
-import com.azure.storage.blob.BlobServiceClientBuilder;
-import com.azure.storage.blob.BlobUrlParts;
 import com.azure.storage.blob.models.BlobHttpHeaders;
 import com.azure.storage.blob.models.BlockBlobItem;
-import com.azure.storage.blob.options.BlobUploadFromFileOptions;
-import com.azure.storage.blob.sas.BlobSasPermission;
+import com.azure.storage.blob.models.ParallelTransferOptions;
+import com.azure.storage.blob.options.BlobParallelUploadOptions;
+import com.azure.storage.blob.sas.BlobContainerSasPermission;
+import com.azure.storage.blob.specialized.BlockBlobClient;
 import com.azure.storage.file.share.ShareFileClient;
-import com.azure.storage.file.share.models.ShareFileUploadInfo;
-import com.azure.storage.file.share.sas.ShareFileSasPermission;
+import com.azure.storage.file.share.sas.ShareSasPermission;
 import com.microsoftopentechnologies.windowsazurestorage.AzureBlob;
 import com.microsoftopentechnologies.windowsazurestorage.AzureBlobMetadataPair;
 import com.microsoftopentechnologies.windowsazurestorage.Messages;
 import com.microsoftopentechnologies.windowsazurestorage.beans.StorageAccountInfo;
 import com.microsoftopentechnologies.windowsazurestorage.exceptions.WAStorageException;
+import com.microsoftopentechnologies.windowsazurestorage.helper.AdaptiveConcurrency;
+import com.microsoftopentechnologies.windowsazurestorage.helper.AzureClientCache;
 import com.microsoftopentechnologies.windowsazurestorage.helper.AzureUtils;
 import com.microsoftopentechnologies.windowsazurestorage.helper.Constants;
+import com.microsoftopentechnologies.windowsazurestorage.helper.RequestStats;
+import com.microsoftopentechnologies.windowsazurestorage.service.model.ChecksumAlgorithm;
 import com.microsoftopentechnologies.windowsazurestorage.service.model.PartialBlobProperties;
+import com.microsoftopentechnologies.windowsazurestorage.service.model.TransferTuning;
+import com.microsoftopentechnologies.windowsazurestorage.service.model.UploadCompression;
+import com.microsoftopentechnologies.windowsazurestorage.service.model.UploadItem;
+import com.microsoftopentechnologies.windowsazurestorage.service.model.UploadPlan;
 import com.microsoftopentechnologies.windowsazurestorage.service.model.UploadServiceData;
 import com.microsoftopentechnologies.windowsazurestorage.service.model.UploadType;
 import hudson.EnvVars;
 import hudson.FilePath;
 import hudson.ProxyConfiguration;
 import hudson.Util;
+import hudson.model.TaskListener;
 import hudson.remoting.VirtualChannel;
-import io.jenkins.plugins.azuresdk.HttpClientRetriever;
 import jenkins.MasterToSlaveFileCallable;
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang.StringUtils;
 import org.apache.http.HttpStatus;
 
-import javax.xml.bind.DatatypeConverter;
 import java.io.BufferedInputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.Serializable;
+import java.net.MalformedURLException;
 import java.net.URI;
-import java.nio.charset.StandardCharsets;
+import java.net.URISyntaxException;
 import java.nio.file.Files;
+import java.security.DigestInputStream;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
 import java.util.Map;
-import java.util.StringTokenizer;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Future;
-import java.util.concurrent.LinkedBlockingDeque;
-import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
-import java.util.logging.Level;
-import java.util.logging.Logger;
+import java.util.zip.GZIPOutputStream;
 
 public abstract class UploadService extends StoragePluginService<UploadServiceData> {
     protected static final String ZIP_FOLDER_NAME = "artifactsArchive";
     protected static final String ZIP_NAME = "archive.zip";
+    protected static final String ARCHIVE_BASE_NAME = "archive";
     private static final int UPLOAD_THREAD_COUNT = 16;
-    private static final int KEEP_ALIVE_TIME = 1;
+    private static final int GZIP_BUFFER = 64 * 1024;
     private static final int TIME_OUT = 1;
     private static final TimeUnit TIME_OUT_UNIT = TimeUnit.DAYS;
-    private static final Logger LOGGER = Logger.getLogger(UploadService.class.getName());
 
     private AtomicInteger filesUploaded = new AtomicInteger(0);
-    private ExecutorService executorService = new ThreadPoolExecutor(UPLOAD_THREAD_COUNT, UPLOAD_THREAD_COUNT,
-            KEEP_ALIVE_TIME, TimeUnit.SECONDS, new LinkedBlockingDeque<Runnable>());
+    private AdaptiveConcurrency concurrency;
 
     protected UploadService(UploadServiceData serviceData) {
         super(serviceData);
     }
 
-    /**
-     * A task to upload Azure Share Files by storage sdk.
-     */
-    class FileUploadThread implements Runnable {
-        private ShareFileClient uploadItem;
-        private FilePath filePath;
-        private List<AzureBlob> azureBlobs;
-
-        /**
-         * Default constructor of FileUploadThread.
-         *
-         * @param uploadItem Target Share File which will be uploaded to.
-         * @param filePath   The local file needed to be uploaded.
-         * @param azureBlobs Records of uploaded files.
-         */
-        FileUploadThread(ShareFileClient uploadItem, FilePath filePath, List<AzureBlob> azureBlobs) {
-            this.uploadItem = uploadItem;
-            this.filePath = filePath;
-            this.azureBlobs = azureBlobs;
-        }
-
-        @Override
-        public void run() {
-            try {
-                AzureBlob azureBlob;
-                String uploadedFileHash = uploadCloudFile(uploadItem, filePath);
-                azureBlob = new AzureBlob(
-                        uploadItem.getShareName(),
-                        uploadItem.getFileUrl(),
-                        uploadedFileHash,
-                        filePath.length(),
-                        Constants.FILE_STORAGE,
-                        getServiceData().getCredentialsId()
-                        );
-                filesUploaded.addAndGet(1);
-                azureBlobs.add(azureBlob);
-            } catch (WAStorageException | InterruptedException | IOException e) {
-                LOGGER.log(Level.SEVERE, e.getMessage(), e);
-                final String message = Messages.AzureStorageBuilder_download_err(
-                        getServiceData().getStorageAccountInfo().getStorageAccName()) + ":" + e.getMessage();
-                e.printStackTrace(error(message));
-                println(message);
-                setRunUnstable();
-            }
-        }
-    }
-
     /**
      * Data object for https uploading command.
      */
@@ -151,6 +114,8 @@ public abstract class UploadService extends StoragePluginService<UploadServiceDa
         private String storageAccount;
         private PartialBlobProperties blobProperties;
         private Map<String, String> metadata;
+        private String md5;
+        private boolean compressed;
 
         /**
          * Default Constructor for UploadObject.
@@ -205,6 +170,29 @@ public abstract class UploadService extends StoragePluginService<UploadServiceDa
         public Map<String, String> getMetadata() {
             return metadata;
         }
+
+        /**
+         * Lower case hex MD5 of the content if it is already known, which is then recorded instead of the one
+         * returned by the service.
+         */
+        public String getMd5() {
+            return md5;
+        }
+
+        public void setMd5(String md5) {
+            this.md5 = md5;
+        }
+
+        /**
+         * Whether the file is gzipped while it is uploaded, its blob properties then carry the content encoding.
+         */
+        public boolean isCompressed() {
+            return compressed;
+        }
+
+        public void setCompressed(boolean compressed) {
+            this.compressed = compressed;
+        }
     }
 
     /**
@@ -221,6 +209,9 @@ public abstract class UploadService extends StoragePluginService<UploadServiceDa
         private String storageType;
         private long startTime;
         private long endTime;
+        private ChecksumAlgorithm checksumAlgorithm;
+        private String checksum;
+        private RequestStats requests;
 
         /**
          * Default constructor for UploadResult.
@@ -284,6 +275,33 @@ public abstract class UploadService extends StoragePluginService<UploadServiceDa
         public long getEndTime() {
             return endTime;
         }
+
+        public ChecksumAlgorithm getChecksumAlgorithm() {
+            return checksumAlgorithm;
+        }
+
+        /**
+         * Lower case hex checksum of the content, computed on the agent while it was uploaded.
+         */
+        public String getChecksum() {
+            return checksum;
+        }
+
+        public void setChecksum(ChecksumAlgorithm checksumAlgorithm, String checksum) {
+            this.checksumAlgorithm = checksumAlgorithm;
+            this.checksum = checksum;
+        }
+
+        /**
+         * The storage requests made on the agent to write the object.
+         */
+        public RequestStats getRequests() {
+            return requests;
+        }
+
+        public void setRequests(RequestStats requests) {
+            this.requests = requests;
+        }
     }
 
     /**
@@ -294,31 +312,56 @@ public abstract class UploadService extends StoragePluginService<UploadServiceDa
         private static final long serialVersionUID = -7284277515594786765L;
         private final ProxyConfiguration proxy;
         private final List<UploadObject> uploadObjects;
+        private final TaskListener listener;
+        private final TransferTuning transferTuning;
+        private final ChecksumAlgorithm checksumAlgorithm;
 
-        UploadOnSlave(ProxyConfiguration proxy, List<UploadObject> uploadObjects) {
+        UploadOnSlave(ProxyConfiguration proxy, List<UploadObject> uploadObjects, TaskListener listener,
+                      TransferTuning transferTuning, ChecksumAlgorithm checksumAlgorithm) {
             this.proxy = proxy;
             this.uploadObjects = uploadObjects;
+            this.listener = listener;
+            this.transferTuning = transferTuning;
+            this.checksumAlgorithm = checksumAlgorithm;
         }
 
         @Override
         public List<UploadResult> invoke(File f, VirtualChannel channel)
                 throws IOException, InterruptedException {
-            ExecutorService agentExecutorService = new ThreadPoolExecutor(UPLOAD_THREAD_COUNT, UPLOAD_THREAD_COUNT,
-                    KEEP_ALIVE_TIME, TimeUnit.SECONDS, new LinkedBlockingDeque<>());
+            AdaptiveConcurrency agentConcurrency = AdaptiveConcurrency.newLane(UPLOAD_THREAD_COUNT,
+                    listener.getLogger()::println);
+            ExecutorService agentExecutorService = agentConcurrency.getLane();
 
+            // All files of an upload step share one container or share SAS, so they all share one cached client,
+            // except for resumable uploads whose blob SAS also allows reading.
+            // Every file counts its requests on its own, they are sent back with its result.
             List<Future<UploadResult>> futures = new ArrayList<>();
+            List<RequestStats> requests = new ArrayList<>();
             for (UploadObject uploadObject : uploadObjects) {
-
-                Future<UploadResult> future = agentExecutorService.submit(
-                        new UploadThread(proxy, uploadObject)
-                );
-                futures.add(future);
+                RequestStats fileRequests = new RequestStats();
+                Context context = fileRequests.addTo(agentConcurrency.context());
+                Callable<UploadResult> task;
+                if (Constants.FILE_STORAGE.equalsIgnoreCase(uploadObject.getStorageType())) {
+                    ShareFileClient fileClient = AzureClientCache.getShareClient(proxy, uploadObject.getUrl(),
+                            uploadObject.getSas()).getFileClient(uploadObject.getName());
+                    task = new ShareFileUploadThread(fileClient, uploadObject, agentExecutorService, context,
+                            transferTuning, checksumAlgorithm);
+                } else {
+                    BlobContainerClient containerClient = AzureClientCache.getBlobContainerClient(proxy,
+                            uploadObject.getUrl(), uploadObject.getSas());
+                    task = new UploadThread(containerClient, uploadObject, agentExecutorService, context,
+                            transferTuning, checksumAlgorithm);
+                }
+                futures.add(agentExecutorService.submit(fileRequests.wrap(task)));
+                requests.add(fileRequests);
             }
 
             List<UploadResult> results = new ArrayList<>();
             try {
-                for (Future<UploadResult> future : futures) {
-                    results.add(future.get());
+                for (int i = 0; i < futures.size(); i++) {
+                    UploadResult result = futures.get(i).get();
+                    result.setRequests(requests.get(i));
+                    results.add(result);
                 }
             } catch (ExecutionException e) {
                 throw new IOException(e);
@@ -339,6 +382,7 @@ public abstract class UploadService extends StoragePluginService<UploadServiceDa
     protected void updateAzureBlobs(List<UploadResult> results,
                                     List<AzureBlob> azureBlobs) throws WAStorageException {
         for (UploadResult result : results) {
+            getRequestStats().add(result.getRequests());
             if (result.getStatusCode() == HttpStatus.SC_CREATED) {
                 UploadServiceData serviceData = getServiceData();
                 AzureBlob azureBlob = new AzureBlob(
@@ -347,7 +391,10 @@ public abstract class UploadService extends StoragePluginService<UploadServiceDa
                         result.getFileHash(),
                         result.getByteSize(),
                         result.getStorageType(),
-                        serviceData.getCredentialsId());
+                        serviceData.getCredentialsId(),
+                        null,
+                        result.getChecksumAlgorithm() == null ? null : result.getChecksumAlgorithm().name(),
+                        result.getChecksum());
 
                 filesUploaded.addAndGet(1);
                 azureBlobs.add(azureBlob);
@@ -361,78 +408,270 @@ public abstract class UploadService extends StoragePluginService<UploadServiceDa
         }
     }
 
-    protected String generateWriteSASURL(StorageAccountInfo storageAccountInfo, String fileName,
-                                         String storageType, String name) throws Exception {
-        if (storageType.equalsIgnoreCase(Constants.BLOB_STORAGE)) {
+    /**
+     * Records a file which was not uploaded because its content is already stored in the blob.
+     *
+     * @param item       The local file.
+     * @param storedName The name of the blob holding the content, null if it is the name of the file.
+     * @param url        The url of the blob holding the content.
+     * @param azureBlobs Records of the uploaded files.
+     */
+    protected void recordExisting(UploadItem item, String storedName, String url, List<AzureBlob> azureBlobs) {
+        UploadServiceData serviceData = getServiceData();
+        azureBlobs.add(new AzureBlob(
+                item.getName(),
+                url,
+                item.getMd5(),
+                item.getSize(),
+                Constants.BLOB_STORAGE,
+                serviceData.getCredentialsId(),
+                storedName,
+                serviceData.getChecksumAlgorithm().name(),
+                getKnownChecksum(item, serviceData.getChecksumAlgorithm())));
+        filesUploaded.addAndGet(1);
+    }
 
-            return AzureUtils.generateBlobSASURL(storageAccountInfo, name, fileName,
-                    new BlobSasPermission().setWritePermission(true));
-        } else if (storageType.equalsIgnoreCase(Constants.FILE_STORAGE)) {
-            return AzureUtils.generateFileSASURL(storageAccountInfo, name, fileName,
-                    new ShareFileSasPermission().setWritePermission(true));
+    /**
+     * Records a reproducible archive which the blob already held, so that it is listed and downloaded like an
+     * uploaded one. It is counted like an uploaded archive, which is then taken off the count of the files.
+     *
+     * @param result     The result of the archive part, whose upload was skipped.
+     * @param azureBlobs Records of the archives.
+     */
+    protected void recordUnchangedArchive(UploadResult result, List<AzureBlob> azureBlobs) {
+        UploadServiceData serviceData = getServiceData();
+        azureBlobs.add(new AzureBlob(
+                result.getName(),
+                result.getUrl(),
+                result.getFileHash(),
+                result.getByteSize(),
+                result.getStorageType(),
+                serviceData.getCredentialsId(),
+                null,
+                result.getChecksumAlgorithm().name(),
+                result.getChecksum()));
+        filesUploaded.addAndGet(1);
+        println(Messages.UploadToBlobService_archive_unchanged(result.getUrl()));
+    }
+
+    /**
+     * Gets the checksum of a file which was computed by the planning pass, if any.
+     */
+    private static String getKnownChecksum(UploadItem item, ChecksumAlgorithm algorithm) {
+        switch (algorithm) {
+            case MD5:
+                return item.getMd5();
+            case SHA256:
+                return item.getSha256();
+            default:
+                return null;
         }
-        throw new Exception("Unknown storage type. Please re-configure your job and build again.");
     }
 
     /**
-     * A task to upload files to Azure Storage by using https.
+     * Generates one write SAS for the whole container, which is shared by every file of an upload step.
+     *
+     * @param storageAccountInfo The storage account the container belongs to.
+     * @param containerName      The name of the container.
+     * @return SAS token
      */
-    static class UploadThread implements Callable<UploadResult> {
-        private final ProxyConfiguration proxyConfiguration;
-        private UploadObject uploadObject;
+    protected String generateContainerWriteSAS(StorageAccountInfo storageAccountInfo, String containerName)
+            throws MalformedURLException, URISyntaxException {
+        return AzureUtils.generateContainerSASURL(storageAccountInfo, containerName,
+                new BlobContainerSasPermission().setWritePermission(true));
+    }
 
-        UploadThread(ProxyConfiguration proxyConfiguration, UploadObject uploadObject) {
-            this.proxyConfiguration = proxyConfiguration;
+    /**
+     * Generates one SAS for the whole share, which lets the agents create and write every file of an upload
+     * step.
+     *
+     * @param storageAccountInfo The storage account the share belongs to.
+     * @param shareName          The name of the share.
+     * @return SAS token
+     */
+    protected String generateShareWriteSAS(StorageAccountInfo storageAccountInfo, String shareName)
+            throws MalformedURLException, URISyntaxException {
+        return AzureUtils.generateShareSASURL(storageAccountInfo, shareName,
+                new ShareSasPermission().setCreatePermission(true).setWritePermission(true));
+    }
+
+    /**
+     * A task to upload a file to an Azure Share File, see {@link ShareFileRangeUpload}. The ranges of a large
+     * file are written in parallel on the lane of the upload step, as many as the blocks of a large blob.
+     */
+    static class ShareFileUploadThread implements Callable<UploadResult> {
+        private final ShareFileClient fileClient;
+        private final UploadObject uploadObject;
+        private final ExecutorService executor;
+        private final Context context;
+        private final TransferTuning transferTuning;
+        private final ChecksumAlgorithm checksumAlgorithm;
+
+        ShareFileUploadThread(ShareFileClient fileClient, UploadObject uploadObject, ExecutorService executor,
+                              Context context, TransferTuning transferTuning, ChecksumAlgorithm checksumAlgorithm) {
+            this.fileClient = fileClient;
             this.uploadObject = uploadObject;
+            this.executor = executor;
+            this.context = context;
+            this.transferTuning = transferTuning;
+            this.checksumAlgorithm = checksumAlgorithm;
+        }
+
+        @Override
+        public UploadResult call() throws IOException, InterruptedException {
+            File file = new File(uploadObject.getSrc().getRemote());
+            long startTime = System.currentTimeMillis();
+
+            MessageDigest digest = checksumAlgorithm == ChecksumAlgorithm.MD5 ? null : checksumAlgorithm.newDigest();
+            ShareFileRangeUpload upload = new ShareFileRangeUpload(fileClient, file,
+                    transferTuning.getBlockConcurrency(), executor, context, digest);
+            long length = upload.upload();
+            byte[] md5Bytes = upload.getContentMd5();
+            long endTime = System.currentTimeMillis();
+
+            UploadResult result = new UploadResult(HttpStatus.SC_CREATED, null,
+                    Hex.encodeHexString(md5Bytes),
+                    uploadObject.getName(),
+                    uploadObject.getUrl(), length, uploadObject.getStorageType(),
+                    startTime, endTime);
+            result.setChecksum(checksumAlgorithm, Hex.encodeHexString(digest == null ? md5Bytes : digest.digest()));
+            return result;
         }
+    }
 
-        private BlobServiceClient getBlobServiceClient() {
-            return new BlobServiceClientBuilder()
-                    .credential(new AzureSasCredential(uploadObject.getSas()))
-                    .httpClient(HttpClientRetriever.get(proxyConfiguration))
-                    .endpoint(uploadObject.getUrl())
-                    .buildClient();
+    /**
+     * A task to upload files to Azure Storage by using https.
+     */
+    static class UploadThread implements Callable<UploadResult> {
+        private final BlobContainerClient containerClient;
+        private UploadObject uploadObject;
+        private final ExecutorService executor;
+        private final Context context;
+        private final TransferTuning transferTuning;
+        private final ChecksumAlgorithm checksumAlgorithm;
+
+        UploadThread(BlobContainerClient containerClient, UploadObject uploadObject, ExecutorService executor,
+                     Context context, TransferTuning transferTuning, ChecksumAlgorithm checksumAlgorithm) {
+            this.containerClient = containerClient;
+            this.uploadObject = uploadObject;
+            this.executor = executor;
+            this.context = context;
+            this.transferTuning = transferTuning;
+            this.checksumAlgorithm = checksumAlgorithm;
         }
 
         @Override
-        public UploadResult call() {
+        public UploadResult call() throws IOException, InterruptedException {
             FilePath src = uploadObject.getSrc();
             File file = new File(src.getRemote());
             long length = file.length();
 
-            BlobServiceClient blobServiceClient = getBlobServiceClient();
-
-            BlobUrlParts blobUrlParts = BlobUrlParts.parse(uploadObject.getUrl());
-
-            BlobContainerClient containerClient = blobServiceClient
-                    .getBlobContainerClient(blobUrlParts.getBlobContainerName());
-
             BlobClient blockBlobClient = containerClient
                     .getBlobClient(uploadObject.getName());
 
             long startTime = System.currentTimeMillis();
 
-            BlobUploadFromFileOptions options = new BlobUploadFromFileOptions(file.getAbsolutePath())
-                    .setHeaders(getBlobHttpHeaders())
-                    .setMetadata(uploadObject.getMetadata());
-            Response<BlockBlobItem> block = blockBlobClient
-                    .uploadFromFileWithResponse(options, null, Context.NONE);
+            // The checksum is computed while the file is read for the upload, there is no second pass.
+            MessageDigest digest = checksumAlgorithm.newDigest();
+            BlobHttpHeaders headers = getBlobHttpHeaders(uploadObject.getBlobProperties());
+            int statusCode;
+            byte[] contentMd5 = null;
+            byte[] checksum;
+            if (uploadObject.isCompressed()) {
+                // the MD5 of the file itself is recorded, the stored bytes are gzipped
+                contentMd5 = uploadCompressed(blockBlobClient.getBlockBlobClient(), file, length, headers, digest);
+                checksum = checksumAlgorithm == ChecksumAlgorithm.MD5 ? contentMd5 : digest.digest();
+                statusCode = HttpStatus.SC_CREATED;
+            } else if (!transferTuning.isSingleShot(length)) {
+                // The blocks are read from the file on the lane of the step, and the Content-MD5 which the service
+                // does not compute for a blob made of blocks goes with the commit.
+                ParallelTransferOptions transferOptions = transferTuning.getParallelTransferOptions(length);
+                ResumableBlockUpload upload = new ResumableBlockUpload(blockBlobClient.getBlockBlobClient(), file,
+                        transferOptions.getBlockSizeLong(), transferOptions.getMaxConcurrency(), executor, context,
+                        digest, transferTuning.isResumable(length));
+                Response<BlockBlobItem> block = upload.upload(headers, uploadObject.getMetadata());
+                statusCode = block.getStatusCode();
+                contentMd5 = block.getValue().getContentMd5();
+                checksum = upload.getChecksum();
+            } else {
+                Response<BlockBlobItem> block;
+                try (InputStream stream = new DigestInputStream(
+                        new BufferedInputStream(Files.newInputStream(file.toPath())), digest)) {
+                    BlobParallelUploadOptions options = new BlobParallelUploadOptions(stream, length)
+                            .setParallelTransferOptions(transferTuning.getParallelTransferOptions(length))
+                            .setHeaders(headers)
+                            .setMetadata(uploadObject.getMetadata());
+                    block = blockBlobClient.uploadWithResponse(options, null, context);
+                }
+                statusCode = block.getStatusCode();
+                contentMd5 = block.getValue().getContentMd5();
+                checksum = digest.digest();
+            }
 
-            if (!uploadObject.getMetadata().isEmpty()) {
-                blockBlobClient.setMetadata(uploadObject.getMetadata());
+            String md5 = uploadObject.getMd5();
+            if (checksumAlgorithm == ChecksumAlgorithm.MD5) {
+                md5 = Hex.encodeHexString(checksum);
+            } else if (md5 == null && contentMd5 != null) {
+                md5 = Hex.encodeHexString(contentMd5);
             }
-            byte[] md5 = block.getValue().getContentMd5();
             long endTime = System.currentTimeMillis();
 
-            return new UploadResult(block.getStatusCode(), null,
-                    new String(md5, StandardCharsets.UTF_8),
+            UploadResult result = new UploadResult(statusCode, null,
+                    md5,
                     uploadObject.getName(),
                     uploadObject.getUrl(), length, uploadObject.getStorageType(),
                     startTime, endTime);
+            result.setChecksum(checksumAlgorithm, Hex.encodeHexString(checksum));
+            return result;
         }
 
-        private BlobHttpHeaders getBlobHttpHeaders() {
-            PartialBlobProperties blobProperties = uploadObject.blobProperties;
+        /**
+         * Gzips the file to a spool, then uploads the spool with the Content-MD5 of the stored bytes in the upload
+         * request itself: a single Put Blob, or the commit of the block list. The MD5 and the length of the file
+         * go into the metadata of the blob, which is what the sync mode compares with the workspace.
+         *
+         * @param digest Checksum of the file, only completed here when it is the MD5.
+         * @return The MD5 of the file before compression.
+         */
+        private byte[] uploadCompressed(BlockBlobClient blob, File file, long length, BlobHttpHeaders headers,
+                                        MessageDigest digest) throws IOException, InterruptedException {
+            MessageDigest sourceMd5 = checksumAlgorithm == ChecksumAlgorithm.MD5 ? digest : DigestUtils.getMd5Digest();
+            MessageDigest storedMd5 = DigestUtils.getMd5Digest();
+            File spool = Files.createTempFile(file.getName(), ".gz").toFile();
+            try {
+                InputStream source = new DigestInputStream(Files.newInputStream(file.toPath()), digest);
+                if (sourceMd5 != digest) {
+                    source = new DigestInputStream(source, sourceMd5);
+                }
+                try (InputStream input = source;
+                     OutputStream gzip = new GZIPOutputStream(new DigestOutputStream(
+                             Files.newOutputStream(spool.toPath()), storedMd5), GZIP_BUFFER)) {
+                    IOUtils.copy(input, gzip, GZIP_BUFFER);
+                }
+                byte[] md5 = sourceMd5.digest();
+                Map<String, String> metadata = UploadCompression.withSource(uploadObject.getMetadata(),
+                        Hex.encodeHexString(md5), length);
+
+                long spoolLength = spool.length();
+                if (transferTuning.isSingleShot(spoolLength)) {
+                    try (InputStream stream = new BufferedInputStream(Files.newInputStream(spool.toPath()))) {
+                        blob.uploadWithResponse(stream, spoolLength, headers.setContentMd5(storedMd5.digest()),
+                                metadata, null, null, null, null, context);
+                    }
+                } else {
+                    // the commit carries the Content-MD5 computed while the blocks are read from the spool
+                    ParallelTransferOptions transferOptions = transferTuning.getParallelTransferOptions(spoolLength);
+                    new ResumableBlockUpload(blob, spool, transferOptions.getBlockSizeLong(),
+                            transferOptions.getMaxConcurrency(), executor, context, DigestUtils.getMd5Digest(), false)
+                            .upload(headers, metadata);
+                }
+                return md5;
+            } finally {
+                Files.deleteIfExists(spool.toPath());
+            }
+        }
+
+        static BlobHttpHeaders getBlobHttpHeaders(PartialBlobProperties blobProperties) {
             BlobHttpHeaders method = new BlobHttpHeaders();
             method.setCacheControl(blobProperties.getCacheControl());
             method.setContentType(blobProperties.getContentType());
@@ -443,13 +682,53 @@ public abstract class UploadService extends StoragePluginService<UploadServiceDa
         }
     }
 
-    protected abstract void uploadIndividuals(String embeddedVP, FilePath[] paths,
-                                              FilePath workspace) throws WAStorageException;
+    /**
+     * Uploads the planned files individually.
+     *
+     * @param items The files found by the planning pass on the agent, never empty.
+     */
+    protected abstract void uploadIndividuals(List<UploadItem> items) throws WAStorageException;
 
-    protected abstract void uploadIndividuals(String embeddedVP, FilePath[] paths) throws WAStorageException;
+    /**
+     * Gets the sizes of the remote files by name, whose local counterpart should be hashed by the planning pass
+     * to find out whether it changed.
+     */
+    protected Map<String, Long> getHashCandidates() throws WAStorageException {
+        return Collections.emptyMap();
+    }
+
+    /**
+     * Whether the planning pass should hash every file, not only the hash candidates.
+     */
+    protected boolean isEveryFileHashed() {
+        return false;
+    }
+
+    /**
+     * Whether the planning pass should detect the content type of every file.
+     */
+    protected boolean isContentTypeDetected() throws IOException, InterruptedException {
+        return false;
+    }
 
     protected abstract void uploadArchive(String archiveIncludes) throws WAStorageException;
 
+    /**
+     * Deletes the former content of the container, share or virtual path when a clean up is configured. Called
+     * once per upload, before anything is uploaded.
+     */
+    protected abstract void cleanup() throws WAStorageException;
+
+    /**
+     * Deletes what the upload did not write under the virtual path, when it replaces the virtual path. Called
+     * once every file has been uploaded successfully.
+     *
+     * @param unmodifiedNames Names of the matched files which were not uploaded since they were not modified,
+     *                        they are kept as well.
+     */
+    protected void cleanupStale(Collection<String> unmodifiedNames) throws WAStorageException {
+    }
+
     @Override
     public final int execute() throws WAStorageException {
         final UploadServiceData serviceData = getServiceData();
@@ -468,66 +747,52 @@ public abstract class UploadService extends StoragePluginService<UploadServiceDa
             println(Messages.WAStoragePublisher_excludepath(serviceData.getExcludedFilesPath()));
             println(Messages.WAStoragePublisher_excludePrefix(serviceData.getRemovePrefixPath()));
         }
-        int filesNeedUpload = 0; // Counter to track no. of files that are need uploaded
-        int filesCount = 0;
+        int filesNeedUpload; // Counter to track no. of files that are need uploaded
+        int filesCount;
+        List<String> unmodifiedNames;
         try {
-            final FilePath workspacePath = serviceData.getRemoteWorkspace();
             if (serviceData.isVerbose()) {
                 println(Messages.WAStoragePublisher_uploading());
             }
 
-            final StringBuilder archiveIncludes = new StringBuilder();
-
-            StringTokenizer strTokens = new StringTokenizer(serviceData.getFilePath(), FP_SEPARATOR);
-            while (strTokens.hasMoreElements()) {
-                String fileName = strTokens.nextToken();
-                String embeddedVP = null;
-
-                if (fileName != null && fileName.contains("::")) {
-                    int embVPSepIndex = fileName.indexOf("::");
-
-                    // Separate fileName and Virtual directory name.
-                    if (fileName.length() > embVPSepIndex + 1) {
-                        embeddedVP = fileName.substring(embVPSepIndex + 2);
-
-                        if (StringUtils.isBlank(embeddedVP)) {
-                            embeddedVP = null;
-                        } else if (!embeddedVP.endsWith(Constants.FWD_SLASH)) {
-                            embeddedVP = embeddedVP + Constants.FWD_SLASH;
-                        }
-                    }
-                    fileName = fileName.substring(0, embVPSepIndex);
-                }
-
-                // List all the paths without the zip archives.
-                FilePath[] paths = workspacePath.list(fileName, excludedFilesAndZip());
-                FilePath[] uploadPaths = paths;
+            // Scan the workspace, filter and name the files on the agent in one go.
+            long modifiedSince = serviceData.isOnlyUploadModifiedArtifacts()
+                    ? serviceData.getRun().getStartTimeInMillis() : 0;
+            boolean individuals = serviceData.getUploadType() != UploadType.ZIP;
+            UploadPlan plan = serviceData.getRemoteWorkspace().act(new PlanUploadOnSlave(
+                    serviceData.getFilePath(), excludedFilesAndZip(), serviceData.getVirtualPath(),
+                    serviceData.getRemovePrefixPath(), modifiedSince, individuals && isContentTypeDetected(),
+                    individuals ? getHashCandidates() : Collections.emptyMap(),
+                    individuals && isEveryFileHashed()));
+
+            List<UploadItem> items = plan.getItems();
+            filesNeedUpload = items.size();
+            filesCount = plan.getMatchedCount();
+            unmodifiedNames = plan.getUnmodifiedNames();
+
+            boolean uploadsArchive = filesCount != 0 && serviceData.getUploadType() != UploadType.INDIVIDUAL;
+            if ((!items.isEmpty() && individuals) || uploadsArchive) {
+                cleanup();
+            }
 
-                if (serviceData.isOnlyUploadModifiedArtifacts()) {
-                    List<FilePath> modifiedPathsList = new ArrayList<>();
-                    for (FilePath path : paths) {
-                        if (path.lastModified() >= serviceData.getRun().getStartTimeInMillis()) {
-                            modifiedPathsList.add(path);
-                        }
+            if (!items.isEmpty() && individuals) {
+                if (serviceData.isVerbose()) {
+                    for (UploadItem item : items) {
+                        logPrefixRemoval(item.getRelativePath(), serviceData.getRemovePrefixPath());
                     }
-                    uploadPaths = modifiedPathsList.toArray(new FilePath[0]);
-                }
-
-                archiveIncludes.append(",").append(fileName);
-                filesNeedUpload += uploadPaths.length;
-                filesCount += paths.length;
-
-                if (uploadPaths.length != 0 && serviceData.getUploadType() != UploadType.ZIP) {
-                    // the uploadType is either INDIVIDUAL or BOTH, upload included individual files thus.
-                    uploadIndividuals(embeddedVP, uploadPaths, workspacePath);
                 }
+                // Longest processing time first: the largest files start right away and the small ones fill
+                // the gaps, so no single large file is left running alone at the end.
+                items.sort(Comparator.comparingLong(UploadItem::getSize).reversed());
+                // the uploadType is either INDIVIDUAL or BOTH, upload included individual files thus.
+                uploadIndividuals(items);
             }
 
             // if uploadType is BOTH or ZIP, create an archive.zip and upload
-            if (filesCount != 0 && (serviceData.getUploadType() != UploadType.INDIVIDUAL)) {
-                uploadArchive(archiveIncludes.toString());
-                // archive file should not be included in downloaded file count
-                filesUploaded.decrementAndGet();
+            if (uploadsArchive) {
+                uploadArchive(plan.getArchiveIncludes());
+                // archive files should not be included in downloaded file count
+                filesUploaded.addAndGet(-serviceData.getArchiveBlobs().size());
             }
             if (serviceData.isVerbose()) {
                 println(Messages.WAStoragePublisher_files_need_upload_count(filesNeedUpload));
@@ -540,43 +805,77 @@ public abstract class UploadService extends StoragePluginService<UploadServiceDa
             throw new WAStorageException(String.format("Only %d/%d files are successfully uploaded.",
                     filesUploaded.get(), filesNeedUpload));
         }
+        if (filesCount != 0) {
+            // a step which matched nothing leaves the virtual path as it is. The upload lane is released by now,
+            // the stale blobs are deleted on a lane of their own.
+            try {
+                cleanupStale(unmodifiedNames);
+            } finally {
+                releaseLane();
+            }
+        }
 
         println(Messages.WAStoragePublisher_files_uploaded_count(filesUploaded.get()));
         return filesCount;
     }
 
+    /**
+     * Waits for the transfers of the lane and releases it, the transfers which follow get a new lane.
+     */
     protected void waitForUploadEnd() throws InterruptedException, WAStorageException {
-        executorService.shutdown();
-        boolean executionFinished = executorService.awaitTermination(TIME_OUT, TIME_OUT_UNIT);
+        ExecutorService lane;
+        synchronized (this) {
+            if (concurrency == null) {
+                // nothing was uploaded from the controller
+                return;
+            }
+            lane = concurrency.getLane();
+        }
+        lane.shutdown();
+        boolean executionFinished = lane.awaitTermination(TIME_OUT, TIME_OUT_UNIT);
         if (!executionFinished) {
             throw new WAStorageException(Messages.WAStoragePublisher_uploaded_timeout(TIME_OUT, TIME_OUT_UNIT));
         }
+        synchronized (this) {
+            if (concurrency != null && concurrency.getLane() == lane) {
+                concurrency = null;
+            }
+        }
     }
 
-    protected String uploadCloudFile(ShareFileClient fileClient, FilePath localPath)
-            throws WAStorageException {
-        long startTime = System.currentTimeMillis();
-        File file = new File(localPath.getRemote());
-        try (FileInputStream fis = new FileInputStream(file); BufferedInputStream bis = new BufferedInputStream(fis)) {
-            long bytes = Files.size(file.toPath());
-            fileClient.create(bytes);
-
-            ShareFileUploadInfo response = fileClient.upload(bis, bis.available(), null);
+    /**
+     * Shuts the lane down without waiting, once the transfers which used it are done or dropped.
+     */
+    private synchronized void releaseLane() {
+        if (concurrency != null) {
+            concurrency.getLane().shutdown();
+            concurrency = null;
+        }
+    }
 
-            long endTime = System.currentTimeMillis();
-            if (getServiceData().isVerbose()) {
-                println("Uploaded file with uri " + fileClient.getFileUrl() + " in " + getTime(endTime - startTime));
-            }
-            return DatatypeConverter.printHexBinary(response.getContentMd5());
-        } catch (Exception e) {
-            throw new WAStorageException("Failed uploading file", e);
+    /**
+     * Names of the archive files under the virtual path: archive.zip, or archive-0001.zip and the following ones
+     * for a multi-part archive, with the extension of the archive format.
+     */
+    protected List<String> getArchiveNames() {
+        final UploadServiceData serviceData = getServiceData();
+        String virtualPath = StringUtils.isBlank(serviceData.getVirtualPath()) ? "" : serviceData.getVirtualPath();
+        String extension = "." + serviceData.getArchiveFormat().getExtension();
+        if (serviceData.getArchiveParts() <= 1) {
+            return Collections.singletonList(virtualPath + ARCHIVE_BASE_NAME + extension);
         }
+        List<String> names = new ArrayList<>();
+        for (int i = 1; i <= serviceData.getArchiveParts(); i++) {
+            names.add(virtualPath + String.format("%s-%04d%s", ARCHIVE_BASE_NAME, i, extension));
+        }
+        return names;
     }
 
     protected String excludedFilesAndZip() {
         final UploadServiceData serviceData = getServiceData();
         // Make sure we exclude the tempPath from archiving.
-        String excludesWithoutZip = "**/" + ZIP_FOLDER_NAME + "*/" + ZIP_NAME;
+        String excludesWithoutZip = "**/" + ZIP_FOLDER_NAME + "*/" + ZIP_NAME
+                + ",**/*" + ResumableBlockUpload.JOURNAL_SUFFIX;
         if (serviceData.getExcludedFilesPath() != null) {
             excludesWithoutZip = serviceData.getExcludedFilesPath() + "," + excludesWithoutZip;
         }
@@ -585,20 +884,28 @@ public abstract class UploadService extends StoragePluginService<UploadServiceDa
 
     protected String removePrefix(URI srcURI, UploadServiceData serviceData) {
         String tmp = srcURI.getPath();
-        String removePrefixPath = serviceData.getRemovePrefixPath();
+        if (serviceData.isVerbose()) {
+            logPrefixRemoval(tmp, serviceData.getRemovePrefixPath());
+        }
+        return stripPrefix(tmp, serviceData.getRemovePrefixPath());
+    }
+
+    private void logPrefixRemoval(String path, String removePrefixPath) {
         if (!StringUtils.isBlank(removePrefixPath)) {
-            if (tmp.startsWith(removePrefixPath)) {
-                String tmp1 = tmp.substring(removePrefixPath.length());
-                if (serviceData.isVerbose()) {
-                    println(Messages.UploadService_prefixRemoved(removePrefixPath, tmp, tmp1));
-                }
-                tmp = tmp1;
-            }  else if (serviceData.isVerbose()) {
-                println(Messages.UploadService_prefixNotRemoved(removePrefixPath, tmp));
+            if (path.startsWith(removePrefixPath)) {
+                println(Messages.UploadService_prefixRemoved(removePrefixPath, path,
+                        path.substring(removePrefixPath.length())));
+            } else {
+                println(Messages.UploadService_prefixNotRemoved(removePrefixPath, path));
             }
         }
+    }
 
-        return tmp;
+    private static String stripPrefix(String path, String removePrefixPath) {
+        if (!StringUtils.isBlank(removePrefixPath) && path.startsWith(removePrefixPath)) {
+            return path.substring(removePrefixPath.length());
+        }
+        return path;
     }
 
     /**
@@ -618,17 +925,32 @@ public abstract class UploadService extends StoragePluginService<UploadServiceDa
         // Remove the prefix if specified
         final String srcURIPath = removePrefix(srcURI, serviceData);
 
+        return getItemPath(srcURIPath, embeddedVP, serviceData.getVirtualPath(), null);
+    }
+
+    /**
+     * Convert the workspace relative path of a file to relative path on azure storage. This does not touch
+     * the file system, so it can run on the agent.
+     *
+     * @param relativePath     the path relative to the workspace
+     * @param embeddedVP       the embedded virtual path
+     * @param virtualPath      the virtual path
+     * @param removePrefixPath the prefix to remove from the relative path
+     * @return
+     */
+    static String getItemPath(String relativePath, String embeddedVP, String virtualPath,
+                              String removePrefixPath) {
         String prefix;
-        if (StringUtils.isBlank(serviceData.getVirtualPath())) {
+        if (StringUtils.isBlank(virtualPath)) {
             prefix = "";
         } else {
-            prefix = serviceData.getVirtualPath();
+            prefix = virtualPath;
         }
         if (!StringUtils.isBlank(embeddedVP)) {
             prefix += embeddedVP;
         }
 
-        return prefix + srcURIPath;
+        return prefix + stripPrefix(relativePath, removePrefixPath);
     }
 
     protected Map<String, String> updateMetadata(Map<String, String> metadata)
@@ -660,7 +982,20 @@ public abstract class UploadService extends StoragePluginService<UploadServiceDa
         return metadata;
     }
 
-    public ExecutorService getExecutorService() {
-        return executorService;
+    /**
+     * Gets this upload's lane of the transfer scheduler, which is only created when first needed.
+     */
+    public synchronized ExecutorService getExecutorService() {
+        return getConcurrency().getLane();
+    }
+
+    /**
+     * Gets the controller of this upload's lane, which adapts the number of concurrent uploads to throttling.
+     */
+    protected synchronized AdaptiveConcurrency getConcurrency() {
+        if (concurrency == null) {
+            concurrency = AdaptiveConcurrency.newLane(UPLOAD_THREAD_COUNT, this::println);
+        }
+        return concurrency;
     }
 }
@@ -15,36 +15,93 @@
 
 package com.microsoftopentechnologies.windowsazurestorage.service;
 
-import com.azure.core.http.rest.PagedIterable;
+import com.azure.core.util.Context;
+import com.azure.storage.blob.BlobClient;
 import com.azure.storage.blob.BlobContainerClient;
+import com.azure.storage.blob.models.BlobHttpHeaders;
 import com.azure.storage.blob.models.BlobItem;
+import com.azure.storage.blob.models.BlobItemProperties;
+import com.azure.storage.blob.models.BlobListDetails;
+import com.azure.storage.blob.models.BlobProperties;
+import com.azure.storage.blob.models.BlobStorageException;
+import com.azure.storage.blob.models.DeleteSnapshotsOptionType;
+import com.azure.storage.blob.models.ListBlobsOptions;
+import com.azure.storage.blob.sas.BlobContainerSasPermission;
+import com.azure.storage.blob.sas.BlobSasPermission;
 import com.azure.storage.blob.specialized.BlockBlobClient;
-import com.microsoftopentechnologies.windowsazurestorage.beans.StorageAccountInfo;
+import com.microsoftopentechnologies.windowsazurestorage.AzureBlob;
+import com.microsoftopentechnologies.windowsazurestorage.AzureBlobProperties;
+import com.microsoftopentechnologies.windowsazurestorage.Messages;
 import com.microsoftopentechnologies.windowsazurestorage.exceptions.WAStorageException;
 import com.microsoftopentechnologies.windowsazurestorage.helper.AzureUtils;
 import com.microsoftopentechnologies.windowsazurestorage.helper.Constants;
 import com.microsoftopentechnologies.windowsazurestorage.service.model.PartialBlobProperties;
+import com.microsoftopentechnologies.windowsazurestorage.service.model.UploadCompression;
+import com.microsoftopentechnologies.windowsazurestorage.service.model.UploadItem;
 import com.microsoftopentechnologies.windowsazurestorage.service.model.UploadServiceData;
-import com.microsoftopentechnologies.windowsazurestorage.service.model.UploadType;
 import hudson.EnvVars;
 import hudson.FilePath;
-import hudson.util.DirScanner;
+import hudson.Functions;
+import hudson.model.Run;
 import jenkins.model.Jenkins;
-import org.apache.commons.lang.NotImplementedException;
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+import org.apache.commons.codec.binary.Hex;
 import org.apache.commons.lang.StringUtils;
+import org.apache.http.HttpStatus;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.net.MalformedURLException;
 import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 /**
  * Service to upload files to Azure Blob Storage.
  */
 public class UploadToBlobService extends UploadService {
+    private static final Duration COPY_POLL_INTERVAL = Duration.ofSeconds(1);
 
+    /**
+     * Blobs listed per request when cleaning up, the most the service returns.
+     */
+    private static final int LIST_PAGE_SIZE = 5000;
+
+    /**
+     * Prefix of the blobs holding the content of the artifacts in content addressed mode, by SHA-256.
+     */
+    static final String CONTENT_PREFIX = "cas/sha256/";
+
+    /**
+     * Prefix of the per-build manifests in content addressed mode.
+     */
+    static final String MANIFEST_PREFIX = "cas/manifests/";
+
+    /**
+     * Lower case hex MD5 of the blobs already in the target path, by name. Only filled in sync and incremental
+     * mode.
+     */
+    private final Map<String, String> existingMd5 = new HashMap<>();
+
+    /**
+     * Blobs uploaded by the previous build, by MD5 and size. Only filled in incremental mode.
+     */
+    private final Map<String, AzureBlob> copySources = new HashMap<>();
 
     public UploadToBlobService(UploadServiceData serviceData) {
         super(serviceData);
@@ -56,81 +113,171 @@ public class UploadToBlobService extends UploadService {
         final UploadServiceData serviceData = getServiceData();
         try {
             final BlobContainerClient container = getCloudBlobContainer();
-            if (serviceData.getUploadType() == UploadType.ZIP) {
-                cleanupContainer(container);
-            }
-
-            final FilePath workspacePath = serviceData.getRemoteWorkspace();
-            // Create a temp dir for the upload
-            final FilePath tempDir = workspacePath.createTempDir(ZIP_FOLDER_NAME, null);
-            final FilePath zipPath = tempDir.child(ZIP_NAME);
-
-            // zip included files into archive.zip file.
-            final DirScanner.Glob globScanner = new DirScanner.Glob(archiveIncludes, excludedFilesAndZip());
-            workspacePath.zip(zipPath.write(), globScanner);
-
-            // When uploading the zip, do not add in the tempDir to the azure
-            String blobURI = zipPath.getName();
-            if (!StringUtils.isBlank(serviceData.getVirtualPath())) {
-                blobURI = serviceData.getVirtualPath() + blobURI;
-            }
 
-            final BlockBlobClient blob = container.getBlobClient(blobURI).getBlockBlobClient();
-
-            List<UploadObject> uploadObjects = new ArrayList<>();
             PartialBlobProperties blobProperties = new PartialBlobProperties(
-                    "UTF-8", null, null, null);
-            UploadObject uploadObject = generateUploadObject(zipPath, serviceData.getStorageAccountInfo(),
-                    blob, container.getBlobContainerName(), blobProperties, updateMetadata(new HashMap<>()));
-            uploadObjects.add(uploadObject);
+                    "UTF-8", null, null, serviceData.getArchiveFormat().getContentType());
+            String sas = generateContainerWriteSAS(serviceData.getStorageAccountInfo(),
+                    container.getBlobContainerName());
+            Map<String, String> metadata = updateMetadata(new HashMap<>());
+            List<UploadObject> parts = new ArrayList<>();
+            for (String blobURI : getArchiveNames()) {
+                final BlockBlobClient blob = container.getBlobClient(blobURI).getBlockBlobClient();
+                // the container SAS only writes, a reproducible part is read first on the agent
+                String partSas = sas;
+                if (serviceData.isReproducibleArchive()) {
+                    partSas = AzureUtils.generateLocalBlobSASURL(serviceData.getStorageAccountInfo(),
+                            container.getBlobContainerName(), blobURI,
+                            UploadArchiveOnSlave.getReproduciblePermission());
+                }
+                parts.add(generateUploadObject((FilePath) null, partSas, blob, blobProperties, metadata));
+            }
 
-            UploadOnSlave uploadOnSlave = new UploadOnSlave(Jenkins.get().proxy, uploadObjects);
-            List<UploadResult> results = workspacePath.act(uploadOnSlave);
+            // archive included files on the agent and stream the archive straight into the blobs.
+            UploadArchiveOnSlave uploadOnSlave = new UploadArchiveOnSlave(Jenkins.get().proxy,
+                    archiveIncludes, excludedFilesAndZip(), parts, serviceData.getTransferTuning(),
+                    serviceData.getChecksumAlgorithm(), serviceData.getArchiveFormat(),
+                    serviceData.getArchiveCompressionLevel(), serviceData.isReproducibleArchive());
+            List<UploadResult> results = serviceData.getRemoteWorkspace().act(uploadOnSlave);
 
             updateAzureBlobs(results, serviceData.getArchiveBlobs());
-
-            tempDir.deleteRecursive();
+            for (UploadResult result : results) {
+                if (result.getStatusCode() == HttpStatus.SC_NOT_MODIFIED) {
+                    recordUnchangedArchive(result, serviceData.getArchiveBlobs());
+                }
+            }
         } catch (Exception e) {
             throw new WAStorageException("Fail to upload archive to blob", e);
         }
     }
 
     @SuppressWarnings("HttpUrlsUsage")
-    private UploadObject generateUploadObject(FilePath path, StorageAccountInfo accountInfo,
-                                              BlockBlobClient blob, String containerName,
+    private UploadObject generateUploadObject(FilePath path, String sas, BlockBlobClient blob,
                                               PartialBlobProperties blobProperties,
-                                              Map<String, String> metadata) throws Exception {
-        String sas = generateWriteSASURL(accountInfo, blob.getBlobName(),
-                Constants.BLOB_STORAGE, containerName);
-
+                                              Map<String, String> metadata) {
         return new UploadObject(blob.getBlobName(), path, blob.getBlobUrl(), sas, Constants.BLOB_STORAGE,
                 blob.getAccountName(), blobProperties,
                 metadata);
     }
 
+    /**
+     * Creates the upload of a planned file, gzipped if it is eligible. A resumable upload gets a SAS of its own
+     * blob, which also allows to list the blocks staged by a former attempt.
+     */
+    private UploadObject generateUploadObject(UploadItem item, String sas, BlockBlobClient blob,
+                                              PartialBlobProperties blobProperties,
+                                              Map<String, String> metadata)
+            throws MalformedURLException, URISyntaxException {
+        final UploadServiceData serviceData = getServiceData();
+        boolean compressed = isCompressed(item, blobProperties);
+        String uploadSas = sas;
+        if (!compressed && serviceData.getTransferTuning().isResumable(item.getSize())) {
+            uploadSas = AzureUtils.generateLocalBlobSASURL(serviceData.getStorageAccountInfo(),
+                    blob.getContainerName(), blob.getBlobName(),
+                    new BlobSasPermission().setReadPermission(true).setWritePermission(true));
+        }
+        UploadObject uploadObject = generateUploadObject(
+                serviceData.getRemoteWorkspace().child(item.getRelativePath()), uploadSas, blob,
+                compressed ? gzipped(blobProperties) : blobProperties, metadata);
+        uploadObject.setMd5(item.getMd5());
+        uploadObject.setCompressed(compressed);
+        return uploadObject;
+    }
+
     @Override
-    protected void uploadIndividuals(String embeddedVP, FilePath[] paths, FilePath workspace)
-            throws WAStorageException {
+    protected void uploadIndividuals(List<UploadItem> items) throws WAStorageException {
         final UploadServiceData serviceData = getServiceData();
         try {
             final BlobContainerClient container = getCloudBlobContainer();
-            UploadType uploadType = serviceData.getUploadType();
-            if (uploadType == UploadType.INDIVIDUAL || uploadType == UploadType.BOTH) {
-                cleanupContainer(container);
+
+            // One SAS for the whole container, signed locally and shared by every file of this step.
+            String sas = generateContainerWriteSAS(serviceData.getStorageAccountInfo(),
+                    container.getBlobContainerName());
+            PartialBlobProperties defaultProperties = configureBlobProperties();
+            Map<String, String> metadata = updateMetadata(new HashMap<>());
+            FilePath workspace = serviceData.getRemoteWorkspace();
+
+            if (serviceData.isContentAddressed()) {
+                uploadContentAddressed(items, container, sas, defaultProperties, metadata);
+                return;
+            }
+
+            int unchangedCount = 0;
+            long unchangedBytes = 0;
+            long unchangedRequests = 0;
+            List<UploadItem> changed = new ArrayList<>();
+            // Blobs written by this step can't be copied from, they may be overwritten in the meantime.
+            Set<String> written = new HashSet<>();
+            for (UploadItem item : items) {
+                if (item.getMd5() != null && item.getMd5().equals(existingMd5.get(item.getName()))) {
+                    String url = container.getBlobClient(item.getName()).getBlobUrl();
+                    recordExisting(item, null, url, serviceData.getIndividualBlobs());
+                    if (serviceData.isVerbose()) {
+                        println(Messages.UploadService_unchanged(url));
+                    }
+                    unchangedCount++;
+                    unchangedBytes += item.getSize();
+                    unchangedRequests += serviceData.getTransferTuning().estimateRequests(item.getSize());
+                } else {
+                    changed.add(item);
+                    written.add(item.getName());
+                }
             }
 
+            String readSas = copySources.isEmpty() ? null : AzureUtils.generateContainerSASURL(
+                    serviceData.getStorageAccountInfo(), container.getBlobContainerName(),
+                    new BlobContainerSasPermission().setReadPermission(true));
             List<UploadObject> uploadObjects = new ArrayList<>();
-            for (FilePath src : paths) {
-                final String blobPath = getItemPath(src, embeddedVP, serviceData);
-                final BlockBlobClient blob = container.getBlobClient(blobPath).getBlockBlobClient();
-                PartialBlobProperties blobProperties = configureBlobProperties(src);
+            // The server side copies run on the upload lane, the files which can't be copied are uploaded.
+            Map<UploadItem, Future<?>> copies = new LinkedHashMap<>();
+            for (UploadItem item : changed) {
+                final BlockBlobClient blob = container.getBlobClient(item.getName()).getBlockBlobClient();
+                PartialBlobProperties blobProperties = getBlobProperties(defaultProperties, item);
+
+                AzureBlob source = readSas == null ? null : getCopySource(item, written);
+                if (source != null) {
+                    copies.put(item, getExecutorService().submit(
+                            () -> copyBlob(source, blob, blobProperties, metadata, readSas)));
+                    continue;
+                }
+                uploadObjects.add(generateUploadObject(item, sas, blob, blobProperties, metadata));
+            }
 
-                UploadObject uploadObject = generateUploadObject(src, serviceData.getStorageAccountInfo(),
-                        blob, container.getBlobContainerName(), blobProperties, updateMetadata(new HashMap<>()));
-                uploadObjects.add(uploadObject);
+            int copiedCount = 0;
+            for (Map.Entry<UploadItem, Future<?>> copy : copies.entrySet()) {
+                UploadItem item = copy.getKey();
+                AzureBlob source = getCopySource(item, written);
+                BlockBlobClient blob = container.getBlobClient(item.getName()).getBlockBlobClient();
+                try {
+                    copy.getValue().get();
+                } catch (ExecutionException e) {
+                    if (!(e.getCause() instanceof RuntimeException)) {
+                        throw e;
+                    }
+                    println(Messages.UploadToBlobService_copy_failed(source.getBlobURL(), e.getCause().getMessage()));
+                    uploadObjects.add(generateUploadObject(item, sas, blob,
+                            getBlobProperties(defaultProperties, item), metadata));
+                    continue;
+                }
+                recordExisting(item, null, blob.getBlobUrl(), serviceData.getIndividualBlobs());
+                if (serviceData.isVerbose()) {
+                    println(Messages.UploadToBlobService_copied(source.getBlobURL(), blob.getBlobUrl()));
+                }
+                copiedCount++;
             }
 
-            UploadOnSlave uploadOnSlave = new UploadOnSlave(Jenkins.get().proxy, uploadObjects);
+            if (serviceData.isSkipUnchangedArtifacts() || serviceData.getPreviousBlobs() != null) {
+                println(Messages.UploadToBlobService_unchanged_skipped(unchangedCount,
+                        Functions.humanReadableByteSize(unchangedBytes), unchangedRequests));
+            }
+            if (copiedCount > 0) {
+                println(Messages.UploadToBlobService_copied_count(copiedCount));
+            }
+            if (uploadObjects.isEmpty()) {
+                return;
+            }
+
+            UploadOnSlave uploadOnSlave = new UploadOnSlave(Jenkins.get().proxy, uploadObjects,
+                    serviceData.getTaskListener(), serviceData.getTransferTuning(), serviceData.getChecksumAlgorithm());
             List<UploadResult> results = workspace.act(uploadOnSlave);
 
             updateAzureBlobs(results, serviceData.getIndividualBlobs());
@@ -140,27 +287,275 @@ public class UploadToBlobService extends UploadService {
         }
     }
 
-    @Deprecated
+    /**
+     * Uploads every distinct content once, under a name derived from its SHA-256, unless the store already holds
+     * it. The artifacts of the build are then recorded with their own names and the url of their content, and a
+     * manifest mapping the artifact names to the content is written next to the store.
+     */
+    private void uploadContentAddressed(List<UploadItem> items, BlobContainerClient container, String sas,
+                                        PartialBlobProperties defaultProperties, Map<String, String> metadata)
+            throws IOException, InterruptedException, ExecutionException, URISyntaxException {
+        final UploadServiceData serviceData = getServiceData();
+        Map<String, UploadItem> contents = new LinkedHashMap<>();
+        for (UploadItem item : items) {
+            contents.putIfAbsent(item.getSha256(), item);
+        }
+
+        // One HEAD request per distinct content, run in parallel.
+        Map<String, Future<Boolean>> probes = new HashMap<>();
+        for (String sha256 : contents.keySet()) {
+            BlobClient blob = container.getBlobClient(getContentAddress(sha256));
+            probes.put(sha256, getExecutorService().submit(blob::exists));
+        }
+
+        Set<String> existing = new HashSet<>();
+        List<UploadObject> uploadObjects = new ArrayList<>();
+        for (Map.Entry<String, UploadItem> content : contents.entrySet()) {
+            if (probes.get(content.getKey()).get()) {
+                existing.add(content.getKey());
+                continue;
+            }
+            UploadItem item = content.getValue();
+            BlockBlobClient blob = container.getBlobClient(getContentAddress(content.getKey())).getBlockBlobClient();
+            uploadObjects.add(generateUploadObject(item, sas, blob, getBlobProperties(defaultProperties, item),
+                    metadata));
+        }
+
+        Set<String> uploaded = new HashSet<>();
+        if (!uploadObjects.isEmpty()) {
+            UploadOnSlave uploadOnSlave = new UploadOnSlave(Jenkins.get().proxy, uploadObjects,
+                    serviceData.getTaskListener(), serviceData.getTransferTuning(), serviceData.getChecksumAlgorithm());
+            for (UploadResult result : serviceData.getRemoteWorkspace().act(uploadOnSlave)) {
+                getRequestStats().add(result.getRequests());
+                if (result.getStatusCode() == HttpStatus.SC_CREATED) {
+                    uploaded.add(result.getName().substring(CONTENT_PREFIX.length()));
+                    if (serviceData.isVerbose()) {
+                        println(Messages.UploadService_https_uploaded(result.getUrl(),
+                                getTime(result.getEndTime() - result.getStartTime())));
+                    }
+                }
+            }
+        }
+
+        long reusedBytes = 0;
+        for (UploadItem item : items) {
+            boolean transferred = uploaded.contains(item.getSha256());
+            if (!transferred && !existing.contains(item.getSha256())) {
+                // a failed upload leaves the artifact unrecorded, which fails the step
+                continue;
+            }
+            String address = getContentAddress(item.getSha256());
+            recordExisting(item, address, container.getBlobClient(address).getBlobUrl(),
+                    serviceData.getIndividualBlobs());
+            if (!transferred || contents.get(item.getSha256()) != item) {
+                reusedBytes += item.getSize();
+            }
+        }
+        println(Messages.UploadToBlobService_cas_summary(items.size(), uploaded.size(),
+                Functions.humanReadableByteSize(reusedBytes)));
+
+        writeManifest(container, items);
+    }
+
+    /**
+     * Writes the manifest of the build, which maps the artifact names to the SHA-256 of their content. Manifests
+     * written by former upload steps of the same build are merged.
+     */
+    private void writeManifest(BlobContainerClient container, List<UploadItem> items) {
+        final Run<?, ?> run = getServiceData().getRun();
+        BlockBlobClient manifestBlob = container.getBlobClient(MANIFEST_PREFIX + run.getParent().getFullName()
+                + "/" + run.getNumber() + ".json").getBlockBlobClient();
+
+        JSONArray files = new JSONArray();
+        if (manifestBlob.exists()) {
+            ByteArrayOutputStream existing = new ByteArrayOutputStream();
+            manifestBlob.download(existing);
+            files.addAll(JSONObject.fromObject(new String(existing.toByteArray(), StandardCharsets.UTF_8))
+                    .getJSONArray("files"));
+        }
+        for (UploadItem item : items) {
+            JSONObject file = new JSONObject();
+            file.put("name", item.getName());
+            file.put("sha256", item.getSha256());
+            file.put("md5", item.getMd5());
+            file.put("size", item.getSize());
+            files.add(file);
+        }
+
+        JSONObject manifest = new JSONObject();
+        manifest.put("job", run.getParent().getFullName());
+        manifest.put("build", run.getNumber());
+        manifest.put("store", CONTENT_PREFIX);
+        manifest.put("files", files);
+        byte[] bytes = manifest.toString().getBytes(StandardCharsets.UTF_8);
+        manifestBlob.uploadWithResponse(new ByteArrayInputStream(bytes), bytes.length,
+                new BlobHttpHeaders().setContentType("application/json"), null, null, null, null, null,
+                Context.NONE);
+    }
+
+    static String getContentAddress(String sha256) {
+        return CONTENT_PREFIX + sha256;
+    }
+
+    private static PartialBlobProperties getBlobProperties(PartialBlobProperties defaultProperties,
+                                                           UploadItem item) {
+        if (item.getContentType() == null) {
+            return defaultProperties;
+        }
+        return new PartialBlobProperties(defaultProperties.getContentEncoding(),
+                defaultProperties.getContentLanguage(), defaultProperties.getCacheControl(),
+                item.getContentType());
+    }
+
+    private boolean isCompressed(UploadItem item, PartialBlobProperties blobProperties) {
+        UploadCompression compression = getServiceData().getCompression();
+        return compression != null && compression.isEligible(item.getRelativePath(),
+                blobProperties.getContentType(), blobProperties.getContentEncoding());
+    }
+
+    private static PartialBlobProperties gzipped(PartialBlobProperties blobProperties) {
+        return new PartialBlobProperties(UploadCompression.GZIP, blobProperties.getContentLanguage(),
+                blobProperties.getCacheControl(), blobProperties.getContentType());
+    }
+
+    /**
+     * Finds a blob uploaded by the previous build with the same content as a file, under another name.
+     *
+     * @return the blob to copy, or null if the file has to be uploaded.
+     */
+    private AzureBlob getCopySource(UploadItem item, Set<String> written) {
+        AzureBlob source = item.getMd5() == null ? null : copySources.get(copyKey(item.getMd5(), item.getSize()));
+        if (source == null || written.contains(source.getBlobName())) {
+            return null;
+        }
+        return source;
+    }
+
+    /**
+     * Copies the content of a blob on the server side. The copy keeps the headers of the source, which are only
+     * replaced when they differ from the configured ones.
+     */
+    private static void copyBlob(AzureBlob source, BlockBlobClient blob, PartialBlobProperties blobProperties,
+                                 Map<String, String> metadata, String readSas) {
+        // the copy takes the metadata of the step, the file it was made from is still the same
+        Map<String, String> copyMetadata = UploadCompression.withSource(metadata, source.getMd5(),
+                source.getSizeInBytes());
+        blob.beginCopy(source.getBlobURL() + "?" + readSas, copyMetadata, null, null, null, null,
+                COPY_POLL_INTERVAL).waitForCompletion();
+        BlobProperties copied = blob.getProperties();
+        BlobHttpHeaders headers = UploadThread.getBlobHttpHeaders(blobProperties);
+        // the copy keeps the stored bytes and their encoding, the previous build may have gzipped them
+        if (UploadCompression.GZIP.equalsIgnoreCase(copied.getContentEncoding())) {
+            headers.setContentEncoding(UploadCompression.GZIP);
+        }
+        if (!StringUtils.equals(headers.getContentType(), copied.getContentType())
+                || !StringUtils.equals(headers.getContentEncoding(), copied.getContentEncoding())
+                || !StringUtils.equals(headers.getContentLanguage(), copied.getContentLanguage())
+                || !StringUtils.equals(headers.getCacheControl(), copied.getCacheControl())) {
+            // Set Blob Properties replaces every header, the MD5 of the content is kept
+            blob.setHttpHeaders(headers.setContentMd5(copied.getContentMd5()));
+        }
+    }
+
+    private static String copyKey(String md5, long size) {
+        return md5 + ":" + size;
+    }
+
+    /**
+     * In incremental mode, takes the existing blobs from the previous build, every file is then hashed by the
+     * planning pass. In sync mode, lists the target path once to find the blobs whose content may be unchanged.
+     * Only blobs with an MD5 can be compared.
+     */
+    @Override
+    protected Map<String, Long> getHashCandidates() throws WAStorageException {
+        final UploadServiceData serviceData = getServiceData();
+        if (serviceData.isContentAddressed()
+                || (!serviceData.isSkipUnchangedArtifacts() && serviceData.getPreviousBlobs() == null)) {
+            return Collections.emptyMap();
+        }
+        if (isCleanedUpFirst()) {
+            println(Messages.UploadToBlobService_unchanged_cleanup());
+            return Collections.emptyMap();
+        }
+
+        if (serviceData.getPreviousBlobs() != null) {
+            for (AzureBlob previous : serviceData.getPreviousBlobs()) {
+                if (previous.getMd5() != null && Constants.BLOB_STORAGE.equals(previous.getStorageType())) {
+                    existingMd5.put(previous.getBlobName(), previous.getMd5());
+                    copySources.putIfAbsent(copyKey(previous.getMd5(), previous.getSizeInBytes()), previous);
+                }
+            }
+            return Collections.emptyMap();
+        }
+
+        try {
+            final BlobContainerClient container = getCloudBlobContainer();
+            // the metadata comes with the listing, a gzipped blob is compared by the MD5 of its file
+            ListBlobsOptions options = new ListBlobsOptions()
+                    .setDetails(new BlobListDetails().setRetrieveMetadata(true));
+            if (StringUtils.isNotBlank(serviceData.getVirtualPath())) {
+                options.setPrefix(serviceData.getVirtualPath());
+            }
+
+            Map<String, Long> sizes = new HashMap<>();
+            for (BlobItem blobItem : container.listBlobs(options, null)) {
+                BlobItemProperties properties = blobItem.getProperties();
+                Map<String, String> metadata = blobItem.getMetadata();
+                String sourceMd5 = metadata == null ? null : metadata.get(UploadCompression.SOURCE_MD5_METADATA);
+                String sourceLength = metadata == null ? null
+                        : metadata.get(UploadCompression.SOURCE_LENGTH_METADATA);
+                if (sourceMd5 != null && sourceLength != null) {
+                    // the Content-MD5 of a gzipped blob is the one of the stored bytes, not of its file
+                    existingMd5.put(blobItem.getName(), sourceMd5);
+                    sizes.put(blobItem.getName(), Long.parseLong(sourceLength));
+                } else if (properties.getContentMd5() != null) {
+                    existingMd5.put(blobItem.getName(), Hex.encodeHexString(properties.getContentMd5()));
+                    sizes.put(blobItem.getName(), properties.getContentLength());
+                }
+            }
+            return sizes;
+        } catch (Exception e) {
+            throw new WAStorageException("Fail to list the existing blobs", e);
+        }
+    }
+
     @Override
-    protected void uploadIndividuals(String embeddedVP, FilePath[] paths) throws WAStorageException {
-        throw new NotImplementedException();
+    protected boolean isEveryFileHashed() {
+        return getServiceData().isContentAddressed()
+                || (getServiceData().getPreviousBlobs() != null && !isCleanedUpFirst());
     }
 
-    private PartialBlobProperties configureBlobProperties(
-            final FilePath src) throws IOException, InterruptedException {
+    private boolean isCleanedUpFirst() {
+        final UploadServiceData serviceData = getServiceData();
+        return serviceData.isCleanUpContainerOrShare()
+                || (serviceData.isCleanUpVirtualPath() && !isReplacingVirtualPath()
+                && StringUtils.isNotBlank(serviceData.getVirtualPath()));
+    }
+
+    @Override
+    protected boolean isContentTypeDetected() throws IOException, InterruptedException {
+        final AzureBlobProperties blobProperties = getServiceData().getBlobProperties();
+        return blobProperties != null && blobProperties.isContentTypeDetected(configureBlobProperties());
+    }
+
+    /**
+     * Resolves the configured blob properties once for all files. The content type of a single file is
+     * detected on the agent by the planning pass.
+     */
+    private PartialBlobProperties configureBlobProperties() throws IOException, InterruptedException {
         final UploadServiceData serviceData = getServiceData();
-        final EnvVars env = serviceData.getRun().getEnvironment(serviceData.getTaskListener());
 
         // Set blob properties
         if (serviceData.getBlobProperties() != null) {
-            return serviceData.getBlobProperties().configure(src, env);
+            final EnvVars env = serviceData.getRun().getEnvironment(serviceData.getTaskListener());
+            return serviceData.getBlobProperties().configure(env);
         }
 
         return new PartialBlobProperties("UTF-8", null, null, null);
 
     }
 
-    private BlobContainerClient getCloudBlobContainer() throws URISyntaxException, IOException {
+    protected BlobContainerClient getCloudBlobContainer() throws URISyntaxException, IOException {
         final UploadServiceData serviceData = getServiceData();
         final BlobContainerClient container = AzureUtils.getBlobContainerReference(
                 serviceData.getStorageAccountInfo(),
@@ -172,28 +567,120 @@ public class UploadToBlobService extends UploadService {
         return container;
     }
 
-    private void cleanupContainer(BlobContainerClient container) throws
-            IOException, URISyntaxException {
+    @Override
+    protected void cleanup() throws WAStorageException {
         final UploadServiceData serviceData = getServiceData();
-        // Delete previous contents if cleanup is needed
-        if (serviceData.isCleanUpContainerOrShare()) {
-            println("Clean up existing blobs in container " + serviceData.getContainerName());
-            deleteBlobs(container, container.listBlobs());
-        } else if (serviceData.isCleanUpVirtualPath() && StringUtils.isNotBlank(serviceData.getVirtualPath())) {
-            println("Clean up existing blobs in container path " + serviceData.getVirtualPath());
-            deleteBlobs(container, container.listBlobsByHierarchy(serviceData.getVirtualPath()));
+        try {
+            // Delete previous contents if cleanup is needed
+            if (serviceData.isCleanUpContainerOrShare()) {
+                println("Clean up existing blobs in container " + serviceData.getContainerName());
+                int deleted = deleteBlobs(getCloudBlobContainer(), null, Collections.emptySet());
+                println(Messages.UploadToBlobService_deleted_count(deleted));
+            } else if (serviceData.isCleanUpVirtualPath() && !isReplacingVirtualPath()
+                    && StringUtils.isNotBlank(serviceData.getVirtualPath())) {
+                println("Clean up existing blobs in container path " + serviceData.getVirtualPath());
+                int deleted = deleteBlobs(getCloudBlobContainer(), serviceData.getVirtualPath(),
+                        Collections.emptySet());
+                println(Messages.UploadToBlobService_deleted_count(deleted));
+            }
+        } catch (URISyntaxException | IOException | InterruptedException e) {
+            throw new WAStorageException("Fail to clean up the container", e);
         }
     }
 
     /**
-     * Deletes contents of container.
+     * Deletes the blobs under the virtual path which this upload did not write nor find unchanged. The blobs
+     * which are written again are never deleted, so the virtual path is never seen empty.
+     */
+    @Override
+    protected void cleanupStale(Collection<String> unmodifiedNames) throws WAStorageException {
+        final UploadServiceData serviceData = getServiceData();
+        if (!isReplacingVirtualPath()) {
+            return;
+        }
+        try {
+            int deleted = deleteStale(getCloudBlobContainer(), unmodifiedNames);
+            println(Messages.UploadToBlobService_stale_deleted(deleted, serviceData.getVirtualPath()));
+        } catch (URISyntaxException | IOException | InterruptedException e) {
+            throw new WAStorageException("Fail to delete the stale blobs of the virtual path", e);
+        }
+    }
+
+    /**
+     * Deletes the blobs under the virtual path but the ones this upload wrote, found unchanged or skipped as not
+     * modified.
+     *
+     * @return the number of deleted blobs
+     */
+    int deleteStale(BlobContainerClient container, Collection<String> unmodifiedNames)
+            throws IOException, InterruptedException {
+        final UploadServiceData serviceData = getServiceData();
+        Set<String> kept = new HashSet<>(unmodifiedNames);
+        for (AzureBlob blob : serviceData.getIndividualBlobs()) {
+            kept.add(blob.getBlobName());
+        }
+        for (AzureBlob blob : serviceData.getArchiveBlobs()) {
+            kept.add(blob.getBlobName());
+        }
+        return deleteBlobs(container, serviceData.getVirtualPath(), kept);
+    }
+
+    private boolean isReplacingVirtualPath() {
+        final UploadServiceData serviceData = getServiceData();
+        return serviceData.isReplaceVirtualPath() && !serviceData.isCleanUpContainerOrShare()
+                && StringUtils.isNotBlank(serviceData.getVirtualPath());
+    }
+
+    /**
+     * Deletes the blobs of the container, with their snapshots. The listing goes on page by page while the
+     * blobs of the former pages are deleted on the upload lane, and at most one page of deletes is pending. The
+     * deletes drive the limit of the lane and are counted into the requests of this upload.
      *
      * @param container the blob container client
-     * @param blobItems list of blobs to delete
+     * @param prefix    the prefix of the blobs to delete, null for the whole container
+     * @param kept      the names of the blobs to keep
+     * @return the number of deleted blobs
      */
-    private void deleteBlobs(BlobContainerClient container, PagedIterable<BlobItem> blobItems) {
-        for (BlobItem blobItem : blobItems) {
-            container.getBlobClient(blobItem.getName()).delete();
+    int deleteBlobs(BlobContainerClient container, String prefix, Set<String> kept)
+            throws IOException, InterruptedException {
+        Context context = getRequestStats().addTo(getConcurrency().context());
+        ListBlobsOptions options = new ListBlobsOptions().setPrefix(prefix).setMaxResultsPerPage(LIST_PAGE_SIZE);
+        Deque<Future<?>> pending = new ArrayDeque<>();
+        int deleted = 0;
+        try {
+            for (BlobItem blobItem : container.listBlobs(options, null)) {
+                if (kept.contains(blobItem.getName())) {
+                    continue;
+                }
+                BlobClient blob = container.getBlobClient(blobItem.getName());
+                pending.add(getExecutorService().submit(() -> deleteBlob(blob, context)));
+                while (pending.size() > LIST_PAGE_SIZE) {
+                    pending.removeFirst().get();
+                    deleted++;
+                }
+            }
+            while (!pending.isEmpty()) {
+                pending.removeFirst().get();
+                deleted++;
+            }
+        } catch (ExecutionException e) {
+            throw new IOException("Failed to delete a blob", e.getCause());
+        } finally {
+            for (Future<?> future : pending) {
+                future.cancel(false);
+            }
+        }
+        return deleted;
+    }
+
+    private static void deleteBlob(BlobClient blob, Context context) {
+        try {
+            blob.deleteWithResponse(DeleteSnapshotsOptionType.INCLUDE, null, null, context);
+        } catch (BlobStorageException e) {
+            // deleted in the meantime
+            if (e.getStatusCode() != HttpStatus.SC_NOT_FOUND) {
+                throw e;
+            }
         }
     }
 }
@@ -15,57 +15,98 @@
 
 package com.microsoftopentechnologies.windowsazurestorage.service;
 
-import com.azure.core.http.rest.PagedIterable;
 import com.azure.storage.file.share.ShareClient;
 import com.azure.storage.file.share.ShareDirectoryClient;
 import com.azure.storage.file.share.ShareFileClient;
 import com.azure.storage.file.share.ShareServiceClient;
-import com.azure.storage.file.share.models.ShareFileItem;
+import com.azure.storage.file.share.models.ShareErrorCode;
+import com.azure.storage.file.share.models.ShareStorageException;
+import com.microsoftopentechnologies.windowsazurestorage.Messages;
 import com.microsoftopentechnologies.windowsazurestorage.exceptions.WAStorageException;
 import com.microsoftopentechnologies.windowsazurestorage.helper.AzureUtils;
+import com.microsoftopentechnologies.windowsazurestorage.helper.Constants;
+import com.microsoftopentechnologies.windowsazurestorage.service.model.UploadItem;
 import com.microsoftopentechnologies.windowsazurestorage.service.model.UploadServiceData;
-import com.microsoftopentechnologies.windowsazurestorage.service.model.UploadType;
 import hudson.FilePath;
-import hudson.util.DirScanner;
+import jenkins.model.Jenkins;
 import org.apache.commons.lang.StringUtils;
 
 import java.io.IOException;
 import java.net.MalformedURLException;
 import java.net.URISyntaxException;
-import java.util.Arrays;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
 
 public class UploadToFileService extends UploadService {
+    /**
+     * Directories listed at the same time when cleaning up.
+     */
+    private static final int LIST_PARALLELISM = 8;
+    private static final long MILLIS_PER_SECOND = 1000;
+
+    /**
+     * Directories of the share which exist, as far as this upload knows.
+     */
+    private final Set<String> existingDirectories = ConcurrentHashMap.newKeySet();
+
     public UploadToFileService(UploadServiceData serviceData) {
         super(serviceData);
     }
 
     @Override
-    protected void uploadIndividuals(String embeddedVP, FilePath[] paths, FilePath workspace)
-            throws WAStorageException {
-        uploadIndividuals(embeddedVP, paths);
-    }
-
-    @Override
-    protected void uploadIndividuals(String embeddedVP, FilePath[] paths) throws WAStorageException {
+    protected void uploadIndividuals(List<UploadItem> items) throws WAStorageException {
         final UploadServiceData serviceData = getServiceData();
+        List<Future<List<UploadResult>>> uploads = new ArrayList<>();
         try {
             final ShareClient fileShare = getCloudFileShare();
-            UploadType uploadType = serviceData.getUploadType();
-            if (uploadType == UploadType.INDIVIDUAL || uploadType == UploadType.BOTH) {
-                cleanupFileShare(fileShare);
+            // One SAS for the whole share, signed locally and shared by every file of this step.
+            String sas = generateShareWriteSAS(serviceData.getStorageAccountInfo(), fileShare.getShareName());
+            FilePath workspace = serviceData.getRemoteWorkspace();
+            List<String> filePaths = new ArrayList<>();
+            Map<Integer, List<UploadObject>> uploadObjects = new HashMap<>();
+            for (UploadItem item : items) {
+                final String filePath = item.getName();
+                final ShareFileClient cloudFile = fileShare.getRootDirectoryClient().getFileClient(filePath);
+                filePaths.add(filePath);
+                uploadObjects.computeIfAbsent(StringUtils.countMatches(filePath, "/"), depth -> new ArrayList<>())
+                        .add(new UploadObject(filePath, workspace.child(item.getRelativePath()),
+                                cloudFile.getFileUrl(), sas, Constants.FILE_STORAGE,
+                                serviceData.getStorageAccountInfo().getStorageAccName(), null, new HashMap<>()));
+            }
+
+            // The files of a level start uploading on the agent while the directories of the next level are
+            // created. The controller only sends the SAS, the files are read on the agent.
+            List<Set<String>> levels = getDirectoryLevels(filePaths);
+            for (int depth = 0; depth <= levels.size(); depth++) {
+                if (depth > 0) {
+                    createDirectories(fileShare, levels.get(depth - 1));
+                }
+                List<UploadObject> ready = uploadObjects.get(depth);
+                if (ready != null) {
+                    uploads.add(workspace.actAsync(new UploadOnSlave(Jenkins.get().proxy, ready,
+                            serviceData.getTaskListener(), serviceData.getTransferTuning(),
+                            serviceData.getChecksumAlgorithm())));
+                }
             }
 
-            for (FilePath src : paths) {
-                final String filePath = getItemPath(src, embeddedVP, serviceData);
-                ShareDirectoryClient rootDirectoryClient = fileShare.getRootDirectoryClient();
-                final ShareFileClient cloudFile = rootDirectoryClient.getFileClient(filePath);
-                ensureDirExist(fileShare, filePath);
-                getExecutorService().submit(new FileUploadThread(cloudFile, src, serviceData.getIndividualBlobs()));
+            for (Future<List<UploadResult>> upload : uploads) {
+                updateAzureBlobs(upload.get(), serviceData.getIndividualBlobs());
             }
-        } catch (URISyntaxException | IOException | InterruptedException e) {
+        } catch (Exception e) {
             throw new WAStorageException("fail to upload individual files to azure file storage", e);
+        } finally {
+            // after a failure, the levels still uploading on the agent are interrupted, the others are done
+            for (Future<List<UploadResult>> upload : uploads) {
+                upload.cancel(true);
+            }
         }
     }
 
@@ -74,32 +115,27 @@ public class UploadToFileService extends UploadService {
         final UploadServiceData serviceData = getServiceData();
         try {
             final ShareClient fileShare = getCloudFileShare();
-            if (serviceData.getUploadType() == UploadType.ZIP) {
-                cleanupFileShare(fileShare);
-            }
-
-            final FilePath workspacePath = serviceData.getRemoteWorkspace();
-            // Create a temp dir for the upload
-            final FilePath tempDir = workspacePath.createTempDir(ZIP_FOLDER_NAME, null);
-            final FilePath zipPath = tempDir.child(ZIP_NAME);
-
-            // zip included files into archive.zip file.
-            final DirScanner.Glob globScanner = new DirScanner.Glob(archiveIncludes, excludedFilesAndZip());
-            workspacePath.zip(zipPath.write(), globScanner);
 
-            // When uploading the zip, do not add in the tempDir to the azure
-            String azureFileName = zipPath.getName();
-            if (!StringUtils.isBlank(serviceData.getVirtualPath())) {
-                azureFileName = serviceData.getVirtualPath() + azureFileName;
+            String sas = generateShareWriteSAS(serviceData.getStorageAccountInfo(), fileShare.getShareName());
+            ensureDirectories(fileShare, getArchiveNames());
+            List<UploadObject> parts = new ArrayList<>();
+            for (String azureFileName : getArchiveNames()) {
+                final ShareFileClient cloudFile = fileShare.getRootDirectoryClient().getFileClient(azureFileName);
+                parts.add(new UploadObject(azureFileName, null, cloudFile.getFileUrl(), sas,
+                        Constants.FILE_STORAGE, serviceData.getStorageAccountInfo().getStorageAccName(), null,
+                        new HashMap<>()));
             }
 
-            final ShareFileClient cloudFile = fileShare.getRootDirectoryClient().getFileClient(azureFileName);
-            Future<?> archiveUploadFuture = getExecutorService().submit(new FileUploadThread(cloudFile,
-                    zipPath, serviceData.getArchiveBlobs()));
-            archiveUploadFuture.get();
-            tempDir.deleteRecursive();
-        } catch (IOException | InterruptedException | URISyntaxException | ExecutionException e) {
-            throw new WAStorageException("Fail to upload individual files to blob", e);
+            // archive included files on the agent and stream the archive straight into the share files.
+            UploadArchiveOnSlave uploadOnSlave = new UploadArchiveOnSlave(Jenkins.get().proxy,
+                    archiveIncludes, excludedFilesAndZip(), parts, serviceData.getTransferTuning(),
+                    serviceData.getChecksumAlgorithm(), serviceData.getArchiveFormat(),
+                    serviceData.getArchiveCompressionLevel(), serviceData.isReproducibleArchive());
+            List<UploadResult> results = serviceData.getRemoteWorkspace().act(uploadOnSlave);
+
+            updateAzureBlobs(results, serviceData.getArchiveBlobs());
+        } catch (Exception e) {
+            throw new WAStorageException("Fail to upload archive to file share", e);
         }
     }
 
@@ -114,58 +150,106 @@ public class UploadToFileService extends UploadService {
         return fileShare;
     }
 
-    private void cleanupFileShare(ShareClient fileShare) throws URISyntaxException {
+    @Override
+    protected void cleanup() throws WAStorageException {
+        try {
+            cleanupFileShare(getCloudFileShare());
+        } catch (URISyntaxException | IOException e) {
+            throw new WAStorageException("Fail to clean up the file share", e);
+        }
+    }
+
+    private void cleanupFileShare(ShareClient fileShare) throws IOException {
         final UploadServiceData serviceData = getServiceData();
         // Delete previous contents if cleanup is needed
         if (serviceData.isCleanUpContainerOrShare() && fileShare.exists()) {
             println("Clean up existing files in file share " + serviceData.getFileShareName());
-            deleteFiles(fileShare, fileShare.getRootDirectoryClient().listFilesAndDirectories());
+            deleteContent(fileShare.getRootDirectoryClient());
         } else if (serviceData.isCleanUpVirtualPath()
                 && StringUtils.isNotBlank(serviceData.getVirtualPath()) && fileShare.exists()) {
             ShareDirectoryClient directory = fileShare.getDirectoryClient(serviceData.getVirtualPath());
             if (directory.exists()) {
                 println("Clean up existing files in file share directory " + serviceData.getVirtualPath());
-                deleteFiles(fileShare, directory.listFilesAndDirectories());
+                deleteContent(directory);
             }
         }
     }
 
-    private void ensureDirExist(ShareClient shareClient, String filePath) {
-        ShareDirectoryClient rootDirectoryClient = shareClient.getRootDirectoryClient();
-        if (!rootDirectoryClient.exists()) {
-            rootDirectoryClient.create();
+    private void deleteContent(ShareDirectoryClient directory) throws IOException {
+        long startTime = System.currentTimeMillis();
+        ShareTreeDeleter deleter = new ShareTreeDeleter(getExecutorService(), LIST_PARALLELISM);
+        try {
+            deleter.deleteContent(directory);
+        } finally {
+            existingDirectories.clear();
         }
+        long interval = Math.max(1, System.currentTimeMillis() - startTime);
+        println(Messages.UploadToFileService_cleanup_summary(deleter.getDeletedFiles(),
+                deleter.getDeletedDirectories(), getTime(interval),
+                deleter.getDeletedFiles() * MILLIS_PER_SECOND / interval));
+    }
 
-        String[] directories = filePath.split("/");
-        if (directories.length > 1) {
-            // remove filename
-            if (!filePath.endsWith("/")) {
-                directories = Arrays.copyOf(directories, directories.length - 1);
-            }
+    /**
+     * Creates the parent directories of the files which are not known to exist yet, level by level. The
+     * directories of a level are created in parallel, once their parents exist. A directory which exists already
+     * is not an error, so nothing is checked before it is created.
+     */
+    private void ensureDirectories(ShareClient fileShare, Collection<String> filePaths)
+            throws IOException, InterruptedException {
+        for (Set<String> level : getDirectoryLevels(filePaths)) {
+            createDirectories(fileShare, level);
+        }
+    }
 
-            for (int i = 0; i < directories.length; i++) {
-                String path = getPath(directories, i);
-                ShareDirectoryClient directoryClient = shareClient.getDirectoryClient(path);
-                if (!directoryClient.exists()) {
-                    directoryClient.create();
-                }
+    private void createDirectories(ShareClient fileShare, Set<String> directories)
+            throws IOException, InterruptedException {
+        List<Future<?>> creations = new ArrayList<>();
+        for (String directory : directories) {
+            if (!existingDirectories.contains(directory)) {
+                ShareDirectoryClient directoryClient = fileShare.getDirectoryClient(directory);
+                creations.add(getExecutorService().submit(() -> createDirectory(directoryClient)));
             }
         }
+        try {
+            for (Future<?> creation : creations) {
+                creation.get();
+            }
+        } catch (ExecutionException e) {
+            throw new IOException("Failed to create a directory of the file share", e.getCause());
+        }
+        existingDirectories.addAll(directories);
     }
 
-    private String getPath(String[] directories, int i) {
-        String[] partialDirPath = Arrays.copyOfRange(directories, 0, i + 1);
-        return String.join("/", partialDirPath);
+    private static void createDirectory(ShareDirectoryClient directoryClient) {
+        try {
+            directoryClient.create();
+        } catch (ShareStorageException e) {
+            if (e.getErrorCode() != ShareErrorCode.RESOURCE_ALREADY_EXISTS) {
+                throw e;
+            }
+        }
     }
 
-    private void deleteFiles(ShareClient fileShare, PagedIterable<ShareFileItem> fileItems)  {
-        for (final ShareFileItem fileItem : fileItems) {
-            if (fileItem.isDirectory()) {
-                final ShareDirectoryClient directory = fileShare.getDirectoryClient(fileItem.getName());
-                deleteFiles(fileShare, directory.listFilesAndDirectories());
-            } else {
-                fileShare.getFileClient(fileItem.getName()).delete();
+    /**
+     * Gets the parent directories of the files by depth, the first level holds the directories of the root.
+     */
+    static List<Set<String>> getDirectoryLevels(Collection<String> filePaths) {
+        List<Set<String>> levels = new ArrayList<>();
+        for (String filePath : filePaths) {
+            String[] names = filePath.split("/");
+            StringBuilder directory = new StringBuilder();
+            // the last name is the one of the file
+            for (int depth = 0; depth < names.length - 1; depth++) {
+                if (depth > 0) {
+                    directory.append('/');
+                }
+                directory.append(names[depth]);
+                if (levels.size() == depth) {
+                    levels.add(new LinkedHashSet<>());
+                }
+                levels.get(depth).add(directory.toString());
             }
         }
+        return levels;
     }
 }
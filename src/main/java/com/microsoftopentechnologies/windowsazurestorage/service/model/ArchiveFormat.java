@@ -0,0 +1,65 @@
+/*
+ Copyright 2016 Microsoft, Inc.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.microsoftopentechnologies.windowsazurestorage.service.model;
+
+/**
+ * Format of the archive of the uploaded files.
+ */
+public enum ArchiveFormat {
+    ZIP("zip", "application/zip"),
+    TAR_GZ("tar.gz", "application/gzip");
+
+    private final String extension;
+    private final String contentType;
+
+    ArchiveFormat(String extension, String contentType) {
+        this.extension = extension;
+        this.contentType = contentType;
+    }
+
+    public String getExtension() {
+        return extension;
+    }
+
+    public String getContentType() {
+        return contentType;
+    }
+
+    /**
+     * Parses a configured format, ZIP if it is not set or unknown.
+     */
+    public static ArchiveFormat fromString(String value) {
+        for (ArchiveFormat format : values()) {
+            if (format.name().equalsIgnoreCase(value) || format.extension.equalsIgnoreCase(value)) {
+                return format;
+            }
+        }
+        return ZIP;
+    }
+
+    /**
+     * Finds the format of an archive by the extension of its name, null if it is not an archive.
+     */
+    public static ArchiveFormat fromFileName(String name) {
+        for (ArchiveFormat format : values()) {
+            if (name.toLowerCase().endsWith("." + format.extension)) {
+                return format;
+            }
+        }
+        return null;
+    }
+}
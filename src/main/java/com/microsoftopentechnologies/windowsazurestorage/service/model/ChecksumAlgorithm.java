@@ -0,0 +1,54 @@
+/*
+ Copyright 2016 Microsoft, Inc.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.microsoftopentechnologies.windowsazurestorage.service.model;
+
+import com.microsoftopentechnologies.windowsazurestorage.helper.Crc64Digest;
+import org.apache.commons.codec.digest.DigestUtils;
+
+import java.security.MessageDigest;
+
+/**
+ * Checksum computed on the agent while a file is read for upload.
+ */
+public enum ChecksumAlgorithm {
+    MD5,
+    SHA256,
+    CRC64;
+
+    public MessageDigest newDigest() {
+        switch (this) {
+            case SHA256:
+                return DigestUtils.getSha256Digest();
+            case CRC64:
+                return new Crc64Digest();
+            default:
+                return DigestUtils.getMd5Digest();
+        }
+    }
+
+    /**
+     * Parses a configured algorithm, MD5 if it is not set or unknown.
+     */
+    public static ChecksumAlgorithm fromString(String value) {
+        for (ChecksumAlgorithm algorithm : values()) {
+            if (algorithm.name().equalsIgnoreCase(value)) {
+                return algorithm;
+            }
+        }
+        return MD5;
+    }
+}
@@ -41,6 +41,7 @@ public class DownloadServiceData extends ServiceData {
     private String projectName;
     private BuildSelector buildSelector;
     private boolean includeArchiveZips;
+    private boolean extractArchives;
 
     public DownloadServiceData(Run<?, ?> run,
                                FilePath workspace,
@@ -148,6 +149,18 @@ public class DownloadServiceData extends ServiceData {
         this.includeArchiveZips = includeArchiveZips;
     }
 
+    /**
+     * Whether the archive of a build is extracted while it is downloaded. The parts of a multi-part archive are
+     * always extracted.
+     */
+    public boolean isExtractArchives() {
+        return extractArchives;
+    }
+
+    public void setExtractArchives(boolean extractArchives) {
+        this.extractArchives = extractArchives;
+    }
+
     public String getFileShare() {
         return fileShare;
     }
@@ -0,0 +1,138 @@
+/*
+ Copyright 2016 Microsoft, Inc.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package com.microsoftopentechnologies.windowsazurestorage.service.model;
+
+import com.azure.storage.blob.models.ParallelTransferOptions;
+
+import java.io.Serializable;
+
+/**
+ * Size-aware transfer settings of an upload. Files up to the single-shot threshold are uploaded with a single
+ * Put Blob request, their parallelism comes from uploading many files at once. Larger files are uploaded in
+ * large blocks, with several blocks of the same file in flight.
+ */
+public class TransferTuning implements Serializable {
+    private static final long serialVersionUID = -4482167431652012817L;
+
+    public static final long MB = 1024L * 1024L;
+    public static final int DEFAULT_SINGLE_SHOT_THRESHOLD_MB = 32;
+    public static final int DEFAULT_BLOCK_SIZE_MB = 16;
+    public static final int DEFAULT_BLOCK_CONCURRENCY = 8;
+
+    /**
+     * Smallest file which is uploaded resumably, with a journal of its staged blocks.
+     */
+    public static final long RESUMABLE_THRESHOLD = 512 * MB;
+
+    /**
+     * Largest single-shot threshold and block size accepted, in MiB. The Blob service takes up to 5000 MiB in a
+     * Put Blob and 4000 MiB in a Put Block, but the storage SDK holds every request body in flight in memory, so
+     * the settings are capped at what the agent can buffer: up to blockConcurrency blocks of 256 MiB per file.
+     */
+    public static final int MAX_SINGLE_SHOT_MB = 256;
+    public static final int MAX_BLOCK_SIZE_MB = 256;
+
+    /**
+     * Limit of the Blob service on the number of blocks of a blob.
+     */
+    private static final long MAX_BLOCKS = 50000;
+
+    private final long singleShotThreshold;
+    private final long blockSize;
+    private final int blockConcurrency;
+
+    /**
+     * @param singleShotThresholdMB Largest file size in MiB uploaded with a single request, 0 for the default.
+     * @param blockSizeMB           Block size in MiB of larger files, 0 for the default.
+     * @param blockConcurrency      Number of blocks of a single file in flight, 0 for the default.
+     */
+    public TransferTuning(int singleShotThresholdMB, int blockSizeMB, int blockConcurrency) {
+        this.singleShotThreshold = clamp(singleShotThresholdMB, DEFAULT_SINGLE_SHOT_THRESHOLD_MB, MAX_SINGLE_SHOT_MB)
+                * MB;
+        this.blockSize = clamp(blockSizeMB, DEFAULT_BLOCK_SIZE_MB, MAX_BLOCK_SIZE_MB) * MB;
+        this.blockConcurrency = blockConcurrency > 0 ? blockConcurrency : DEFAULT_BLOCK_CONCURRENCY;
+    }
+
+    public TransferTuning() {
+        this(0, 0, 0);
+    }
+
+    private static long clamp(int value, int defaultValue, int max) {
+        if (value <= 0) {
+            return defaultValue;
+        }
+        return Math.min(value, max);
+    }
+
+    public long getSingleShotThreshold() {
+        return singleShotThreshold;
+    }
+
+    public long getBlockSize() {
+        return blockSize;
+    }
+
+    public int getBlockConcurrency() {
+        return blockConcurrency;
+    }
+
+    public boolean isSingleShot(long size) {
+        return size <= singleShotThreshold;
+    }
+
+    /**
+     * Whether a file is large enough to be uploaded resumably, block by block. Files which would need blocks above
+     * {@link #MAX_BLOCK_SIZE_MB} are not.
+     */
+    public boolean isResumable(long size) {
+        return !isSingleShot(size) && size >= RESUMABLE_THRESHOLD && size <= MAX_BLOCKS * MAX_BLOCK_SIZE_MB * MB;
+    }
+
+    /**
+     * Estimates the number of requests needed to upload a file of the given size.
+     */
+    public long estimateRequests(long size) {
+        if (isSingleShot(size)) {
+            return 1;
+        }
+        long fileBlockSize = getParallelTransferOptions(size).getBlockSizeLong();
+        // every block plus the commit of the block list
+        return (size + fileBlockSize - 1) / fileBlockSize + 1;
+    }
+
+    /**
+     * Gets the transfer options for a file.
+     *
+     * @param size The size of the file, or a negative value if it is not known in advance.
+     * @return the options to pass to the storage SDK
+     */
+    public ParallelTransferOptions getParallelTransferOptions(long size) {
+        ParallelTransferOptions options = new ParallelTransferOptions()
+                .setMaxSingleUploadSizeLong(singleShotThreshold);
+        if (size >= 0 && isSingleShot(size)) {
+            return options.setMaxConcurrency(1);
+        }
+
+        // grow the blocks of huge files to stay within the block count limit of a blob. Only files above
+        // 50,000 blocks of MAX_BLOCK_SIZE_MB, about 12 TiB, get blocks beyond the buffering cap.
+        long fileBlockSize = blockSize;
+        if (size > 0) {
+            long minimumBlockSize = (size + MAX_BLOCKS - 1) / MAX_BLOCKS;
+            fileBlockSize = Math.max(fileBlockSize, (minimumBlockSize + MB - 1) / MB * MB);
+        }
+        return options.setBlockSizeLong(fileBlockSize).setMaxConcurrency(blockConcurrency);
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ Copyright 2016 Microsoft, Inc.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.microsoftopentechnologies.windowsazurestorage.service.model;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.tika.Tika;
+import org.apache.tools.ant.types.selectors.SelectorUtils;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Decides which files are gzipped on upload: the files matching the configured globs, and the files whose
+ * content type is known to compress well.
+ * <p>
+ * The content type of a blob is only known when it is configured or detected by the blob properties. Otherwise,
+ * the type is guessed from the file name, so that the eligibility does not depend on the content type detection.
+ */
+public class UploadCompression {
+    public static final String GZIP = "gzip";
+
+    /**
+     * Metadata of a blob holding the lower case hex MD5 of the file before compression. The Content-MD5 of a
+     * gzipped blob is the one of the stored bytes, which cannot be compared with the files of the workspace.
+     */
+    public static final String SOURCE_MD5_METADATA = "jenkins_source_md5";
+
+    /**
+     * Metadata of a blob holding the length of the file before compression.
+     */
+    public static final String SOURCE_LENGTH_METADATA = "jenkins_source_length";
+
+    private static final String[] COMPRESSIBLE_TYPES = {
+            "text/",
+            "application/javascript",
+            "application/x-javascript",
+            "application/json",
+            "application/xml",
+            "application/xhtml+xml",
+            "image/svg+xml"
+    };
+
+    private static final Tika TIKA = new Tika();
+
+    private final String includes;
+
+    /**
+     * @param includes Comma separated Ant globs of the files to compress, relative to the workspace. May be empty.
+     */
+    public UploadCompression(String includes) {
+        this.includes = includes;
+    }
+
+    /**
+     * @param relativePath    Path of the file relative to the workspace.
+     * @param contentType     Content type of the blob, null to guess it from the file name.
+     * @param contentEncoding Configured content encoding of the blob, files which are already encoded are skipped.
+     */
+    public boolean isEligible(String relativePath, String contentType, String contentEncoding) {
+        if (contentEncoding != null && !"identity".equalsIgnoreCase(contentEncoding)
+                && !"UTF-8".equalsIgnoreCase(contentEncoding)) {
+            return false;
+        }
+        if (StringUtils.isNotBlank(includes)) {
+            for (String pattern : includes.split(",")) {
+                if (StringUtils.isNotBlank(pattern) && SelectorUtils.matchPath(pattern.trim(), relativePath)) {
+                    return true;
+                }
+            }
+        }
+        String type = (contentType != null ? contentType : TIKA.detect(relativePath)).toLowerCase();
+        for (String compressible : COMPRESSIBLE_TYPES) {
+            if (type.startsWith(compressible)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Copies the metadata of a blob, adding the MD5 and the length of the file it was made from.
+     *
+     * @param metadata Metadata configured for the blob, may be null.
+     * @param md5      Lower case hex MD5 of the file.
+     * @param length   Length of the file.
+     */
+    public static Map<String, String> withSource(Map<String, String> metadata, String md5, long length) {
+        Map<String, String> result = metadata == null ? new HashMap<>() : new HashMap<>(metadata);
+        result.put(SOURCE_MD5_METADATA, md5);
+        result.put(SOURCE_LENGTH_METADATA, Long.toString(length));
+        return result;
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ Copyright 2016 Microsoft, Inc.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package com.microsoftopentechnologies.windowsazurestorage.service.model;
+
+import java.io.Serializable;
+
+/**
+ * A file of the workspace which is going to be uploaded, as found by the planning pass on the agent.
+ */
+public class UploadItem implements Serializable {
+    private static final long serialVersionUID = -2383458213385610931L;
+
+    /**
+     * Path of the file relative to the workspace, separated by forward slashes.
+     */
+    private final String relativePath;
+
+    /**
+     * Name of the blob or share file the file is uploaded to.
+     */
+    private final String name;
+
+    private final long size;
+
+    private final long lastModified;
+
+    /**
+     * Content type detected on the agent, <code>null</code> if no detection was requested.
+     */
+    private final String contentType;
+
+    /**
+     * Lower case hex MD5 of the file, <code>null</code> if it was not needed.
+     */
+    private final String md5;
+
+    /**
+     * Lower case hex SHA-256 of the file, computed along with the MD5.
+     */
+    private final String sha256;
+
+    public UploadItem(String relativePath, String name, long size, long lastModified, String contentType) {
+        this(relativePath, name, size, lastModified, contentType, null);
+    }
+
+    public UploadItem(String relativePath, String name, long size, long lastModified, String contentType,
+                      String md5) {
+        this(relativePath, name, size, lastModified, contentType, md5, null);
+    }
+
+    public UploadItem(String relativePath, String name, long size, long lastModified, String contentType,
+                      String md5, String sha256) {
+        this.relativePath = relativePath;
+        this.name = name;
+        this.size = size;
+        this.lastModified = lastModified;
+        this.contentType = contentType;
+        this.md5 = md5;
+        this.sha256 = sha256;
+    }
+
+    public String getRelativePath() {
+        return relativePath;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public long getLastModified() {
+        return lastModified;
+    }
+
+    public String getContentType() {
+        return contentType;
+    }
+
+    public String getMd5() {
+        return md5;
+    }
+
+    public String getSha256() {
+        return sha256;
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ Copyright 2016 Microsoft, Inc.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package com.microsoftopentechnologies.windowsazurestorage.service.model;
+
+import java.io.Serializable;
+import java.util.List;
+
+/**
+ * The result of planning an upload on the agent: everything the controller needs to know about the workspace
+ * to run the upload, gathered in a single remoting call.
+ */
+public class UploadPlan implements Serializable {
+    private static final long serialVersionUID = 6152430471309845538L;
+
+    /**
+     * Files to upload individually, after the modified-since filter.
+     */
+    private final List<UploadItem> items;
+
+    /**
+     * Number of files matched by the include patterns, before the modified-since filter.
+     */
+    private final int matchedCount;
+
+    /**
+     * Names of the matched files left out by the modified-since filter, which are still part of the upload.
+     */
+    private final List<String> unmodifiedNames;
+
+    /**
+     * Ant glob of the files to archive, without the embedded virtual paths.
+     */
+    private final String archiveIncludes;
+
+    public UploadPlan(List<UploadItem> items, int matchedCount, List<String> unmodifiedNames,
+                      String archiveIncludes) {
+        this.items = items;
+        this.matchedCount = matchedCount;
+        this.unmodifiedNames = unmodifiedNames;
+        this.archiveIncludes = archiveIncludes;
+    }
+
+    public List<UploadItem> getItems() {
+        return items;
+    }
+
+    public int getMatchedCount() {
+        return matchedCount;
+    }
+
+    public List<String> getUnmodifiedNames() {
+        return unmodifiedNames;
+    }
+
+    public String getArchiveIncludes() {
+        return archiveIncludes;
+    }
+}
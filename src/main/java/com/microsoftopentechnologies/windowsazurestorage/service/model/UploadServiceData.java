@@ -35,6 +35,7 @@ public class UploadServiceData extends ServiceData {
     private boolean pubAccessible;
     private boolean cleanUpContainerOrShare;
     private boolean cleanUpVirtualPath;
+    private boolean replaceVirtualPath;
     private String filePath;
     private String virtualPath;
     private String excludedFilesPath;
@@ -45,6 +46,16 @@ public class UploadServiceData extends ServiceData {
     private final List<AzureBlob> archiveBlobs = Collections.synchronizedList(new ArrayList<>());
     private List<AzureBlobMetadataPair> azureBlobMetadata;
     private String credentialsId;
+    private TransferTuning transferTuning = new TransferTuning();
+    private boolean skipUnchangedArtifacts;
+    private List<AzureBlob> previousBlobs;
+    private boolean contentAddressed;
+    private ChecksumAlgorithm checksumAlgorithm = ChecksumAlgorithm.MD5;
+    private UploadCompression compression;
+    private int archiveParts;
+    private ArchiveFormat archiveFormat = ArchiveFormat.ZIP;
+    private int archiveCompressionLevel;
+    private boolean reproducibleArchive;
 
     public UploadServiceData(Run<?, ?> run,
                              FilePath workspace,
@@ -55,6 +66,104 @@ public class UploadServiceData extends ServiceData {
     }
 
 
+    public boolean isSkipUnchangedArtifacts() {
+        return skipUnchangedArtifacts;
+    }
+
+    public void setSkipUnchangedArtifacts(boolean skipUnchangedArtifacts) {
+        this.skipUnchangedArtifacts = skipUnchangedArtifacts;
+    }
+
+    /**
+     * Files uploaded by the previous build to the same container, or null if the upload is not incremental.
+     */
+    public List<AzureBlob> getPreviousBlobs() {
+        return previousBlobs;
+    }
+
+    public void setPreviousBlobs(List<AzureBlob> previousBlobs) {
+        this.previousBlobs = previousBlobs;
+    }
+
+    /**
+     * Whether each distinct content is stored once, under a name derived from its SHA-256.
+     */
+    public boolean isContentAddressed() {
+        return contentAddressed;
+    }
+
+    public void setContentAddressed(boolean contentAddressed) {
+        this.contentAddressed = contentAddressed;
+    }
+
+    public ChecksumAlgorithm getChecksumAlgorithm() {
+        return checksumAlgorithm;
+    }
+
+    public void setChecksumAlgorithm(ChecksumAlgorithm checksumAlgorithm) {
+        this.checksumAlgorithm = checksumAlgorithm;
+    }
+
+    /**
+     * Files gzipped while they are uploaded, or null if nothing is compressed.
+     */
+    public UploadCompression getCompression() {
+        return compression;
+    }
+
+    public void setCompression(UploadCompression compression) {
+        this.compression = compression;
+    }
+
+    /**
+     * Number of parts the archive is split into, 0 or 1 for a single archive.
+     */
+    public int getArchiveParts() {
+        return archiveParts;
+    }
+
+    public void setArchiveParts(int archiveParts) {
+        this.archiveParts = archiveParts;
+    }
+
+    public ArchiveFormat getArchiveFormat() {
+        return archiveFormat;
+    }
+
+    public void setArchiveFormat(ArchiveFormat archiveFormat) {
+        this.archiveFormat = archiveFormat;
+    }
+
+    /**
+     * Compression level of the archive from 1 to 9, 0 for the default of the format.
+     */
+    public int getArchiveCompressionLevel() {
+        return archiveCompressionLevel;
+    }
+
+    public void setArchiveCompressionLevel(int archiveCompressionLevel) {
+        this.archiveCompressionLevel = archiveCompressionLevel;
+    }
+
+    /**
+     * Whether the archive entries are sorted, with a fixed time and permissions.
+     */
+    public boolean isReproducibleArchive() {
+        return reproducibleArchive;
+    }
+
+    public void setReproducibleArchive(boolean reproducibleArchive) {
+        this.reproducibleArchive = reproducibleArchive;
+    }
+
+    public TransferTuning getTransferTuning() {
+        return transferTuning;
+    }
+
+    public void setTransferTuning(TransferTuning transferTuning) {
+        this.transferTuning = transferTuning;
+    }
+
     public String getContainerName() {
         return containerName;
     }
@@ -108,6 +217,17 @@ public class UploadServiceData extends ServiceData {
         this.cleanUpVirtualPath = cleanUpVirtualPath;
     }
 
+    /**
+     * Whether the blobs of the virtual path which are not written by the upload are deleted after it.
+     */
+    public boolean isReplaceVirtualPath() {
+        return replaceVirtualPath;
+    }
+
+    public void setReplaceVirtualPath(boolean replaceVirtualPath) {
+        this.replaceVirtualPath = replaceVirtualPath;
+    }
+
     public String getFilePath() {
         return filePath;
     }
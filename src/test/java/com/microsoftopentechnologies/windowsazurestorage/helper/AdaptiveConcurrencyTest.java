@@ -0,0 +1,76 @@
+package com.microsoftopentechnologies.windowsazurestorage.helper;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+
+public class AdaptiveConcurrencyTest {
+
+    private final List<String> log = new ArrayList<>();
+
+    private AdaptiveConcurrency newConcurrency(int initial, int max) {
+        TransferScheduler.Lane lane = new TransferScheduler(max).newLane(initial);
+        return new AdaptiveConcurrency(lane, max, log::add);
+    }
+
+    @Test
+    public void testIncreasesAfterHealthyWindow() {
+        AdaptiveConcurrency concurrency = newConcurrency(4, 8);
+        for (int i = 0; i < 3; i++) {
+            concurrency.onResponse(201, 1000);
+        }
+        Assert.assertEquals(4, concurrency.getLimit());
+
+        concurrency.onResponse(201, 1000);
+        Assert.assertEquals(5, concurrency.getLimit());
+        Assert.assertEquals(5, concurrency.getLane().getMaxConcurrency());
+        Assert.assertEquals(1, log.size());
+    }
+
+    @Test
+    public void testHoldsWhenLatencyGrows() {
+        AdaptiveConcurrency concurrency = newConcurrency(2, 8);
+        concurrency.onResponse(201, 1000);
+        concurrency.onResponse(201, 1000);
+        Assert.assertEquals(3, concurrency.getLimit());
+
+        for (int i = 0; i < 3; i++) {
+            concurrency.onResponse(201, 5000);
+        }
+        Assert.assertEquals(3, concurrency.getLimit());
+    }
+
+    @Test
+    public void testNeverExceedsMax() {
+        AdaptiveConcurrency concurrency = newConcurrency(2, 2);
+        for (int i = 0; i < 10; i++) {
+            concurrency.onResponse(200, 1000);
+        }
+        Assert.assertEquals(2, concurrency.getLimit());
+    }
+
+    @Test
+    public void testHalvesOnThrottling() {
+        AdaptiveConcurrency concurrency = newConcurrency(16, 32);
+        concurrency.onResponse(503, 1000);
+        Assert.assertEquals(8, concurrency.getLimit());
+
+        // late reports of requests sent before the decrease are ignored
+        concurrency.onResponse(503, 1000);
+        concurrency.onError(new RuntimeException(new SocketTimeoutException()));
+        Assert.assertEquals(8, concurrency.getLimit());
+    }
+
+    @Test
+    public void testIgnoresClientErrors() {
+        AdaptiveConcurrency concurrency = newConcurrency(16, 32);
+        concurrency.onResponse(404, 1000);
+        concurrency.onResponse(409, 1000);
+        concurrency.onError(new IllegalStateException());
+        Assert.assertEquals(16, concurrency.getLimit());
+        Assert.assertTrue(log.isEmpty());
+    }
+}
@@ -0,0 +1,35 @@
+package com.microsoftopentechnologies.windowsazurestorage.helper;
+
+import org.apache.commons.codec.binary.Hex;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+
+public class Crc64DigestTest {
+
+    @Test
+    public void testCheckValue() {
+        MessageDigest digest = new Crc64Digest();
+        Assert.assertEquals("995dc9bbdf1939fa",
+                Hex.encodeHexString(digest.digest("123456789".getBytes(StandardCharsets.US_ASCII))));
+    }
+
+    @Test
+    public void testUpdatesAreCumulative() {
+        MessageDigest digest = new Crc64Digest();
+        digest.update("1234".getBytes(StandardCharsets.US_ASCII));
+        digest.update((byte) '5');
+        digest.update("6789".getBytes(StandardCharsets.US_ASCII), 0, 4);
+        Assert.assertEquals("995dc9bbdf1939fa", Hex.encodeHexString(digest.digest()));
+    }
+
+    @Test
+    public void testDigestResets() {
+        MessageDigest digest = new Crc64Digest();
+        digest.update("unrelated".getBytes(StandardCharsets.US_ASCII));
+        digest.digest();
+        Assert.assertEquals("0000000000000000", Hex.encodeHexString(digest.digest()));
+    }
+}
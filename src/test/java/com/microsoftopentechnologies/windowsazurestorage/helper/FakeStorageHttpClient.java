@@ -0,0 +1,269 @@
+package com.microsoftopentechnologies.windowsazurestorage.helper;
+
+import com.azure.core.http.HttpClient;
+import com.azure.core.http.HttpHeaders;
+import com.azure.core.http.HttpMethod;
+import com.azure.core.http.HttpRequest;
+import com.azure.core.http.HttpResponse;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
+
+/**
+ * Answers every storage request with the success status of its operation and no body, after reading the request
+ * body. The first requests can be throttled to exercise the retries.
+ * <p>
+ * The blocks staged through the client are kept as uncommitted until their blob is committed, and listed by Get
+ * Block List. The blobs put or committed through the client are listed by List Blobs, in a single page, until
+ * they are deleted. A request whose SAS has an <code>sp</code> parameter is refused with 403 when the permissions do
+ * not allow its operation, like the service does.
+ */
+public class FakeStorageHttpClient implements HttpClient {
+    private final AtomicInteger throttled;
+    private final Map<String, Map<String, Long>> uncommittedBlocks = new ConcurrentHashMap<>();
+    private final Set<String> blobs = new ConcurrentSkipListSet<>();
+    private final List<HttpRequest> requests = Collections.synchronizedList(new ArrayList<>());
+    private volatile Predicate<HttpRequest> failing = request -> false;
+
+    public FakeStorageHttpClient() {
+        this(0);
+    }
+
+    /**
+     * @param throttled Number of requests answered with 503 first.
+     */
+    public FakeStorageHttpClient(int throttled) {
+        this.throttled = new AtomicInteger(throttled);
+    }
+
+    /**
+     * Answers the matching requests with 409, which is not retried.
+     */
+    public FakeStorageHttpClient failWhen(Predicate<HttpRequest> predicate) {
+        this.failing = predicate;
+        return this;
+    }
+
+    /**
+     * Gets the IDs of the blocks staged for a blob and not committed yet.
+     *
+     * @param path The path of the blob, starting with its container.
+     */
+    public Set<String> getUncommittedBlocks(String path) {
+        return uncommittedBlocks.getOrDefault(path, new ConcurrentHashMap<>()).keySet();
+    }
+
+    /**
+     * Gets the paths of the blobs which exist, starting with their container.
+     */
+    public Set<String> getBlobs() {
+        return blobs;
+    }
+
+    /**
+     * Gets the requests of an operation received so far, in order.
+     */
+    public List<HttpRequest> getRequests(String operation) {
+        List<HttpRequest> matching = new ArrayList<>();
+        synchronized (requests) {
+            for (HttpRequest request : requests) {
+                if (RequestCountingPolicy.getOperation(request).equals(operation)) {
+                    matching.add(request);
+                }
+            }
+        }
+        return matching;
+    }
+
+    @Override
+    public Mono<HttpResponse> send(HttpRequest request) {
+        Flux<ByteBuffer> body = request.getBody() == null ? Flux.empty() : request.getBody();
+        return body.then(Mono.fromCallable(() -> respond(request)));
+    }
+
+    private FakeResponse respond(HttpRequest request) {
+        requests.add(request);
+        if (throttled.getAndDecrement() > 0) {
+            return new FakeResponse(request, 503, null);
+        }
+        if (!isPermitted(request)) {
+            return new FakeResponse(request, 403, null);
+        }
+        if (failing.test(request)) {
+            return new FakeResponse(request, 409, null);
+        }
+
+        String path = request.getUrl().getPath();
+        String operation = RequestCountingPolicy.getOperation(request);
+        if (operation.equals("PutBlock")) {
+            long length = Long.parseLong(request.getHeaders().getValue("Content-Length"));
+            uncommittedBlocks.computeIfAbsent(path, k -> new ConcurrentHashMap<>())
+                    .put(getQueryParameter(request, "blockid"), length);
+        } else if (operation.equals("PutBlockList")) {
+            uncommittedBlocks.remove(path);
+            blobs.add(path);
+        } else if (operation.equals("PutBlob")) {
+            blobs.add(path);
+        } else if (operation.equals("Delete")) {
+            blobs.remove(path);
+        } else if (operation.equals("List") && "container".equals(getQueryParameter(request, "restype"))) {
+            return new FakeResponse(request, 200, listBlobs(path, getQueryParameter(request, "prefix")));
+        } else if (operation.equals("GetBlockList")) {
+            StringBuilder blockList = new StringBuilder("<?xml version=\"1.0\" encoding=\"utf-8\"?><BlockList>"
+                    + "<CommittedBlocks/><UncommittedBlocks>");
+            for (Map.Entry<String, Long> block : uncommittedBlocks.getOrDefault(path, new ConcurrentHashMap<>())
+                    .entrySet()) {
+                blockList.append("<Block><Name>").append(block.getKey()).append("</Name><Size>")
+                        .append(block.getValue()).append("</Size></Block>");
+            }
+            blockList.append("</UncommittedBlocks></BlockList>");
+            return new FakeResponse(request, 200, blockList.toString().getBytes(StandardCharsets.UTF_8));
+        }
+        return new FakeResponse(request, getSuccessStatus(request), null);
+    }
+
+    private byte[] listBlobs(String containerPath, String prefix) {
+        String blobPrefix = containerPath + "/" + (prefix == null ? "" : prefix);
+        StringBuilder list = new StringBuilder("<?xml version=\"1.0\" encoding=\"utf-8\"?><EnumerationResults>"
+                + "<Blobs>");
+        for (String blob : blobs) {
+            if (blob.startsWith(blobPrefix)) {
+                list.append("<Blob><Name>").append(blob.substring(containerPath.length() + 1))
+                        .append("</Name><Properties><Last-Modified>Wed, 21 Oct 2015 07:28:00 GMT</Last-Modified>"
+                                + "<Etag>0x8D4BCC2E4835CD0</Etag><Content-Length>0</Content-Length>"
+                                + "<BlobType>BlockBlob</BlobType></Properties></Blob>");
+            }
+        }
+        list.append("</Blobs><NextMarker/></EnumerationResults>");
+        return list.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Checks the permissions of the SAS of a request, if it has some: reading needs <code>r</code>, writing
+     * <code>w</code> and deleting <code>d</code>.
+     */
+    private static boolean isPermitted(HttpRequest request) {
+        String permissions = getQueryParameter(request, "sp");
+        if (permissions == null) {
+            return true;
+        }
+        switch (request.getHttpMethod()) {
+            case GET:
+            case HEAD:
+                return permissions.contains("r");
+            case DELETE:
+                return permissions.contains("d");
+            default:
+                return permissions.contains("w");
+        }
+    }
+
+    private static String getQueryParameter(HttpRequest request, String name) {
+        String query = request.getUrl().getQuery();
+        if (query == null) {
+            return null;
+        }
+        for (String parameter : query.split("&")) {
+            String[] pair = parameter.split("=", 2);
+            if (pair.length == 2 && pair[0].equals(name)) {
+                try {
+                    return URLDecoder.decode(pair[1], "UTF-8");
+                } catch (UnsupportedEncodingException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        }
+        return null;
+    }
+
+    private static int getSuccessStatus(HttpRequest request) {
+        String operation = RequestCountingPolicy.getOperation(request);
+        if (request.getHttpMethod() == HttpMethod.DELETE) {
+            return 202;
+        }
+        if (request.getHttpMethod() != HttpMethod.PUT
+                || operation.equals("SetProperties") || operation.equals("SetMetadata")) {
+            return 200;
+        }
+        return 201;
+    }
+
+    private static final class FakeResponse extends HttpResponse {
+        private final int statusCode;
+        private final byte[] body;
+        private final HttpHeaders headers = new HttpHeaders();
+
+        FakeResponse(HttpRequest request, int statusCode, byte[] body) {
+            super(request);
+            this.statusCode = statusCode;
+            this.body = body == null ? new byte[0] : body;
+            headers.set("Date", "Wed, 21 Oct 2015 07:28:00 GMT");
+            headers.set("Last-Modified", "Wed, 21 Oct 2015 07:28:00 GMT");
+            headers.set("ETag", "\"0x8D4BCC2E4835CD0\"");
+            headers.set("x-ms-request-id", "00000000-0000-0000-0000-000000000000");
+            headers.set("x-ms-file-creation-time", "2015-10-21T07:28:00.0000000Z");
+            headers.set("x-ms-file-last-write-time", "2015-10-21T07:28:00.0000000Z");
+            headers.set("x-ms-file-change-time", "2015-10-21T07:28:00.0000000Z");
+            headers.set("x-ms-file-attributes", "Archive");
+            headers.set("x-ms-file-permission-key", "1");
+            headers.set("x-ms-file-id", "1");
+            headers.set("x-ms-file-parent-id", "0");
+            headers.set("Content-Length", String.valueOf(this.body.length));
+            if (body != null) {
+                headers.set("Content-Type", "application/xml");
+            }
+            if (statusCode == 403) {
+                headers.set("x-ms-error-code", "AuthorizationPermissionMismatch");
+            }
+        }
+
+        @Override
+        public int getStatusCode() {
+            return statusCode;
+        }
+
+        @Override
+        public String getHeaderValue(String name) {
+            return headers.getValue(name);
+        }
+
+        @Override
+        public HttpHeaders getHeaders() {
+            return headers;
+        }
+
+        @Override
+        public Flux<ByteBuffer> getBody() {
+            return body.length == 0 ? Flux.empty() : Flux.just(ByteBuffer.wrap(body));
+        }
+
+        @Override
+        public Mono<byte[]> getBodyAsByteArray() {
+            return body.length == 0 ? Mono.empty() : Mono.just(body);
+        }
+
+        @Override
+        public Mono<String> getBodyAsString() {
+            return getBodyAsString(StandardCharsets.UTF_8);
+        }
+
+        @Override
+        public Mono<String> getBodyAsString(Charset charset) {
+            return body.length == 0 ? Mono.empty() : Mono.just(new String(body, charset));
+        }
+    }
+}
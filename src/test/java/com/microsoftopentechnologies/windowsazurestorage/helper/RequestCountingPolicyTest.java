@@ -0,0 +1,127 @@
+package com.microsoftopentechnologies.windowsazurestorage.helper;
+
+import com.azure.core.credential.AzureSasCredential;
+import com.azure.core.http.HttpMethod;
+import com.azure.core.http.HttpRequest;
+import com.azure.storage.blob.BlobClient;
+import com.azure.storage.blob.BlobServiceClientBuilder;
+import com.azure.storage.common.policy.RequestRetryOptions;
+import com.azure.storage.common.policy.RetryPolicyType;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.net.URL;
+import java.time.Duration;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+public class RequestCountingPolicyTest {
+    private static final String BLOB_URL = "https://account.blob.core.windows.net/container/blob";
+    private static final String FILE_URL = "https://account.file.core.windows.net/share/dir/file";
+
+    private static String operation(HttpMethod method, String url) throws Exception {
+        return RequestCountingPolicy.getOperation(new HttpRequest(method, new URL(url)));
+    }
+
+    private static BlobClient blob(FakeStorageHttpClient httpClient) {
+        return new BlobServiceClientBuilder()
+                .endpoint("https://account.blob.core.windows.net")
+                .credential(new AzureSasCredential("sv=2020-08-04&sig=fake"))
+                .httpClient(httpClient)
+                .retryOptions(new RequestRetryOptions(RetryPolicyType.FIXED, 3, Duration.ofSeconds(30),
+                        Duration.ofMillis(1), Duration.ofMillis(1), null))
+                .addPolicy(RequestCountingPolicy.BIND)
+                .addPolicy(RequestCountingPolicy.COUNT)
+                .buildClient()
+                .getBlobContainerClient("container")
+                .getBlobClient("blob");
+    }
+
+    @Test
+    public void testOperationNames() throws Exception {
+        Assert.assertEquals("PutBlob", operation(HttpMethod.PUT, BLOB_URL));
+        Assert.assertEquals("PutBlock", operation(HttpMethod.PUT, BLOB_URL + "?comp=block&blockid=AAAA"));
+        Assert.assertEquals("PutBlockList", operation(HttpMethod.PUT, BLOB_URL + "?comp=blocklist"));
+        Assert.assertEquals("SetProperties", operation(HttpMethod.PUT, BLOB_URL + "?comp=properties"));
+        Assert.assertEquals("SetMetadata", operation(HttpMethod.PUT, BLOB_URL + "?comp=metadata"));
+        Assert.assertEquals("GetProperties", operation(HttpMethod.HEAD, BLOB_URL));
+        Assert.assertEquals("Get", operation(HttpMethod.GET, BLOB_URL));
+        Assert.assertEquals("Delete", operation(HttpMethod.DELETE, BLOB_URL));
+        Assert.assertEquals("List", operation(HttpMethod.GET,
+                "https://account.blob.core.windows.net/container?restype=container&comp=list&prefix=a"));
+        Assert.assertEquals("GetProperties", operation(HttpMethod.GET,
+                "https://account.blob.core.windows.net/container?restype=container"));
+        Assert.assertEquals("CreateContainer", operation(HttpMethod.PUT,
+                "https://account.blob.core.windows.net/container?restype=container"));
+        Assert.assertEquals("CreateDirectory", operation(HttpMethod.PUT,
+                "https://account.file.core.windows.net/share/dir?restype=directory"));
+        Assert.assertEquals("PutRange", operation(HttpMethod.PUT, FILE_URL + "?comp=range"));
+
+        HttpRequest createFile = new HttpRequest(HttpMethod.PUT, new URL(FILE_URL));
+        createFile.setHeader("x-ms-type", "file");
+        Assert.assertEquals("CreateFile", RequestCountingPolicy.getOperation(createFile));
+        HttpRequest copy = new HttpRequest(HttpMethod.PUT, new URL(BLOB_URL));
+        copy.setHeader("x-ms-copy-source", BLOB_URL + "2");
+        Assert.assertEquals("CopyBlob", RequestCountingPolicy.getOperation(copy));
+    }
+
+    @Test
+    public void testCountsIntoStatsOfThread() {
+        BlobClient blob = blob(new FakeStorageHttpClient());
+        RequestStats stats = new RequestStats();
+        try (RequestStats.Scope ignored = stats.open()) {
+            blob.exists();
+            blob.delete();
+        }
+        // not counted any more
+        blob.exists();
+
+        Assert.assertEquals(1, stats.get("GetProperties"));
+        Assert.assertEquals(1, stats.get("Delete"));
+        Assert.assertEquals(2, stats.getTotal());
+        Assert.assertNull(RequestStats.current());
+    }
+
+    @Test
+    public void testCountsEveryAttempt() {
+        BlobClient blob = blob(new FakeStorageHttpClient(2));
+        RequestStats stats = new RequestStats();
+        try (RequestStats.Scope ignored = stats.open()) {
+            blob.exists();
+        }
+
+        // the retries after two throttled attempts run on other threads, they are billed all the same
+        Assert.assertEquals(3, stats.get("GetProperties"));
+    }
+
+    @Test
+    public void testLaneTasksCountIntoStatsOfSubmitter() throws Exception {
+        BlobClient blob = blob(new FakeStorageHttpClient());
+        ExecutorService lane = new TransferScheduler(2).newLane(2);
+        RequestStats stats = new RequestStats();
+        Future<Boolean> first;
+        Future<Boolean> second;
+        try (RequestStats.Scope ignored = stats.open()) {
+            first = lane.submit(blob::exists);
+            second = lane.submit(blob::exists);
+        }
+        first.get();
+        second.get();
+        lane.shutdown();
+
+        Assert.assertEquals(2, stats.get("GetProperties"));
+    }
+
+    @Test
+    public void testContextTakesPrecedence() {
+        BlobClient blob = blob(new FakeStorageHttpClient());
+        RequestStats outer = new RequestStats();
+        RequestStats inner = new RequestStats();
+        try (RequestStats.Scope ignored = outer.open()) {
+            blob.existsWithResponse(null, inner.addTo(RequestStats.currentContext()));
+        }
+
+        Assert.assertEquals(0, outer.getTotal());
+        Assert.assertEquals(1, inner.get("GetProperties"));
+    }
+}
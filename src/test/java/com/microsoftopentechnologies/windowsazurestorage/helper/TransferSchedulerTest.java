@@ -0,0 +1,97 @@
+package com.microsoftopentechnologies.windowsazurestorage.helper;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class TransferSchedulerTest {
+
+    /**
+     * A task which holds its slot until released, counting the tasks running in its lane and in the scheduler.
+     */
+    private static Runnable task(AtomicInteger laneActive, AtomicInteger lanePeak, AtomicInteger active,
+                                 AtomicInteger peak, CountDownLatch started, CountDownLatch release) {
+        return () -> {
+            lanePeak.accumulateAndGet(laneActive.incrementAndGet(), Math::max);
+            peak.accumulateAndGet(active.incrementAndGet(), Math::max);
+            started.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                laneActive.decrementAndGet();
+                active.decrementAndGet();
+            }
+        };
+    }
+
+    @Test
+    public void testGlobalCapAndLaneLimit() throws Exception {
+        TransferScheduler scheduler = new TransferScheduler(4);
+        AtomicInteger active = new AtomicInteger();
+        AtomicInteger peak = new AtomicInteger();
+        AtomicInteger smallActive = new AtomicInteger();
+        AtomicInteger smallPeak = new AtomicInteger();
+        AtomicInteger largeActive = new AtomicInteger();
+        AtomicInteger largePeak = new AtomicInteger();
+        CountDownLatch started = new CountDownLatch(4);
+        CountDownLatch release = new CountDownLatch(1);
+
+        ExecutorService small = scheduler.newLane(1);
+        ExecutorService large = scheduler.newLane(10);
+        for (int i = 0; i < 5; i++) {
+            small.execute(task(smallActive, smallPeak, active, peak, started, release));
+            large.execute(task(largeActive, largePeak, active, peak, started, release));
+        }
+
+        // every slot is taken and held until the release
+        Assert.assertTrue(started.await(10, TimeUnit.SECONDS));
+        Assert.assertEquals(1, smallActive.get());
+        Assert.assertEquals(3, largeActive.get());
+
+        release.countDown();
+        small.shutdown();
+        large.shutdown();
+        Assert.assertTrue(small.awaitTermination(10, TimeUnit.SECONDS));
+        Assert.assertTrue(large.awaitTermination(10, TimeUnit.SECONDS));
+        // the peaks cover the whole run, including the tasks started after the release
+        Assert.assertEquals(1, smallPeak.get());
+        Assert.assertEquals(4, peak.get());
+        Assert.assertTrue(largePeak.get() <= 4);
+    }
+
+    @Test
+    public void testLanesShareSlotsInTurn() throws Exception {
+        TransferScheduler scheduler = new TransferScheduler(1);
+        StringBuffer order = new StringBuffer();
+        CountDownLatch release = new CountDownLatch(1);
+
+        ExecutorService first = scheduler.newLane(1);
+        ExecutorService second = scheduler.newLane(1);
+        first.execute(() -> {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        for (int i = 0; i < 3; i++) {
+            first.execute(() -> order.append('a'));
+        }
+        for (int i = 0; i < 3; i++) {
+            second.execute(() -> order.append('b'));
+        }
+
+        release.countDown();
+        first.shutdown();
+        second.shutdown();
+        Assert.assertTrue(first.awaitTermination(10, TimeUnit.SECONDS));
+        Assert.assertTrue(second.awaitTermination(10, TimeUnit.SECONDS));
+        Assert.assertTrue(order.toString(), order.toString().matches("(ab){3}|(ba){3}"));
+    }
+}
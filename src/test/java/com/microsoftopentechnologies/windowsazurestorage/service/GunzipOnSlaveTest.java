@@ -0,0 +1,54 @@
+package com.microsoftopentechnologies.windowsazurestorage.service;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipException;
+
+public class GunzipOnSlaveTest {
+    @Rule
+    public TemporaryFolder workspace = new TemporaryFolder();
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 10000; i++) {
+            text.append("line ").append(i).append('\n');
+        }
+        byte[] content = text.toString().getBytes(StandardCharsets.UTF_8);
+        File file = workspace.newFile("build.log");
+        try (OutputStream output = new GZIPOutputStream(Files.newOutputStream(file.toPath()))) {
+            output.write(content);
+        }
+        Assert.assertTrue(file.length() < content.length);
+
+        new GunzipOnSlave().invoke(file, null);
+
+        Assert.assertArrayEquals(content, Files.readAllBytes(file.toPath()));
+        // the decoded temporary file replaced the download
+        Assert.assertArrayEquals(new String[]{"build.log"}, workspace.getRoot().list());
+    }
+
+    @Test
+    public void testCorruptDownloadIsLeftAsItIs() throws Exception {
+        byte[] content = "not gzipped".getBytes(StandardCharsets.UTF_8);
+        File file = workspace.newFile("plain.txt");
+        Files.write(file.toPath(), content);
+
+        try {
+            new GunzipOnSlave().invoke(file, null);
+            Assert.fail("a file which is not gzipped can't be decoded");
+        } catch (ZipException e) {
+            // expected
+        }
+        Assert.assertArrayEquals(content, Files.readAllBytes(file.toPath()));
+        Assert.assertArrayEquals(new String[]{"plain.txt"}, workspace.getRoot().list());
+    }
+}
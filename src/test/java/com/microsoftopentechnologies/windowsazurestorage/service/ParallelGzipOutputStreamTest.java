@@ -0,0 +1,70 @@
+package com.microsoftopentechnologies.windowsazurestorage.service;
+
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import org.apache.commons.io.IOUtils;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+
+public class ParallelGzipOutputStreamTest {
+    @Rule
+    public TemporaryFolder workspace = new TemporaryFolder();
+
+    @Test
+    public void testMembersDecodeAsOneStream() throws Exception {
+        // a few chunks, the last one partial
+        byte[] content = new byte[ParallelGzipOutputStream.CHUNK_SIZE * 3 + 12345];
+        new Random(42).nextBytes(content);
+
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        try (ParallelGzipOutputStream gzip = new ParallelGzipOutputStream(compressed, 1, 2)) {
+            gzip.write(content, 0, 100);
+            gzip.write(content[100]);
+            gzip.write(content, 101, content.length - 101);
+        }
+
+        try (GZIPInputStream input = new GZIPInputStream(new ByteArrayInputStream(compressed.toByteArray()))) {
+            Assert.assertArrayEquals(content, IOUtils.toByteArray(input));
+        }
+    }
+
+    @Test
+    public void testEmptyStreamIsValid() throws Exception {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        new ParallelGzipOutputStream(compressed, 0, 2).close();
+
+        try (GZIPInputStream input = new GZIPInputStream(new ByteArrayInputStream(compressed.toByteArray()))) {
+            Assert.assertEquals(-1, input.read());
+        }
+    }
+
+    @Test
+    public void testTarGzArchive() throws Exception {
+        File file = workspace.newFile("report.txt");
+        Files.write(file.toPath(), "report".getBytes(StandardCharsets.UTF_8));
+
+        ByteArrayOutputStream archive = new ByteArrayOutputStream();
+        try (TarGzArchiver archiver = new TarGzArchiver(archive, 9, 2, false)) {
+            archiver.visit(file, "dir/report.txt");
+            archiver.finish();
+        }
+
+        try (TarArchiveInputStream tar = new TarArchiveInputStream(
+                new GZIPInputStream(new ByteArrayInputStream(archive.toByteArray())))) {
+            TarArchiveEntry entry = tar.getNextTarEntry();
+            Assert.assertEquals("dir/report.txt", entry.getName());
+            Assert.assertEquals("report", IOUtils.toString(tar, StandardCharsets.UTF_8));
+            Assert.assertNull(tar.getNextTarEntry());
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package com.microsoftopentechnologies.windowsazurestorage.service;
+
+import com.microsoftopentechnologies.windowsazurestorage.service.model.ArchiveFormat;
+import hudson.util.DirScanner;
+import hudson.util.FileVisitor;
+import org.apache.commons.io.IOUtils;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+public class ParallelZipArchiverTest {
+    @Rule
+    public TemporaryFolder workspace = new TemporaryFolder();
+
+    @Test
+    public void testArchiveIsAStandardZip() throws Exception {
+        List<String> names = new ArrayList<>();
+        List<String> visited = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            File file = new File(workspace.getRoot(), "dir" + (i % 3) + "/file" + i + ".txt");
+            Files.createDirectories(file.getParentFile().toPath());
+            Files.write(file.toPath(), ("content " + i).getBytes(StandardCharsets.UTF_8));
+        }
+
+        ByteArrayOutputStream archive = new ByteArrayOutputStream();
+        try (ParallelZipArchiver archiver = new ParallelZipArchiver(archive, 0, 4, false)) {
+            new DirScanner.Glob("**/*.txt", null).scan(workspace.getRoot(), new FileVisitor() {
+                @Override
+                public void visit(File f, String relativePath) throws IOException {
+                    visited.add(relativePath.replace('\\', '/'));
+                    archiver.visit(f, relativePath);
+                }
+            });
+            archiver.finish();
+        }
+
+        try (ZipInputStream zip = new ZipInputStream(new ByteArrayInputStream(archive.toByteArray()))) {
+            ZipEntry entry;
+            while ((entry = zip.getNextEntry()) != null) {
+                names.add(entry.getName());
+                String index = entry.getName().replaceAll(".*file(\\d+)\\.txt", "$1");
+                Assert.assertEquals("content " + index, IOUtils.toString(zip, StandardCharsets.UTF_8));
+            }
+        }
+        Assert.assertEquals(20, names.size());
+        // the entries are written in the order the files were visited
+        Assert.assertEquals(visited, names);
+    }
+
+    @Test
+    public void testReproducibleArchivesAreIdentical() throws Exception {
+        File file = workspace.newFile("report.txt");
+        Files.write(file.toPath(), "report".getBytes(StandardCharsets.UTF_8));
+
+        for (ArchiveFormat format : ArchiveFormat.values()) {
+            Assert.assertTrue(file.setLastModified(1_000_000_000_000L));
+            byte[] first = archive(format, file);
+            Assert.assertTrue(file.setLastModified(1_500_000_000_000L));
+            Assert.assertArrayEquals(format.name(), first, archive(format, file));
+        }
+    }
+
+    private static byte[] archive(ArchiveFormat format, File file) throws Exception {
+        ByteArrayOutputStream archive = new ByteArrayOutputStream();
+        try (ParallelArchiver archiver = ParallelArchiver.create(format, 0, archive, 2, true)) {
+            archiver.visit(file, "dir/" + file.getName());
+            archiver.finish();
+        }
+        return archive.toByteArray();
+    }
+}
@@ -0,0 +1,123 @@
+package com.microsoftopentechnologies.windowsazurestorage.service;
+
+import com.microsoftopentechnologies.windowsazurestorage.service.model.UploadItem;
+import com.microsoftopentechnologies.windowsazurestorage.service.model.UploadPlan;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+public class PlanUploadOnSlaveTest {
+
+    @Rule
+    public TemporaryFolder workspace = new TemporaryFolder();
+
+    @Before
+    public void setup() throws IOException {
+        write("release/build/test.txt");
+        write("release/build/app.js");
+        write("release/build/artifactsArchive1/archive.zip");
+        write("docs/readme.txt");
+    }
+
+    private File write(String path) throws IOException {
+        File file = new File(workspace.getRoot(), path);
+        file.getParentFile().mkdirs();
+        Files.write(file.toPath(), "content".getBytes(StandardCharsets.UTF_8));
+        return file;
+    }
+
+    private UploadItem find(UploadPlan plan, String relativePath) {
+        for (UploadItem item : plan.getItems()) {
+            if (item.getRelativePath().equals(relativePath)) {
+                return item;
+            }
+        }
+        return null;
+    }
+
+    @Test
+    public void testNamesAreComputedOnTheAgent() throws Exception {
+        PlanUploadOnSlave planner = new PlanUploadOnSlave("release/**,docs/*.txt::documentation",
+                "**/artifactsArchive*/archive.zip", "virtual/", "release/build/", 0, false, Collections.emptyMap(),
+                false);
+        UploadPlan plan = planner.invoke(workspace.getRoot(), null);
+
+        Assert.assertEquals(3, plan.getMatchedCount());
+        Assert.assertEquals(3, plan.getItems().size());
+        Assert.assertEquals(",release/**,docs/*.txt", plan.getArchiveIncludes());
+        Assert.assertEquals("virtual/test.txt", find(plan, "release/build/test.txt").getName());
+        Assert.assertEquals("virtual/documentation/docs/readme.txt", find(plan, "docs/readme.txt").getName());
+        Assert.assertEquals("content".length(), find(plan, "docs/readme.txt").getSize());
+        Assert.assertNull(find(plan, "docs/readme.txt").getContentType());
+    }
+
+    @Test
+    public void testModifiedSinceFilter() throws Exception {
+        long now = System.currentTimeMillis();
+        new File(workspace.getRoot(), "docs/readme.txt").setLastModified(now - 60000);
+        new File(workspace.getRoot(), "release/build/test.txt").setLastModified(now + 60000);
+
+        PlanUploadOnSlave planner = new PlanUploadOnSlave("**/*.txt", null, null, null, now, false,
+                Collections.emptyMap(), false);
+        UploadPlan plan = planner.invoke(workspace.getRoot(), null);
+
+        Assert.assertEquals(2, plan.getMatchedCount());
+        Assert.assertEquals(1, plan.getItems().size());
+        Assert.assertEquals("release/build/test.txt", plan.getItems().get(0).getName());
+        Assert.assertEquals(Collections.singletonList("docs/readme.txt"), plan.getUnmodifiedNames());
+    }
+
+    @Test
+    public void testContentTypeDetection() throws Exception {
+        PlanUploadOnSlave planner = new PlanUploadOnSlave("release/build/*", null, null, null, 0, true,
+                Collections.emptyMap(), false);
+        UploadPlan plan = planner.invoke(workspace.getRoot(), null);
+
+        Assert.assertEquals("application/javascript", find(plan, "release/build/app.js").getContentType());
+        Assert.assertEquals("text/plain", find(plan, "release/build/test.txt").getContentType());
+    }
+
+    @Test
+    public void testOnlyCandidatesAreHashed() throws Exception {
+        Map<String, Long> candidates = new HashMap<>();
+        candidates.put("release/build/test.txt", (long) "content".length());
+        candidates.put("release/build/app.js", 1L);
+
+        PlanUploadOnSlave planner = new PlanUploadOnSlave("release/build/*", null, null, null, 0, false,
+                candidates, false);
+        UploadPlan plan = planner.invoke(workspace.getRoot(), null);
+
+        Assert.assertEquals("9a0364b9e99bb480dd25e1f0284c8555", find(plan, "release/build/test.txt").getMd5());
+        Assert.assertNull(find(plan, "release/build/app.js").getMd5());
+    }
+
+    @Test
+    public void testEveryFileIsHashed() throws Exception {
+        PlanUploadOnSlave planner = new PlanUploadOnSlave("release/build/*", null, null, null, 0, false,
+                Collections.emptyMap(), true);
+        UploadPlan plan = planner.invoke(workspace.getRoot(), null);
+
+        Assert.assertEquals("9a0364b9e99bb480dd25e1f0284c8555", find(plan, "release/build/test.txt").getMd5());
+        Assert.assertEquals("9a0364b9e99bb480dd25e1f0284c8555", find(plan, "release/build/app.js").getMd5());
+        Assert.assertEquals("ed7002b439e9ac845f22357d822bac1444730fbdb6016d3ec9432297b9ec9f73",
+                find(plan, "release/build/app.js").getSha256());
+    }
+
+    @Test
+    public void testItemPath() {
+        Assert.assertEquals("test.txt", UploadService.getItemPath("release/build/test.txt", null, null,
+                "release/build/"));
+        Assert.assertEquals("virtual/embedded/other/test.txt", UploadService.getItemPath("other/test.txt",
+                "embedded/", "virtual/", "release/build/"));
+    }
+}
@@ -0,0 +1,126 @@
+package com.microsoftopentechnologies.windowsazurestorage.service;
+
+import com.azure.core.credential.AzureSasCredential;
+import com.azure.core.util.Context;
+import com.azure.storage.blob.BlobServiceClientBuilder;
+import com.azure.storage.blob.models.BlobHttpHeaders;
+import com.azure.storage.blob.specialized.BlockBlobClient;
+import com.microsoftopentechnologies.windowsazurestorage.helper.FakeStorageHttpClient;
+import com.microsoftopentechnologies.windowsazurestorage.helper.RequestCountingPolicy;
+import com.microsoftopentechnologies.windowsazurestorage.helper.RequestStats;
+import com.microsoftopentechnologies.windowsazurestorage.helper.TransferScheduler;
+import com.microsoftopentechnologies.windowsazurestorage.service.model.TransferTuning;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URLEncoder;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+
+public class ResumableBlockUploadTest {
+    /**
+     * The blob SAS of a resumable upload, which allows to read and write the blob.
+     */
+    private static final String SAS = "sv=2020-08-04&sp=rw&sig=fake";
+    private static final String BLOB_PATH = "/container/big.bin";
+    private static final int BLOCK_COUNT = 5;
+
+    @Rule
+    public TemporaryFolder workspace = new TemporaryFolder();
+
+    private static BlockBlobClient blob(FakeStorageHttpClient httpClient) {
+        return new BlobServiceClientBuilder()
+                .endpoint("https://account.blob.core.windows.net")
+                .credential(new AzureSasCredential(SAS))
+                .httpClient(httpClient)
+                .addPolicy(RequestCountingPolicy.BIND)
+                .addPolicy(RequestCountingPolicy.COUNT)
+                .buildClient()
+                .getBlobContainerClient("container")
+                .getBlobClient("big.bin")
+                .getBlockBlobClient();
+    }
+
+    private static RequestStats upload(BlockBlobClient blob, File file, ExecutorService lane) throws Exception {
+        RequestStats requests = new RequestStats();
+        new ResumableBlockUpload(blob, file, TransferTuning.MB, 2, lane, requests.addTo(Context.NONE),
+                DigestUtils.getMd5Digest(), true).upload(new BlobHttpHeaders(), Collections.emptyMap());
+        return requests;
+    }
+
+    @Test
+    public void testResumeStagesOnlyTheMissingBlocks() throws Exception {
+        File file = workspace.newFile("big.bin");
+        Files.write(file.toPath(), new byte[(int) (BLOCK_COUNT * TransferTuning.MB)]);
+        String fingerprint = ResumableBlockUpload.getFingerprint(
+                "https://account.blob.core.windows.net" + BLOB_PATH, file.length(), file.lastModified(),
+                TransferTuning.MB);
+        String failedBlock = ResumableBlockUpload.getBlockId(fingerprint, 3);
+        String failedQuery = "blockid=" + URLEncoder.encode(failedBlock, "UTF-8");
+        FakeStorageHttpClient httpClient = new FakeStorageHttpClient()
+                .failWhen(request -> request.getUrl().getQuery().contains(failedQuery));
+        BlockBlobClient blob = blob(httpClient);
+        ExecutorService lane = TransferScheduler.get().newLane(2);
+
+        try {
+            upload(blob, file, lane);
+            Assert.fail("the failed block fails the upload");
+        } catch (IOException e) {
+            // expected
+        }
+        Set<String> staged = new HashSet<>(httpClient.getUncommittedBlocks(BLOB_PATH));
+        Assert.assertFalse(staged.isEmpty());
+        Assert.assertFalse(staged.contains(failedBlock));
+        Assert.assertTrue(new File(file.getParentFile(), file.getName() + ResumableBlockUpload.JOURNAL_SUFFIX)
+                .isFile());
+
+        // the service only kept part of the blocks recorded in the journal
+        String lost = ResumableBlockUpload.getBlockId(fingerprint, 0);
+        httpClient.getUncommittedBlocks(BLOB_PATH).remove(lost);
+        staged.remove(lost);
+        httpClient.failWhen(request -> false);
+
+        RequestStats requests = upload(blob, file, lane);
+        lane.shutdown();
+        Assert.assertEquals(1, requests.get("GetBlockList"));
+        Assert.assertEquals(BLOCK_COUNT - staged.size(), requests.get("PutBlock"));
+        Assert.assertEquals(1, requests.get("PutBlockList"));
+        Assert.assertFalse(new File(file.getParentFile(), file.getName() + ResumableBlockUpload.JOURNAL_SUFFIX)
+                .exists());
+    }
+
+    @Test
+    public void testBlockIdsAreDeterministic() {
+        String fingerprint = ResumableBlockUpload.getFingerprint("https://account.blob.core.windows.net/c/image.vhd",
+                30L * 1024 * 1024 * 1024, 1000L, 16 * 1024 * 1024);
+        Assert.assertEquals(fingerprint, ResumableBlockUpload.getFingerprint(
+                "https://account.blob.core.windows.net/c/image.vhd", 30L * 1024 * 1024 * 1024, 1000L,
+                16 * 1024 * 1024));
+        Assert.assertEquals(ResumableBlockUpload.getBlockId(fingerprint, 7),
+                ResumableBlockUpload.getBlockId(fingerprint, 7));
+    }
+
+    @Test
+    public void testFingerprintChangesWithTheFile() {
+        String url = "https://account.blob.core.windows.net/c/image.vhd";
+        String fingerprint = ResumableBlockUpload.getFingerprint(url, 100, 1000L, 10);
+        Assert.assertNotEquals(fingerprint, ResumableBlockUpload.getFingerprint(url, 100, 2000L, 10));
+        Assert.assertNotEquals(fingerprint, ResumableBlockUpload.getFingerprint(url, 101, 1000L, 10));
+        Assert.assertNotEquals(fingerprint, ResumableBlockUpload.getFingerprint(url + "2", 100, 1000L, 10));
+    }
+
+    @Test
+    public void testBlockIdsHaveTheSameLength() {
+        String fingerprint = ResumableBlockUpload.getFingerprint("url", 1, 1, 1);
+        Assert.assertEquals(ResumableBlockUpload.getBlockId(fingerprint, 0).length(),
+                ResumableBlockUpload.getBlockId(fingerprint, 49999).length());
+    }
+}
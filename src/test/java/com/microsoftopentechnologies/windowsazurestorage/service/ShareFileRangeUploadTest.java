@@ -0,0 +1,98 @@
+package com.microsoftopentechnologies.windowsazurestorage.service;
+
+import com.azure.core.util.Context;
+import com.azure.storage.file.share.ShareFileClient;
+import com.azure.storage.file.share.models.ShareFileHttpHeaders;
+import com.microsoftopentechnologies.windowsazurestorage.helper.TransferScheduler;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.ArgumentCaptor;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.time.Duration;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.ArgumentMatchers.isNull;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+public class ShareFileRangeUploadTest {
+    private static final ExecutorService LANE = TransferScheduler.get().newLane(2);
+
+    @Rule
+    public TemporaryFolder workspace = new TemporaryFolder();
+
+    @Test
+    public void testRangesRebuildTheFile() throws Exception {
+        byte[] content = new byte[ShareFileRangeUpload.RANGE_SIZE * 2 + 100];
+        new Random(7).nextBytes(content);
+        File file = workspace.newFile("large.bin");
+        Files.write(file.toPath(), content);
+
+        byte[] uploaded = new byte[content.length];
+        AtomicInteger ranges = new AtomicInteger();
+        ShareFileClient fileClient = mock(ShareFileClient.class);
+        doAnswer(invocation -> {
+            InputStream data = invocation.getArgument(0);
+            long length = invocation.getArgument(1);
+            Long offset = invocation.getArgument(2);
+            IOUtils.readFully(data, uploaded, offset.intValue(), (int) length);
+            ranges.incrementAndGet();
+            return null;
+        }).when(fileClient).uploadWithResponse(any(InputStream.class), anyLong(), any(Long.class),
+                (Duration) isNull(), any(Context.class));
+
+        MessageDigest sha256 = DigestUtils.getSha256Digest();
+        ShareFileRangeUpload upload = new ShareFileRangeUpload(fileClient, file, 4, LANE, Context.NONE, sha256);
+        Assert.assertEquals(content.length, upload.upload());
+
+        Assert.assertEquals(3, ranges.get());
+        Assert.assertArrayEquals(content, uploaded);
+        Assert.assertArrayEquals(DigestUtils.md5(content), upload.getContentMd5());
+        Assert.assertArrayEquals(DigestUtils.sha256(content), sha256.digest());
+        verify(fileClient).create(content.length);
+        ArgumentCaptor<ShareFileHttpHeaders> headers = ArgumentCaptor.forClass(ShareFileHttpHeaders.class);
+        verify(fileClient).setProperties(eq((long) content.length), headers.capture(), isNull(), isNull());
+        Assert.assertArrayEquals(DigestUtils.md5(content), headers.getValue().getContentMd5());
+    }
+
+    @Test
+    public void testFailedRangeStopsTheUpload() throws Exception {
+        File file = workspace.newFile("large.bin");
+        Files.write(file.toPath(), new byte[ShareFileRangeUpload.RANGE_SIZE * 3]);
+
+        AtomicInteger ranges = new AtomicInteger();
+        ShareFileClient fileClient = mock(ShareFileClient.class);
+        doAnswer(invocation -> {
+            ranges.incrementAndGet();
+            throw new IllegalStateException("range refused");
+        }).when(fileClient).uploadWithResponse(any(InputStream.class), anyLong(), any(Long.class),
+                (Duration) isNull(), any(Context.class));
+
+        // one range in flight, so the next one is only read once the first is written
+        ShareFileRangeUpload upload = new ShareFileRangeUpload(fileClient, file, 1, LANE, Context.NONE, null);
+        try {
+            upload.upload();
+            Assert.fail("the failed range fails the upload");
+        } catch (IOException e) {
+            Assert.assertEquals("range refused", e.getCause().getMessage());
+        }
+        Assert.assertEquals(1, ranges.get());
+        verify(fileClient, never()).setProperties(anyLong(), any(ShareFileHttpHeaders.class), isNull(), isNull());
+    }
+}
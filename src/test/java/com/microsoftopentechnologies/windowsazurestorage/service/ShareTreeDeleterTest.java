@@ -0,0 +1,62 @@
+package com.microsoftopentechnologies.windowsazurestorage.service;
+
+import com.azure.core.http.rest.PagedIterable;
+import com.azure.storage.file.share.ShareDirectoryClient;
+import com.azure.storage.file.share.ShareFileClient;
+import com.azure.storage.file.share.models.ShareFileItem;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class ShareTreeDeleterTest {
+    @Test
+    public void testDeletesTreeRelativeToEachDirectory() throws Exception {
+        ShareDirectoryClient root = mock(ShareDirectoryClient.class);
+        ShareDirectoryClient sub = mock(ShareDirectoryClient.class);
+        ShareDirectoryClient nested = mock(ShareDirectoryClient.class);
+        ShareFileClient a = mock(ShareFileClient.class);
+        ShareFileClient b = mock(ShareFileClient.class);
+        ShareFileClient c = mock(ShareFileClient.class);
+
+        list(root, new ShareFileItem("a", false, 1L), new ShareFileItem("sub", true, null));
+        list(sub, new ShareFileItem("b", false, 1L), new ShareFileItem("nested", true, null));
+        list(nested, new ShareFileItem("c", false, 1L));
+        when(root.getFileClient("a")).thenReturn(a);
+        when(root.getSubdirectoryClient("sub")).thenReturn(sub);
+        when(sub.getFileClient("b")).thenReturn(b);
+        when(sub.getSubdirectoryClient("nested")).thenReturn(nested);
+        when(nested.getFileClient("c")).thenReturn(c);
+
+        ExecutorService deletes = Executors.newFixedThreadPool(2);
+        try {
+            ShareTreeDeleter deleter = new ShareTreeDeleter(deletes, 2);
+            deleter.deleteContent(root);
+
+            Assert.assertEquals(3, deleter.getDeletedFiles());
+            Assert.assertEquals(2, deleter.getDeletedDirectories());
+        } finally {
+            deletes.shutdown();
+        }
+        verify(a).delete();
+        verify(b).delete();
+        verify(c).delete();
+        verify(nested).delete();
+        verify(sub).delete();
+        verify(root, never()).delete();
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void list(ShareDirectoryClient directory, ShareFileItem... items) {
+        PagedIterable<ShareFileItem> iterable = mock(PagedIterable.class);
+        when(iterable.iterator()).thenAnswer(invocation -> Arrays.asList(items).iterator());
+        when(directory.listFilesAndDirectories()).thenReturn(iterable);
+    }
+}
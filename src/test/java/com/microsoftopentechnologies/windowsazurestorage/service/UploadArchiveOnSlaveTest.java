@@ -0,0 +1,103 @@
+package com.microsoftopentechnologies.windowsazurestorage.service;
+
+import com.azure.core.credential.AzureSasCredential;
+import com.azure.storage.blob.BlobClient;
+import com.azure.storage.blob.BlobServiceClientBuilder;
+import com.azure.storage.blob.models.BlobStorageException;
+import com.azure.storage.blob.sas.BlobContainerSasPermission;
+import com.microsoftopentechnologies.windowsazurestorage.helper.FakeStorageHttpClient;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+public class UploadArchiveOnSlaveTest {
+    @Rule
+    public TemporaryFolder workspace = new TemporaryFolder();
+
+    @Test
+    public void testPartsHaveAboutTheSameSize() throws Exception {
+        int[] sizes = {900, 100, 500, 400, 300, 200, 100};
+        List<UploadArchiveOnSlave.Entry> entries = new ArrayList<>();
+        for (int i = 0; i < sizes.length; i++) {
+            File file = workspace.newFile("file" + i);
+            Files.write(file.toPath(), new byte[sizes[i]]);
+            entries.add(new UploadArchiveOnSlave.Entry(file, file.getName(), i));
+        }
+
+        List<List<UploadArchiveOnSlave.Entry>> parts = UploadArchiveOnSlave.partition(entries, 3);
+        Assert.assertEquals(3, parts.size());
+        for (List<UploadArchiveOnSlave.Entry> part : parts) {
+            long size = 0;
+            for (UploadArchiveOnSlave.Entry entry : part) {
+                size += new File(workspace.getRoot(), entry.getRelativePath()).length();
+            }
+            Assert.assertEquals(size, 800, 100);
+        }
+        // the files keep the scan order within a part
+        List<UploadArchiveOnSlave.Entry> first = parts.get(0);
+        Assert.assertEquals("file0", first.get(0).getRelativePath());
+    }
+
+    @Test
+    public void testPartsLeftWithoutFilesAreEmpty() throws Exception {
+        List<UploadArchiveOnSlave.Entry> entries = new ArrayList<>();
+        entries.add(new UploadArchiveOnSlave.Entry(workspace.newFile("only"), "only", 0));
+
+        List<List<UploadArchiveOnSlave.Entry>> parts = UploadArchiveOnSlave.partition(entries, 4);
+        Assert.assertEquals(1, parts.get(0).size());
+        Assert.assertTrue(parts.get(3).isEmpty());
+    }
+
+    @Test
+    public void testPartsInFlightFitInAQuarterOfTheHeap() {
+        long mb = 1024 * 1024;
+        Assert.assertEquals(4, UploadArchiveOnSlave.getPartsInFlight(4, 100 * mb, 4096 * mb));
+        Assert.assertEquals(2, UploadArchiveOnSlave.getPartsInFlight(64, 100 * mb, 1000 * mb));
+        Assert.assertEquals(1, UploadArchiveOnSlave.getPartsInFlight(64, 100 * mb, 256 * mb));
+    }
+
+    private static BlobClient blob(String permissions) {
+        return new BlobServiceClientBuilder()
+                .endpoint("https://account.blob.core.windows.net")
+                .credential(new AzureSasCredential("sv=2020-08-04&sp=" + permissions + "&sig=fake"))
+                .httpClient(new FakeStorageHttpClient())
+                .buildClient()
+                .getBlobContainerClient("container")
+                .getBlobClient("archive.zip");
+    }
+
+    @Test
+    public void testReproduciblePartIsProbedWithItsSas() {
+        byte[] md5 = new byte[16];
+        try {
+            UploadArchiveOnSlave.isStored(blob(new BlobContainerSasPermission().setWritePermission(true).toString()),
+                    md5);
+            Assert.fail("the container write SAS cannot read the blob");
+        } catch (BlobStorageException e) {
+            Assert.assertEquals(403, e.getStatusCode());
+        }
+
+        // the fake blob has no Content-MD5
+        Assert.assertFalse(UploadArchiveOnSlave.isStored(
+                blob(UploadArchiveOnSlave.getReproduciblePermission().toString()), md5));
+    }
+
+    @Test
+    public void testSortByPath() throws Exception {
+        List<UploadArchiveOnSlave.Entry> entries = new ArrayList<>();
+        entries.add(new UploadArchiveOnSlave.Entry(workspace.newFile("b"), "b", 0));
+        entries.add(new UploadArchiveOnSlave.Entry(workspace.newFile("a2"), "a\\2", 1));
+        entries.add(new UploadArchiveOnSlave.Entry(workspace.newFile("a1"), "a/1", 2));
+
+        List<UploadArchiveOnSlave.Entry> sorted = UploadArchiveOnSlave.sortByPath(entries);
+        Assert.assertEquals("a/1", sorted.get(0).getRelativePath());
+        Assert.assertEquals("a\\2", sorted.get(1).getRelativePath());
+        Assert.assertEquals("b", sorted.get(2).getRelativePath());
+    }
+}
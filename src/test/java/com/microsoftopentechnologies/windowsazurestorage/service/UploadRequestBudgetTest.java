@@ -0,0 +1,184 @@
+package com.microsoftopentechnologies.windowsazurestorage.service;
+
+import com.azure.core.credential.AzureSasCredential;
+import com.azure.core.http.HttpRequest;
+import com.azure.core.util.Context;
+import com.azure.storage.blob.BlobContainerClient;
+import com.azure.storage.blob.BlobServiceClientBuilder;
+import com.azure.storage.file.share.ShareFileClient;
+import com.azure.storage.file.share.ShareServiceClientBuilder;
+import com.microsoftopentechnologies.windowsazurestorage.helper.Constants;
+import com.microsoftopentechnologies.windowsazurestorage.helper.FakeStorageHttpClient;
+import com.microsoftopentechnologies.windowsazurestorage.helper.RequestCountingPolicy;
+import com.microsoftopentechnologies.windowsazurestorage.helper.RequestStats;
+import com.microsoftopentechnologies.windowsazurestorage.helper.TransferScheduler;
+import com.microsoftopentechnologies.windowsazurestorage.service.model.ChecksumAlgorithm;
+import com.microsoftopentechnologies.windowsazurestorage.service.model.PartialBlobProperties;
+import com.microsoftopentechnologies.windowsazurestorage.service.model.TransferTuning;
+import hudson.FilePath;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.function.Function;
+
+/**
+ * Fixes the number of requests of the canonical uploads, so that a change which adds requests is noticed.
+ */
+public class UploadRequestBudgetTest {
+    private static final String SAS = "sv=2020-08-04&sig=fake";
+    private static final ExecutorService LANE = TransferScheduler.get().newLane(2);
+
+    @Rule
+    public TemporaryFolder workspace = new TemporaryFolder();
+
+    private static BlobContainerClient container() {
+        return container(new FakeStorageHttpClient());
+    }
+
+    private static BlobContainerClient container(FakeStorageHttpClient httpClient) {
+        return new BlobServiceClientBuilder()
+                .endpoint("https://account.blob.core.windows.net")
+                .credential(new AzureSasCredential(SAS))
+                .httpClient(httpClient)
+                .addPolicy(RequestCountingPolicy.BIND)
+                .addPolicy(RequestCountingPolicy.COUNT)
+                .buildClient()
+                .getBlobContainerClient("container");
+    }
+
+    private File file(String name, int size) throws Exception {
+        File file = workspace.newFile(name);
+        Files.write(file.toPath(), new byte[size]);
+        return file;
+    }
+
+    private static UploadService.UploadObject uploadObject(File file, String url, String storageType) {
+        Map<String, String> metadata = Collections.singletonMap("build", "1");
+        return new UploadService.UploadObject(file.getName(), new FilePath(file), url, SAS, storageType,
+                "account", new PartialBlobProperties(null, null, null, "application/octet-stream"), metadata);
+    }
+
+    /**
+     * Runs an upload task the way the agent does, with the requests counted into the context and the thread.
+     */
+    private static RequestStats run(Function<Context, Callable<?>> task) throws Exception {
+        RequestStats requests = new RequestStats();
+        requests.wrap(task.apply(requests.addTo(Context.NONE))).call();
+        return requests;
+    }
+
+    @Test
+    public void testSmallBlobWithMetadataIsOneRequest() throws Exception {
+        File file = file("small.txt", 1024);
+        UploadService.UploadObject object = uploadObject(file,
+                "https://account.blob.core.windows.net/container/small.txt", Constants.BLOB_STORAGE);
+
+        RequestStats requests = run(context -> new UploadService.UploadThread(container(), object, LANE, context,
+                new TransferTuning(), ChecksumAlgorithm.MD5));
+
+        // the metadata goes with the Put Blob
+        Assert.assertEquals(requests.toString(), 1, requests.getTotal());
+        Assert.assertEquals(1, requests.get("PutBlob"));
+    }
+
+    @Test
+    public void testLargeBlobIsBlocksAndCommit() throws Exception {
+        File file = file("large.bin", (int) (TransferTuning.MB * 5 / 2));
+        UploadService.UploadObject object = uploadObject(file,
+                "https://account.blob.core.windows.net/container/large.bin", Constants.BLOB_STORAGE);
+
+        RequestStats requests = run(context -> new UploadService.UploadThread(container(), object, LANE, context,
+                new TransferTuning(1, 1, 2), ChecksumAlgorithm.MD5));
+
+        Assert.assertEquals(3, requests.get("PutBlock"));
+        // the Content-MD5 of a blob made of blocks goes with the commit
+        Assert.assertEquals(1, requests.get("PutBlockList"));
+        Assert.assertEquals(requests.toString(), 4, requests.getTotal());
+    }
+
+    @Test
+    public void testChecksumOfBlockedBlob() throws Exception {
+        File file = workspace.newFile("random.bin");
+        byte[] content = new byte[(int) (TransferTuning.MB * 5 / 2)];
+        new Random(42).nextBytes(content);
+        Files.write(file.toPath(), content);
+        FakeStorageHttpClient httpClient = new FakeStorageHttpClient();
+        UploadService.UploadObject object = uploadObject(file,
+                "https://account.blob.core.windows.net/container/random.bin", Constants.BLOB_STORAGE);
+
+        UploadService.UploadResult md5 = new UploadService.UploadThread(container(httpClient), object, LANE,
+                Context.NONE, new TransferTuning(1, 1, 2), ChecksumAlgorithm.MD5).call();
+        Assert.assertEquals(DigestUtils.md5Hex(content), md5.getChecksum());
+        Assert.assertEquals(DigestUtils.md5Hex(content), md5.getFileHash());
+        HttpRequest commit = httpClient.getRequests("PutBlockList").get(0);
+        Assert.assertEquals(Base64.getEncoder().encodeToString(DigestUtils.md5(content)),
+                commit.getHeaders().getValue("x-ms-blob-content-md5"));
+
+        UploadService.UploadResult sha256 = new UploadService.UploadThread(container(httpClient), object, LANE,
+                Context.NONE, new TransferTuning(1, 1, 2), ChecksumAlgorithm.SHA256).call();
+        Assert.assertEquals(DigestUtils.sha256Hex(content), sha256.getChecksum());
+        Assert.assertEquals(ChecksumAlgorithm.SHA256, sha256.getChecksumAlgorithm());
+    }
+
+    @Test
+    public void testCompressedBlobIsOneRequestWithTheSourceMd5() throws Exception {
+        File file = workspace.newFile("compressed.txt");
+        byte[] content = new byte[1024];
+        new Random(42).nextBytes(content);
+        Files.write(file.toPath(), content);
+        FakeStorageHttpClient httpClient = new FakeStorageHttpClient();
+        UploadService.UploadObject object = uploadObject(file,
+                "https://account.blob.core.windows.net/container/compressed.txt", Constants.BLOB_STORAGE);
+        object.setCompressed(true);
+
+        RequestStats requests = new RequestStats();
+        UploadService.UploadResult result = requests.wrap(new UploadService.UploadThread(container(httpClient),
+                object, LANE, requests.addTo(Context.NONE), new TransferTuning(), ChecksumAlgorithm.SHA256)).call();
+
+        // the Content-MD5 of the gzipped bytes goes with the Put Blob, the MD5 of the file with its metadata
+        Assert.assertEquals(requests.toString(), 1, requests.getTotal());
+        HttpRequest put = httpClient.getRequests("PutBlob").get(0);
+        Assert.assertNotNull(put.getHeaders().getValue("x-ms-blob-content-md5"));
+        Assert.assertEquals(DigestUtils.md5Hex(content), put.getHeaders().getValue("x-ms-meta-jenkins_source_md5"));
+        Assert.assertEquals("1024", put.getHeaders().getValue("x-ms-meta-jenkins_source_length"));
+        Assert.assertEquals("1", put.getHeaders().getValue("x-ms-meta-build"));
+        Assert.assertEquals(DigestUtils.md5Hex(content), result.getFileHash());
+        Assert.assertEquals(DigestUtils.sha256Hex(content), result.getChecksum());
+    }
+
+    @Test
+    public void testShareFileIsCreateRangeAndProperties() throws Exception {
+        File file = file("file.txt", 1024);
+        String url = "https://account.file.core.windows.net/share/file.txt";
+        UploadService.UploadObject object = uploadObject(file, url, Constants.FILE_STORAGE);
+        ShareFileClient fileClient = new ShareServiceClientBuilder()
+                .endpoint("https://account.file.core.windows.net")
+                .credential(new AzureSasCredential(SAS))
+                .httpClient(new FakeStorageHttpClient())
+                .addPolicy(RequestCountingPolicy.BIND)
+                .addPolicy(RequestCountingPolicy.COUNT)
+                .buildClient()
+                .getShareClient("share")
+                .getRootDirectoryClient()
+                .getFileClient("file.txt");
+
+        RequestStats requests = run(context -> new UploadService.ShareFileUploadThread(fileClient, object, LANE,
+                context, new TransferTuning(), ChecksumAlgorithm.MD5));
+
+        Assert.assertEquals(1, requests.get("CreateFile"));
+        Assert.assertEquals(1, requests.get("PutRange"));
+        Assert.assertEquals(1, requests.get("SetProperties"));
+        Assert.assertEquals(requests.toString(), 3, requests.getTotal());
+    }
+}
@@ -0,0 +1,186 @@
+package com.microsoftopentechnologies.windowsazurestorage.service;
+
+import com.azure.core.credential.AzureSasCredential;
+import com.azure.storage.blob.BlobContainerClient;
+import com.azure.storage.blob.BlobServiceClientBuilder;
+import com.microsoftopentechnologies.windowsazurestorage.AzureBlob;
+import com.microsoftopentechnologies.windowsazurestorage.helper.Constants;
+import com.microsoftopentechnologies.windowsazurestorage.helper.FakeStorageHttpClient;
+import com.microsoftopentechnologies.windowsazurestorage.exceptions.WAStorageException;
+import com.microsoftopentechnologies.windowsazurestorage.helper.RequestCountingPolicy;
+import com.microsoftopentechnologies.windowsazurestorage.service.model.ChecksumAlgorithm;
+import com.microsoftopentechnologies.windowsazurestorage.service.model.UploadItem;
+import com.microsoftopentechnologies.windowsazurestorage.service.model.UploadServiceData;
+import com.microsoftopentechnologies.windowsazurestorage.service.model.UploadType;
+import hudson.FilePath;
+import hudson.Launcher;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import org.apache.http.HttpStatus;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class UploadToBlobServiceTest {
+    @Rule
+    public TemporaryFolder workspace = new TemporaryFolder();
+
+    private FakeStorageHttpClient httpClient;
+    private BlobContainerClient container;
+    private UploadServiceData serviceData;
+
+    @Before
+    public void setup() {
+        httpClient = new FakeStorageHttpClient();
+        container = new BlobServiceClientBuilder()
+                .endpoint("https://account.blob.core.windows.net")
+                .credential(new AzureSasCredential("sv=2020-08-04&sig=fake"))
+                .httpClient(httpClient)
+                .addPolicy(RequestCountingPolicy.BIND)
+                .addPolicy(RequestCountingPolicy.COUNT)
+                .buildClient()
+                .getBlobContainerClient("container");
+        for (String name : Arrays.asList("other/1.txt", "virtual/1.txt", "virtual/2.txt", "virtual/a/3.txt")) {
+            container.getBlobClient(name).getBlockBlobClient().upload(new ByteArrayInputStream(new byte[0]), 0);
+        }
+
+        Launcher launcher = mock(Launcher.class);
+        FilePath workspace = new FilePath(launcher.getChannel(), new File("workspace").getAbsolutePath());
+        serviceData = new UploadServiceData(mock(Run.class), workspace, launcher, TaskListener.NULL, null);
+    }
+
+    /**
+     * Uploads the files of the temporary workspace to the fake container. The files are found already stored by
+     * a probe on the lane of the upload, like in the content addressed mode, and the archive is found unchanged.
+     */
+    private UploadToBlobService execute(UploadServiceData data) throws WAStorageException {
+        UploadToBlobService service = new UploadToBlobService(data) {
+            @Override
+            protected BlobContainerClient getCloudBlobContainer() {
+                return container;
+            }
+
+            @Override
+            protected void uploadIndividuals(List<UploadItem> items) throws WAStorageException {
+                for (UploadItem item : items) {
+                    try {
+                        getExecutorService().submit(() -> container.getBlobClient(item.getName()).exists()).get();
+                    } catch (InterruptedException | ExecutionException e) {
+                        throw new WAStorageException(e.getMessage(), e);
+                    }
+                    recordExisting(item, null, container.getBlobClient(item.getName()).getBlobUrl(),
+                            getServiceData().getIndividualBlobs());
+                }
+            }
+
+            @Override
+            protected void uploadArchive(String archiveIncludes) {
+                String name = getArchiveNames().get(0);
+                UploadResult result = new UploadResult(HttpStatus.SC_NOT_MODIFIED, null, "md5", name,
+                        container.getBlobClient(name).getBlobUrl(), 1, Constants.BLOB_STORAGE, 0, 0);
+                result.setChecksum(ChecksumAlgorithm.MD5, "md5");
+                recordUnchangedArchive(result, getServiceData().getArchiveBlobs());
+            }
+        };
+        service.execute();
+        return service;
+    }
+
+    private UploadServiceData workspaceData(Run<?, ?> run) {
+        Launcher launcher = mock(Launcher.class);
+        FilePath root = new FilePath(launcher.getChannel(), workspace.getRoot().getAbsolutePath());
+        UploadServiceData data = new UploadServiceData(run, root, launcher, TaskListener.NULL, null);
+        data.setFilePath("*.txt");
+        data.setVirtualPath("virtual/");
+        return data;
+    }
+
+    @Test
+    public void testDeleteBlobsUnderThePrefix() throws Exception {
+        UploadToBlobService service = new UploadToBlobService(serviceData);
+
+        int deleted = service.deleteBlobs(container, "virtual/", Collections.singleton("virtual/2.txt"));
+        Assert.assertEquals(2, deleted);
+        Assert.assertEquals(new HashSet<>(Arrays.asList("/container/other/1.txt", "/container/virtual/2.txt")),
+                httpClient.getBlobs());
+        // the deletes are counted into the requests of the upload, whichever thread sends them
+        Assert.assertEquals(2, service.getRequestStats().get("Delete"));
+    }
+
+    @Test
+    public void testFailedDeleteFailsTheCleanup() throws Exception {
+        httpClient.failWhen(request -> request.getUrl().getPath().equals("/container/virtual/2.txt"));
+        UploadToBlobService service = new UploadToBlobService(serviceData);
+
+        try {
+            service.deleteBlobs(container, "virtual/", Collections.emptySet());
+            Assert.fail("the failed delete fails the cleanup");
+        } catch (IOException e) {
+            // expected
+        }
+        Assert.assertTrue(httpClient.getBlobs().contains("/container/virtual/2.txt"));
+        Assert.assertTrue(httpClient.getBlobs().contains("/container/other/1.txt"));
+    }
+
+    @Test
+    public void testReplacingKeepsTheUnmodifiedFiles() throws Exception {
+        serviceData.setVirtualPath("virtual/");
+        serviceData.setReplaceVirtualPath(true);
+        serviceData.setOnlyUploadModifiedArtifacts(true);
+        serviceData.getIndividualBlobs().add(new AzureBlob("virtual/1.txt",
+                "https://account.blob.core.windows.net/container/virtual/1.txt", null, 0, Constants.BLOB_STORAGE));
+        UploadToBlobService service = new UploadToBlobService(serviceData);
+
+        // virtual/a/3.txt matched but was not uploaded again, only virtual/2.txt is stale
+        int deleted = service.deleteStale(container, Collections.singletonList("virtual/a/3.txt"));
+        Assert.assertEquals(1, deleted);
+        Assert.assertEquals(new HashSet<>(Arrays.asList("/container/other/1.txt", "/container/virtual/1.txt",
+                "/container/virtual/a/3.txt")), httpClient.getBlobs());
+    }
+
+    @Test
+    public void testReplacingAfterUploadsOnTheLane() throws Exception {
+        long now = System.currentTimeMillis();
+        workspace.newFile("new.txt");
+        File old = workspace.newFile("old.txt");
+        Assert.assertTrue(old.setLastModified(now - 60000));
+        container.getBlobClient("virtual/old.txt").getBlockBlobClient()
+                .upload(new ByteArrayInputStream(new byte[0]), 0);
+        Run<?, ?> run = mock(Run.class);
+        when(run.getStartTimeInMillis()).thenReturn(now - 30000);
+        UploadServiceData data = workspaceData(run);
+        data.setUploadType(UploadType.INDIVIDUAL);
+        data.setReplaceVirtualPath(true);
+        data.setOnlyUploadModifiedArtifacts(true);
+
+        // the stale blobs are deleted once the lane of the uploads is shut down
+        execute(data);
+        Assert.assertEquals(new HashSet<>(Arrays.asList("/container/other/1.txt", "/container/virtual/old.txt")),
+                httpClient.getBlobs());
+    }
+
+    @Test
+    public void testUnchangedArchiveIsNotCountedAsAFile() throws Exception {
+        workspace.newFile("new.txt");
+        UploadServiceData data = workspaceData(mock(Run.class));
+        data.setUploadType(UploadType.BOTH);
+
+        Assert.assertEquals(1, execute(data).getServiceData().getIndividualBlobs().size());
+        Assert.assertEquals(1, data.getArchiveBlobs().size());
+        Assert.assertEquals("virtual/archive.zip", data.getArchiveBlobs().get(0).getBlobName());
+    }
+}
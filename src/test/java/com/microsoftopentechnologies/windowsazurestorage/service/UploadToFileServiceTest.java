@@ -0,0 +1,27 @@
+package com.microsoftopentechnologies.windowsazurestorage.service;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+public class UploadToFileServiceTest {
+    @Test
+    public void testDirectoryLevels() {
+        List<Set<String>> levels = UploadToFileService.getDirectoryLevels(Arrays.asList(
+                "root.txt", "a/b/c/1.txt", "a/b/2.txt", "a/3.txt", "d/4.txt"));
+
+        Assert.assertEquals(3, levels.size());
+        Assert.assertEquals(Arrays.asList("a", "d"), Arrays.asList(levels.get(0).toArray()));
+        Assert.assertEquals(Collections.singleton("a/b"), levels.get(1));
+        Assert.assertEquals(Collections.singleton("a/b/c"), levels.get(2));
+    }
+
+    @Test
+    public void testNoDirectoriesForRootFiles() {
+        Assert.assertTrue(UploadToFileService.getDirectoryLevels(Arrays.asList("1.txt", "2.txt")).isEmpty());
+    }
+}
@@ -0,0 +1,57 @@
+package com.microsoftopentechnologies.windowsazurestorage.service.model;
+
+import com.azure.storage.blob.models.ParallelTransferOptions;
+import org.junit.Assert;
+import org.junit.Test;
+
+import static com.microsoftopentechnologies.windowsazurestorage.service.model.TransferTuning.MB;
+
+public class TransferTuningTest {
+
+    @Test
+    public void testDefaults() {
+        TransferTuning tuning = new TransferTuning();
+        Assert.assertEquals(TransferTuning.DEFAULT_SINGLE_SHOT_THRESHOLD_MB * MB, tuning.getSingleShotThreshold());
+        Assert.assertEquals(TransferTuning.DEFAULT_BLOCK_SIZE_MB * MB, tuning.getBlockSize());
+        Assert.assertEquals(TransferTuning.DEFAULT_BLOCK_CONCURRENCY, tuning.getBlockConcurrency());
+    }
+
+    @Test
+    public void testSmallFilesAreSingleShot() {
+        ParallelTransferOptions options = new TransferTuning(8, 64, 4).getParallelTransferOptions(2 * 1024);
+        Assert.assertEquals(Long.valueOf(8 * MB), options.getMaxSingleUploadSizeLong());
+        Assert.assertEquals(Integer.valueOf(1), options.getMaxConcurrency());
+    }
+
+    @Test
+    public void testLargeFilesUseBlocks() {
+        ParallelTransferOptions options = new TransferTuning(8, 64, 4).getParallelTransferOptions(20 * 1024 * MB);
+        Assert.assertEquals(Long.valueOf(64 * MB), options.getBlockSizeLong());
+        Assert.assertEquals(Integer.valueOf(4), options.getMaxConcurrency());
+    }
+
+    @Test
+    public void testOnlyLargeFilesAreResumable() {
+        TransferTuning tuning = new TransferTuning();
+        Assert.assertFalse(tuning.isResumable(64 * MB));
+        Assert.assertTrue(tuning.isResumable(30 * 1024 * MB));
+        Assert.assertFalse(tuning.isResumable(TransferTuning.RESUMABLE_THRESHOLD - 1));
+        Assert.assertTrue(new TransferTuning(100000, 0, 0).isResumable(TransferTuning.RESUMABLE_THRESHOLD));
+    }
+
+    @Test
+    public void testBlockSizeGrowsForHugeFiles() {
+        // 50,000 blocks of 1 MiB are not enough for 100 GiB
+        ParallelTransferOptions options = new TransferTuning(1, 1, 4).getParallelTransferOptions(100 * 1024 * MB);
+        Assert.assertTrue(options.getBlockSizeLong() * 50000 >= 100 * 1024 * MB);
+        Assert.assertEquals(0, options.getBlockSizeLong() % MB);
+    }
+
+    @Test
+    public void testLimitsAreEnforced() {
+        TransferTuning tuning = new TransferTuning(100000, 100000, 0);
+        Assert.assertEquals(TransferTuning.MAX_SINGLE_SHOT_MB * MB, tuning.getSingleShotThreshold());
+        Assert.assertEquals(TransferTuning.MAX_BLOCK_SIZE_MB * MB, tuning.getBlockSize());
+        Assert.assertTrue(tuning.getBlockSize() < Integer.MAX_VALUE);
+    }
+}
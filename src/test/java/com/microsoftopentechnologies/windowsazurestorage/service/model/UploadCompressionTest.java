@@ -0,0 +1,43 @@
+package com.microsoftopentechnologies.windowsazurestorage.service.model;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class UploadCompressionTest {
+
+    @Test
+    public void testCompressibleContentTypes() {
+        UploadCompression compression = new UploadCompression("");
+        Assert.assertTrue(compression.isEligible("index.html", "text/html", "UTF-8"));
+        Assert.assertTrue(compression.isEligible("report.json", "application/json", null));
+        Assert.assertTrue(compression.isEligible("logo.svg", "image/svg+xml", null));
+        Assert.assertFalse(compression.isEligible("app.zip", "application/zip", null));
+        Assert.assertFalse(compression.isEligible("app.jar", null, null));
+    }
+
+    @Test
+    public void testIncludesMatchWhateverTheContentType() {
+        UploadCompression compression = new UploadCompression("**/*.log, data/*.csv");
+        Assert.assertTrue(compression.isEligible("build/test.log", null, null));
+        Assert.assertTrue(compression.isEligible("data/table.csv", "application/octet-stream", null));
+        Assert.assertFalse(compression.isEligible("other/table.bin", null, null));
+    }
+
+    @Test
+    public void testUnknownContentTypeIsGuessedFromTheName() {
+        UploadCompression compression = new UploadCompression("");
+        Assert.assertTrue(compression.isEligible("site/style.css", null, null));
+        Assert.assertTrue(compression.isEligible("report.json", null, null));
+        Assert.assertTrue(compression.isEligible("build/output.txt", null, "UTF-8"));
+        Assert.assertFalse(compression.isEligible("app.zip", null, null));
+        Assert.assertFalse(compression.isEligible("image.png", null, null));
+    }
+
+    @Test
+    public void testEncodedFilesAreSkipped() {
+        UploadCompression compression = new UploadCompression("**");
+        Assert.assertFalse(compression.isEligible("site.css", "text/css", "gzip"));
+        Assert.assertFalse(compression.isEligible("site.css", "text/css", "br"));
+        Assert.assertTrue(compression.isEligible("site.css", "text/css", "identity"));
+    }
+}